@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.virgo.util.common.Assert;
+import org.slf4j.Logger;
+
+/**
+ * {@link FileSystemListener} which delivers events to another listener on an {@link Executor}, so that a slow listener
+ * does not hold up the {@link FileSystemChecker} that it is registered with.
+ * <p/>
+ *
+ * Events for the same path are delivered to the delegate in the order in which they occurred, one at a time. Events for
+ * different paths may be delivered concurrently, so the delegate must be thread-safe, as any
+ * <code>FileSystemListener</code> must. {@link #onInitialEvent(List) Initial events} are delivered on the calling
+ * thread, before any other event. Only single events are delivered, so a {@link BatchFileSystemListener} should be
+ * registered with the checker directly.
+ * <p/>
+ *
+ * At most <code>capacity</code> events can be waiting for, or in, delivery. When that many are outstanding, the caller
+ * of {@link #onChange(String, FileSystemEvent) onChange} (usually the thread running {@link FileSystemChecker#check()})
+ * blocks until an event has been delivered. The number of outstanding events and the number and duration of such
+ * blocks are available from this listener.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ * Thread-safe.
+ *
+ */
+public final class AsynchronousFileSystemListener implements FileSystemListener {
+
+    private final FileSystemListener delegate;
+
+    private final Executor executor;
+
+    private final int capacity;
+
+    private final Logger logger;
+
+    private final Semaphore permits;
+
+    private final Object monitor = new Object();
+
+    /**
+     * Events waiting for delivery, by path. A path is present while a delivery task for it is scheduled or running.
+     */
+    private final Map<String, Queue<FileSystemEvent>> pendingEvents = new HashMap<String, Queue<FileSystemEvent>>();
+
+    private final AtomicLong deliveredCount = new AtomicLong();
+
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    /**
+     * Creates a new <code>AsynchronousFileSystemListener</code>.
+     *
+     * @param delegate the listener to deliver events to
+     * @param executor the <code>Executor</code> to deliver events on
+     * @param capacity the maximum number of outstanding events
+     * @param logger where to log diagnostics -- can be null
+     */
+    public AsynchronousFileSystemListener(FileSystemListener delegate, Executor executor, int capacity, Logger logger) {
+        Assert.notNull(delegate, "delegate must not be null");
+        Assert.notNull(executor, "executor must not be null");
+        Assert.isTrue(capacity > 0, "capacity must be positive");
+        this.delegate = delegate;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.logger = logger;
+        this.permits = new Semaphore(capacity);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The event is queued for delivery, blocking while the queue is full.
+     */
+    @Override
+    public void onChange(String path, FileSystemEvent event) {
+        acquirePermit();
+        boolean schedule;
+        synchronized (this.monitor) {
+            Queue<FileSystemEvent> events = this.pendingEvents.get(path);
+            schedule = events == null;
+            if (schedule) {
+                events = new ArrayDeque<FileSystemEvent>(2);
+                this.pendingEvents.put(path, events);
+            }
+            events.add(event);
+        }
+        if (schedule) {
+            scheduleDelivery(path);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Initial events are delivered to the delegate on the calling thread.
+     */
+    @Override
+    public void onInitialEvent(List<String> paths) {
+        this.delegate.onInitialEvent(paths);
+    }
+
+    /**
+     * Gets the maximum number of outstanding events.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Gets the number of events which have been queued but not yet delivered.
+     *
+     * @return the number of outstanding events
+     */
+    public int getOutstandingCount() {
+        return this.capacity - this.permits.availablePermits();
+    }
+
+    /**
+     * Gets the number of events which have been delivered to the delegate.
+     *
+     * @return the number of delivered events
+     */
+    public long getDeliveredCount() {
+        return this.deliveredCount.get();
+    }
+
+    /**
+     * Gets the number of times a caller of {@link #onChange(String, FileSystemEvent) onChange} has blocked because the
+     * queue was full.
+     *
+     * @return the number of blocked calls
+     */
+    public long getBlockedCount() {
+        return this.blockedCount.get();
+    }
+
+    /**
+     * Gets the total time callers of {@link #onChange(String, FileSystemEvent) onChange} have spent blocked because the
+     * queue was full.
+     *
+     * @param unit the unit of the result
+     * @return the total blocked time
+     */
+    public long getBlockedTime(TimeUnit unit) {
+        return unit.convert(this.blockedNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    private void acquirePermit() {
+        if (this.permits.tryAcquire()) {
+            return;
+        }
+        this.blockedCount.incrementAndGet();
+        long start = System.nanoTime();
+        this.permits.acquireUninterruptibly();
+        this.blockedNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private void scheduleDelivery(final String path) {
+        Runnable delivery = new Runnable() {
+
+            @Override
+            public void run() {
+                deliverNext(path);
+            }
+        };
+        try {
+            this.executor.execute(delivery);
+        } catch (RejectedExecutionException e) {
+            if (this.logger != null) {
+                this.logger.warn("AsynchronousFileSystemListener delivering event for '" + path + "' on the calling thread", e);
+            }
+            delivery.run();
+        }
+    }
+
+    /**
+     * Delivers the oldest pending event for a path and, if further events for the path are pending, schedules another
+     * delivery rather than looping, so that busy paths do not starve others.
+     */
+    private void deliverNext(String path) {
+        FileSystemEvent event;
+        synchronized (this.monitor) {
+            event = this.pendingEvents.get(path).peek();
+        }
+        try {
+            this.delegate.onChange(path, event);
+        } catch (Throwable e) {
+            if (this.logger != null) {
+                this.logger.warn("Listener threw exception for event " + event, e);
+            }
+        } finally {
+            this.deliveredCount.incrementAndGet();
+            this.permits.release();
+        }
+        boolean more;
+        synchronized (this.monitor) {
+            Queue<FileSystemEvent> events = this.pendingEvents.get(path);
+            events.remove();
+            more = !events.isEmpty();
+            if (!more) {
+                this.pendingEvents.remove(path);
+            }
+        }
+        if (more) {
+            scheduleDelivery(path);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.util.List;
+
+/**
+ * {@link FileSystemListener} that is notified of all the modifications found by a single
+ * {@link FileSystemChecker#check() check} at once, rather than one by one.
+ * <p/>
+ * 
+ * A {@link FileSystemChecker} never calls {@link #onChange(String, FileSystemEvent) onChange} on a
+ * <code>BatchFileSystemListener</code>; every event that would have been delivered through <code>onChange</code> is
+ * delivered through {@link #onChanges(List) onChanges} instead. Bulk initial notifications are still delivered through
+ * {@link #onInitialEvent(List) onInitialEvent}.
+ * <p/>
+ * 
+ * <strong>Concurrent Semantics</strong><br/>
+ * 
+ * Implementations <code>must</code> be threadsafe.
+ * 
+ */
+public interface BatchFileSystemListener extends FileSystemListener {
+
+    /**
+     * Signals all the events found by one check, in the order in which they were found. Not called if a check finds
+     * no events.
+     * 
+     * @param changes the events and the paths at which they occurred -- never empty
+     */
+    void onChanges(List<FileSystemChange> changes);
+}
@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of the byte, char, and direct buffers used for copying by the io utilities, so that copying does not allocate
+ * a buffer each time.
+ * <p/>
+ *
+ * A buffer is taken from the pool with one of the <code>take</code> methods and must be given back, with the matching
+ * <code>give</code> method, by the thread which took it, once it is no longer used. Each thread keeps at most one
+ * buffer of each kind which has been given back, so a thread holds at most {@link #BYTE_BUFFER_SIZE} bytes of direct
+ * memory; a buffer given back when the thread already has one of its kind is left to the garbage collector. A thread
+ * may take more than one buffer at once, for example when one copy is nested in another, and each take gets a
+ * different buffer. A buffer which was not taken by the thread, or has already been given back, is rejected.
+ * <p/>
+ *
+ * A thread's buffers are held in a {@link ThreadLocal} as JDK types only, so that a thread outliving the pool's class
+ * loader, for example a thread of the common fork join pool, does not keep the class loader reachable.
+ * <p/>
+ *
+ * The pool counts the buffers taken from a thread's buffers (hits), the buffers allocated because a thread had none
+ * (misses), and the buffers taken but not yet given back (outstanding).
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe.
+ *
+ */
+public final class BufferPool {
+
+    /**
+     * The size, in bytes, of pooled byte and direct buffers.
+     */
+    public static final int BYTE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The size, in chars, of pooled char buffers.
+     */
+    public static final int CHAR_BUFFER_SIZE = 8 * 1024;
+
+    private static final int BYTES = 0;
+
+    private static final int CHARS = 1;
+
+    private static final int DIRECT = 2;
+
+    /**
+     * The index, in a thread's buffers, of the list of buffers it has taken and not given back.
+     */
+    private static final int TAKEN = 3;
+
+    private static final ThreadLocal<Object[]> THREAD_BUFFERS = new ThreadLocal<Object[]>();
+
+    private static final AtomicLong HITS = new AtomicLong();
+
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private static final AtomicLong OUTSTANDING = new AtomicLong();
+
+    private BufferPool() {
+    }
+
+    /**
+     * Takes a byte array of {@link #BYTE_BUFFER_SIZE} bytes from the pool. Its contents are undefined.
+     *
+     * @return the byte array
+     */
+    public static byte[] takeBytes() {
+        byte[] bytes = (byte[]) take(BYTES);
+        if (bytes == null) {
+            bytes = new byte[BYTE_BUFFER_SIZE];
+            taken(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Gives back a byte array taken with {@link #takeBytes()}.
+     *
+     * @param bytes the byte array, which must no longer be used
+     * @throws IllegalArgumentException if the byte array was not taken by this thread or has already been given back
+     */
+    public static void giveBytes(byte[] bytes) {
+        give(BYTES, bytes);
+    }
+
+    /**
+     * Takes a char array of {@link #CHAR_BUFFER_SIZE} chars from the pool. Its contents are undefined.
+     *
+     * @return the char array
+     */
+    public static char[] takeChars() {
+        char[] chars = (char[]) take(CHARS);
+        if (chars == null) {
+            chars = new char[CHAR_BUFFER_SIZE];
+            taken(chars);
+        }
+        return chars;
+    }
+
+    /**
+     * Gives back a char array taken with {@link #takeChars()}.
+     *
+     * @param chars the char array, which must no longer be used
+     * @throws IllegalArgumentException if the char array was not taken by this thread or has already been given back
+     */
+    public static void giveChars(char[] chars) {
+        give(CHARS, chars);
+    }
+
+    /**
+     * Takes a direct {@link ByteBuffer} of {@link #BYTE_BUFFER_SIZE} bytes from the pool, cleared.
+     *
+     * @return the buffer
+     */
+    public static ByteBuffer takeDirect() {
+        ByteBuffer direct = (ByteBuffer) take(DIRECT);
+        if (direct == null) {
+            direct = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+            taken(direct);
+        } else {
+            direct.clear();
+        }
+        return direct;
+    }
+
+    /**
+     * Gives back a buffer taken with {@link #takeDirect()}.
+     *
+     * @param direct the buffer, which must no longer be used
+     * @throws IllegalArgumentException if the buffer was not taken by this thread or has already been given back
+     */
+    public static void giveDirect(ByteBuffer direct) {
+        give(DIRECT, direct);
+    }
+
+    /**
+     * Takes the thread's buffer of the supplied kind, or returns <code>null</code>, counting a miss, if it has none.
+     */
+    private static Object take(int kind) {
+        Object[] buffers = threadBuffers();
+        Object buffer = buffers[kind];
+        if (buffer == null) {
+            MISSES.incrementAndGet();
+            return null;
+        }
+        HITS.incrementAndGet();
+        buffers[kind] = null;
+        taken(buffer);
+        return buffer;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void taken(Object buffer) {
+        ((List<Object>) threadBuffers()[TAKEN]).add(buffer);
+        OUTSTANDING.incrementAndGet();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void give(int kind, Object buffer) {
+        Object[] buffers = threadBuffers();
+        List<Object> taken = (List<Object>) buffers[TAKEN];
+        // identity, since equal buffers are not the same buffer
+        for (int index = taken.size() - 1; index >= 0; index--) {
+            if (taken.get(index) == buffer) {
+                taken.remove(index);
+                OUTSTANDING.decrementAndGet();
+                if (buffers[kind] == null) {
+                    buffers[kind] = buffer;
+                }
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Buffer was not taken from the pool by this thread, or has already been given back");
+    }
+
+    private static Object[] threadBuffers() {
+        Object[] buffers = THREAD_BUFFERS.get();
+        if (buffers == null) {
+            buffers = new Object[TAKEN + 1];
+            buffers[TAKEN] = new ArrayList<Object>();
+            THREAD_BUFFERS.set(buffers);
+        }
+        return buffers;
+    }
+
+    /**
+     * Gets the number of buffers taken which were reused.
+     *
+     * @return the number of hits
+     */
+    public static long getHitCount() {
+        return HITS.get();
+    }
+
+    /**
+     * Gets the number of buffers taken which had to be allocated.
+     *
+     * @return the number of misses
+     */
+    public static long getMissCount() {
+        return MISSES.get();
+    }
+
+    /**
+     * Gets the number of buffers taken and not yet given back.
+     *
+     * @return the number of outstanding buffers
+     */
+    public static long getOutstandingCount() {
+        return OUTSTANDING.get();
+    }
+}
@@ -24,14 +24,24 @@ import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.eclipse.virgo.util.common.Assert;
 
 
 /**
  * Simple utility methods for file and stream copying.
- * All copy methods use a block size of 4096 bytes,
- * and close all affected streams when done.
+ * All copy methods close all affected streams when done.
+ *
+ * <p>Copies between files, and from a file to a channel, are made
+ * with {@link FileChannel#transferTo}, leaving the operating system
+ * to move the bytes where it can. Other copies go through a buffer
+ * taken from the {@link BufferPool}, so no buffer is allocated per copy.
+ * The <code>copyLarge</code> methods return a <code>long</code>
+ * count, for content of 2GB or more.
  *
  * <p>Mainly for use within the framework,
  * but also useful for application code.
@@ -39,6 +49,11 @@ import org.eclipse.virgo.util.common.Assert;
  */
 public abstract class FileCopyUtils {
 
+	/**
+	 * The initial capacity of the array built by {@link #copyToByteArray(InputStream)}.
+	 * Copies no longer use a buffer of this size, but one of
+	 * {@link BufferPool#BYTE_BUFFER_SIZE} taken from the {@link BufferPool}.
+	 */
 	public static final int BUFFER_SIZE = 4096;
 
 
@@ -50,14 +65,62 @@ public abstract class FileCopyUtils {
 	 * Copy the contents of the given input File to the given output File.
 	 * @param in the file to copy from
 	 * @param out the file to copy to
-	 * @return the number of bytes copied
+	 * @return the number of bytes copied, or <code>Integer.MAX_VALUE</code>
+	 * if 2GB or more were copied
 	 * @throws IOException in case of I/O errors
+	 * @see #copyLarge(File, File)
 	 */
 	public static int copy(File in, File out) throws IOException {
+		return toInt(copyLarge(in, out));
+	}
+
+	/**
+	 * Copy the contents of the given input File to the given output File,
+	 * transferring the bytes between the files' channels.
+	 * @param in the file to copy from
+	 * @param out the file to copy to
+	 * @return the number of bytes copied
+	 * @throws IOException in case of I/O errors
+	 */
+	public static long copyLarge(File in, File out) throws IOException {
 		Assert.notNull(in, "No input File specified");
 		Assert.notNull(out, "No output File specified");
-		return copy(new BufferedInputStream(new FileInputStream(in)),
-		    new BufferedOutputStream(new FileOutputStream(out)));
+		FileInputStream inStream = new FileInputStream(in);
+		FileOutputStream outStream;
+		try {
+			outStream = new FileOutputStream(out);
+		}
+		catch (IOException ex) {
+			inStream.close();
+			throw ex;
+		}
+		return copyLarge(inStream, outStream);
+	}
+
+	/**
+	 * Copy the contents of the given input File to the given channel,
+	 * with {@link FileChannel#transferTo}, which for a socket channel
+	 * can send the file without copying it through the JVM.
+	 * Closes the file but not the channel, which must be in blocking mode.
+	 * @param in the file to copy from
+	 * @param out the channel to copy to
+	 * @return the number of bytes copied
+	 * @throws IOException in case of I/O errors
+	 */
+	public static long copyLarge(File in, WritableByteChannel out) throws IOException {
+		Assert.notNull(in, "No input File specified");
+		Assert.notNull(out, "No output channel specified");
+		FileInputStream inStream = new FileInputStream(in);
+		try {
+			return transfer(inStream.getChannel(), out);
+		}
+		finally {
+			try {
+				inStream.close();
+			}
+			catch (IOException ex) {
+			}
+		}
 	}
 
 	/**
@@ -95,22 +158,98 @@ public abstract class FileCopyUtils {
 	 * Closes both streams when done.
 	 * @param in the stream to copy from
 	 * @param out the stream to copy to
-	 * @return the number of bytes copied
+	 * @return the number of bytes copied, or <code>Integer.MAX_VALUE</code>
+	 * if 2GB or more were copied
 	 * @throws IOException in case of I/O errors
+	 * @see #copyLarge(InputStream, OutputStream)
 	 */
 	public static int copy(InputStream in, OutputStream out) throws IOException {
+		return toInt(copyLarge(in, out));
+	}
+
+	/**
+	 * Copy the contents of the given InputStream to the given OutputStream.
+	 * Closes both streams when done.
+	 * <p>If both streams are plain file streams the bytes are transferred
+	 * between their channels, otherwise they are copied through a pooled
+	 * buffer. Subclasses of the file streams are copied through the buffer,
+	 * since they may override <code>read</code> or <code>write</code>.
+	 * @param in the stream to copy from
+	 * @param out the stream to copy to
+	 * @return the number of bytes copied
+	 * @throws IOException in case of I/O errors
+	 */
+	public static long copyLarge(InputStream in, OutputStream out) throws IOException {
 		Assert.notNull(in, "No InputStream specified");
 		Assert.notNull(out, "No OutputStream specified");
 		try {
-			int byteCount = 0;
-			byte[] buffer = new byte[BUFFER_SIZE];
-			int bytesRead = -1;
-			while ((bytesRead = in.read(buffer)) != -1) {
-				out.write(buffer, 0, bytesRead);
-				byteCount += bytesRead;
+			if (in.getClass() == FileInputStream.class && out.getClass() == FileOutputStream.class) {
+				return transfer(((FileInputStream) in).getChannel(), ((FileOutputStream) out).getChannel());
+			}
+			byte[] buffer = BufferPool.takeBytes();
+			try {
+				long byteCount = 0;
+				int bytesRead = -1;
+				while ((bytesRead = in.read(buffer)) != -1) {
+					out.write(buffer, 0, bytesRead);
+					byteCount += bytesRead;
+				}
+				out.flush();
+				return byteCount;
+			}
+			finally {
+				BufferPool.giveBytes(buffer);
+			}
+		}
+		finally {
+			try {
+				in.close();
+			}
+			catch (IOException ex) {
+			}
+			try {
+				out.close();
+			}
+			catch (IOException ex) {
+			}
+		}
+	}
+
+	/**
+	 * Copy the contents of the given channel to the given channel.
+	 * Closes both channels when done.
+	 * <p>If the input is a file channel the bytes are transferred with
+	 * {@link FileChannel#transferTo}, otherwise they are copied through
+	 * a pooled direct buffer.
+	 * @param in the channel to copy from
+	 * @param out the channel to copy to, which must be in blocking mode
+	 * @return the number of bytes copied
+	 * @throws IOException in case of I/O errors
+	 */
+	public static long copyLarge(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		Assert.notNull(in, "No input channel specified");
+		Assert.notNull(out, "No output channel specified");
+		try {
+			if (in instanceof FileChannel) {
+				return transfer((FileChannel) in, out);
+			}
+			ByteBuffer buffer = BufferPool.takeDirect();
+			try {
+				long byteCount = 0;
+				int bytesRead = -1;
+				while ((bytesRead = in.read(buffer)) != -1) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+					buffer.clear();
+					byteCount += bytesRead;
+				}
+				return byteCount;
+			}
+			finally {
+				BufferPool.giveDirect(buffer);
 			}
-			out.flush();
-			return byteCount;
 		}
 		finally {
 			try {
@@ -126,6 +265,31 @@ public abstract class FileCopyUtils {
 		}
 	}
 
+	/**
+	 * Transfers the contents of the given file channel, from its current
+	 * position, to the given channel. <code>transferTo</code> may transfer
+	 * fewer bytes than asked for, so it is called until the end of the file.
+	 */
+	private static long transfer(FileChannel in, WritableByteChannel out) throws IOException {
+		long start = in.position();
+		long size = in.size();
+		long position = start;
+		while (position < size) {
+			long transferred = in.transferTo(position, size - position, out);
+			if (transferred == 0 && position >= in.size()) {
+				// truncated while being copied
+				break;
+			}
+			position += transferred;
+		}
+		in.position(position);
+		return position - start;
+	}
+
+	private static int toInt(long byteCount) {
+		return byteCount > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) byteCount;
+	}
+
 	/**
 	 * Copy the contents of the given byte array to the given OutputStream.
 	 * Closes the stream when done.
@@ -177,9 +341,9 @@ public abstract class FileCopyUtils {
 	public static int copy(Reader in, Writer out) throws IOException {
 		Assert.notNull(in, "No Reader specified");
 		Assert.notNull(out, "No Writer specified");
+		char[] buffer = BufferPool.takeChars();
 		try {
 			int byteCount = 0;
-			char[] buffer = new char[BUFFER_SIZE];
 			int bytesRead = -1;
 			while ((bytesRead = in.read(buffer)) != -1) {
 				out.write(buffer, 0, bytesRead);
@@ -189,6 +353,7 @@ public abstract class FileCopyUtils {
 			return byteCount;
 		}
 		finally {
+			BufferPool.giveChars(buffer);
 			try {
 				in.close();
 			}
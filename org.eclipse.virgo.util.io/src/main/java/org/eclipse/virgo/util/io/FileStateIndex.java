@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.util.Arrays;
+
+/**
+ * Compact index of the known state of a set of files, used by {@link FileSystemChecker}.
+ * <p/>
+ *
+ * Each path is given an integer id when it is added; the id stays valid until the path is removed and is then reused.
+ * Per-file state is held in primitive arrays indexed by id and paths are looked up in an open addressing hash table of
+ * ids, so that looking up, updating and comparing the state of files allocates nothing.
+ * <p/>
+ *
+ * Differences between successive scans are found without building sets: a scan is started with {@link #beginScan()},
+ * every file found is {@link #markSeen(int) marked}, and the files which were not seen are then enumerated with
+ * {@link #nextUnseen(int)}.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Not thread-safe.
+ *
+ */
+final class FileStateIndex {
+
+    /**
+     * Returned by lookups and enumerations when there is no matching id.
+     */
+    static final int NO_ID = -1;
+
+    /**
+     * Recorded size of a file whose size is not known.
+     */
+    static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * Recorded checksum of a file whose content has not been checksummed.
+     */
+    static final long UNKNOWN_CHECKSUM = -1;
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private static final int EMPTY_SLOT = -1;
+
+    private String[] paths;
+
+    private long[] lastModifieds;
+
+    private long[] sizes;
+
+    private long[] checksums;
+
+    private int[] scanMarks;
+
+    /**
+     * Ids which have been removed, available for reuse.
+     */
+    private int[] freeIds;
+
+    private int freeCount;
+
+    /**
+     * One more than the highest id ever allocated.
+     */
+    private int idLimit;
+
+    private int count;
+
+    /**
+     * Hash table of ids, with linear probing. Its length is a power of two at least twice <code>count</code>.
+     */
+    private int[] table;
+
+    private int scan;
+
+    FileStateIndex() {
+        this(MINIMUM_CAPACITY);
+    }
+
+    FileStateIndex(int expectedCount) {
+        int capacity = Math.max(MINIMUM_CAPACITY, expectedCount);
+        this.paths = new String[capacity];
+        this.lastModifieds = new long[capacity];
+        this.sizes = new long[capacity];
+        this.checksums = new long[capacity];
+        this.scanMarks = new int[capacity];
+        this.freeIds = new int[capacity];
+        this.table = newTable(tableLengthFor(capacity));
+    }
+
+    /**
+     * Gets the number of paths in this index.
+     */
+    int count() {
+        return this.count;
+    }
+
+    /**
+     * Finds the id of a path.
+     *
+     * @param path the path to look up
+     * @return the id of the path, or {@link #NO_ID} if the path is not in this index
+     */
+    int find(String path) {
+        int mask = this.table.length - 1;
+        for (int slot = hash(path) & mask;; slot = (slot + 1) & mask) {
+            int id = this.table[slot];
+            if (id == EMPTY_SLOT) {
+                return NO_ID;
+            }
+            if (path.equals(this.paths[id])) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Queries whether a path is in this index.
+     */
+    boolean contains(String path) {
+        return find(path) != NO_ID;
+    }
+
+    /**
+     * Records the state of a path, adding it to this index if necessary. The checksum of a path already in the index is
+     * kept; that of a new path is {@link #UNKNOWN_CHECKSUM unknown}.
+     *
+     * @param path the path
+     * @param lastModified the last modified time of the file at the path
+     * @param size the size of the file, or {@link #UNKNOWN_SIZE}
+     * @return the id of the path
+     */
+    int put(String path, long lastModified, long size) {
+        int id = find(path);
+        if (id == NO_ID) {
+            id = allocateId();
+            this.paths[id] = path;
+            this.checksums[id] = UNKNOWN_CHECKSUM;
+            this.scanMarks[id] = this.scan - 1;
+            insert(id);
+            this.count++;
+        }
+        this.lastModifieds[id] = lastModified;
+        this.sizes[id] = size;
+        return id;
+    }
+
+    /**
+     * Removes the path with the supplied id from this index. Has no effect if the id is not in use.
+     */
+    void remove(int id) {
+        if (!isInUse(id)) {
+            return;
+        }
+        delete(id);
+        this.paths[id] = null;
+        this.freeIds[this.freeCount++] = id;
+        this.count--;
+    }
+
+    String path(int id) {
+        return this.paths[id];
+    }
+
+    long lastModified(int id) {
+        return this.lastModifieds[id];
+    }
+
+    void setLastModified(int id, long lastModified) {
+        this.lastModifieds[id] = lastModified;
+    }
+
+    long size(int id) {
+        return this.sizes[id];
+    }
+
+    void setSize(int id, long size) {
+        this.sizes[id] = size;
+    }
+
+    long checksum(int id) {
+        return this.checksums[id];
+    }
+
+    void setChecksum(int id, long checksum) {
+        this.checksums[id] = checksum;
+    }
+
+    /**
+     * Starts a new scan. No path has been seen in the new scan yet.
+     */
+    void beginScan() {
+        this.scan++;
+        if (this.scan == Integer.MIN_VALUE) {
+            // the scan counter wrapped, so old marks may collide with new scans
+            Arrays.fill(this.scanMarks, Integer.MIN_VALUE);
+            this.scan = Integer.MIN_VALUE + 1;
+        }
+    }
+
+    /**
+     * Marks the path with the supplied id as seen in the current scan.
+     */
+    void markSeen(int id) {
+        this.scanMarks[id] = this.scan;
+    }
+
+    /**
+     * Finds the next id in use, starting at <code>fromId</code>. Ids can be removed while enumerating.
+     *
+     * @param fromId the first id to consider
+     * @return the id, or {@link #NO_ID} if there are no more ids in use
+     */
+    int nextId(int fromId) {
+        for (int id = fromId; id < this.idLimit; id++) {
+            if (this.paths[id] != null) {
+                return id;
+            }
+        }
+        return NO_ID;
+    }
+
+    /**
+     * Finds the next id in use which has not been seen in the current scan, starting at <code>fromId</code>. Ids can
+     * be removed while enumerating.
+     *
+     * @param fromId the first id to consider
+     * @return the id, or {@link #NO_ID} if there are no more unseen ids
+     */
+    int nextUnseen(int fromId) {
+        for (int id = fromId; id < this.idLimit; id++) {
+            if (this.paths[id] != null && this.scanMarks[id] != this.scan) {
+                return id;
+            }
+        }
+        return NO_ID;
+    }
+
+    private boolean isInUse(int id) {
+        return id >= 0 && id < this.idLimit && this.paths[id] != null;
+    }
+
+    private int allocateId() {
+        if (this.freeCount > 0) {
+            return this.freeIds[--this.freeCount];
+        }
+        if (this.idLimit == this.paths.length) {
+            grow();
+        }
+        return this.idLimit++;
+    }
+
+    private void grow() {
+        int capacity = this.paths.length * 2;
+        this.paths = Arrays.copyOf(this.paths, capacity);
+        this.lastModifieds = Arrays.copyOf(this.lastModifieds, capacity);
+        this.sizes = Arrays.copyOf(this.sizes, capacity);
+        this.checksums = Arrays.copyOf(this.checksums, capacity);
+        this.scanMarks = Arrays.copyOf(this.scanMarks, capacity);
+        this.freeIds = Arrays.copyOf(this.freeIds, capacity);
+        this.table = newTable(tableLengthFor(capacity));
+        for (int id = 0; id < this.idLimit; id++) {
+            if (this.paths[id] != null) {
+                insert(id);
+            }
+        }
+    }
+
+    private void insert(int id) {
+        int mask = this.table.length - 1;
+        int slot = hash(this.paths[id]) & mask;
+        while (this.table[slot] != EMPTY_SLOT) {
+            slot = (slot + 1) & mask;
+        }
+        this.table[slot] = id;
+    }
+
+    /**
+     * Removes an id from the hash table, shifting later entries of its probe sequence back so that no tombstones are
+     * needed.
+     */
+    private void delete(int id) {
+        int mask = this.table.length - 1;
+        int slot = hash(this.paths[id]) & mask;
+        while (this.table[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        int hole = slot;
+        for (slot = (slot + 1) & mask; this.table[slot] != EMPTY_SLOT; slot = (slot + 1) & mask) {
+            int home = hash(this.paths[this.table[slot]]) & mask;
+            // move the entry into the hole unless its home slot lies cyclically in (hole, slot]
+            if (hole <= slot ? (home <= hole || home > slot) : (home <= hole && home > slot)) {
+                this.table[hole] = this.table[slot];
+                hole = slot;
+            }
+        }
+        this.table[hole] = EMPTY_SLOT;
+    }
+
+    private static int hash(String path) {
+        int h = path.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableLengthFor(int capacity) {
+        return Integer.highestOneBit(capacity - 1) << 2;
+    }
+
+    private static int[] newTable(int length) {
+        int[] table = new int[length];
+        Arrays.fill(table, EMPTY_SLOT);
+        return table;
+    }
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Reads and writes the snapshot file in which a {@link FileSystemChecker} persists its {@link FileStateIndex} between
+ * runs.
+ * <p/>
+ *
+ * The snapshot records the check directory it was taken of, followed by the path, last modified time, size and
+ * checksum of each file. A snapshot is written to a temporary file, which is forced to disk and then replaces the
+ * previous snapshot, so that a crash while writing leaves the previous snapshot intact.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe.
+ *
+ */
+final class FileStateSnapshot {
+
+    private static final int MAGIC = 0x56465353; // "VFSS"
+
+    private static final int VERSION = 1;
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * The fewest bytes a file's record can occupy: an empty path followed by three longs.
+     */
+    private static final int MIN_RECORD_LENGTH = 2 + 3 * 8;
+
+    private FileStateSnapshot() {
+    }
+
+    /**
+     * Reads a snapshot.
+     *
+     * @param snapshotFile the snapshot file
+     * @param checkDir the check directory that the snapshot must have been taken of
+     * @return the file state recorded in the snapshot, or <code>null</code> if there is no snapshot file
+     * @throws IOException if the snapshot cannot be read, is not a valid snapshot or is of a different directory
+     */
+    static FileStateIndex read(File snapshotFile, File checkDir) throws IOException {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("'" + snapshotFile + "' is not a file system checker snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Snapshot '" + snapshotFile + "' has unsupported version " + version);
+            }
+            String snapshotDir = in.readUTF();
+            if (!snapshotDir.equals(checkDir.getPath())) {
+                throw new IOException("Snapshot '" + snapshotFile + "' is of directory '" + snapshotDir + "' not '" + checkDir + "'");
+            }
+            int count = in.readInt();
+            if (count < 0 || count > snapshotFile.length() / MIN_RECORD_LENGTH) {
+                throw new IOException("Snapshot '" + snapshotFile + "' is corrupt: it cannot hold " + count + " files");
+            }
+            FileStateIndex state = new FileStateIndex(count);
+            for (int index = 0; index < count; index++) {
+                int id = state.put(in.readUTF(), in.readLong(), in.readLong());
+                state.setChecksum(id, in.readLong());
+            }
+            return state;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes a snapshot, replacing any existing snapshot file.
+     *
+     * @param snapshotFile the snapshot file
+     * @param checkDir the check directory the state belongs to
+     * @param state the file state to record
+     * @throws IOException if the snapshot cannot be written
+     */
+    static void write(File snapshotFile, File checkDir, FileStateIndex state) throws IOException {
+        File temporaryFile = new File(snapshotFile.getPath() + TEMPORARY_SUFFIX);
+        FileOutputStream fileOut = new FileOutputStream(temporaryFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(checkDir.getPath());
+            out.writeInt(state.count());
+            for (int id = state.nextId(0); id != FileStateIndex.NO_ID; id = state.nextId(id + 1)) {
+                out.writeUTF(state.path(id));
+                out.writeLong(state.lastModified(id));
+                out.writeLong(state.size(id));
+                out.writeLong(state.checksum(id));
+            }
+            out.flush();
+            // on disk before it replaces the previous snapshot, so a crash cannot leave an empty or partial snapshot
+            fileOut.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+/**
+ * A {@link FileSystemEvent} that occurred at a particular path, as delivered to a {@link BatchFileSystemListener}.
+ * <p/>
+ * 
+ * <strong>Concurrent Semantics</strong><br/>
+ * 
+ * Immutable and therefore thread-safe.
+ * 
+ */
+public final class FileSystemChange {
+
+    private final String path;
+
+    private final FileSystemEvent event;
+
+    /**
+     * Creates a new <code>FileSystemChange</code>.
+     * 
+     * @param path the path for which the event occurred.
+     * @param event the event that occurred.
+     */
+    public FileSystemChange(String path, FileSystemEvent event) {
+        this.path = path;
+        this.event = event;
+    }
+
+    /**
+     * Gets the path for which the event occurred.
+     * 
+     * @return the path
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Gets the event that occurred.
+     * 
+     * @return the event
+     */
+    public FileSystemEvent getEvent() {
+        return this.event;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return 31 * this.path.hashCode() + this.event.hashCode();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (!(that instanceof FileSystemChange)) {
+            return false;
+        }
+        FileSystemChange thatChange = (FileSystemChange) that;
+        return this.path.equals(thatChange.path) && this.event.equals(thatChange.event);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return this.event + " " + this.path;
+    }
+}
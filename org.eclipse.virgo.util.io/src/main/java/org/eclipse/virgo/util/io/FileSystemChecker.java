@@ -11,21 +11,41 @@
 
 package org.eclipse.virgo.util.io;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 import org.eclipse.virgo.util.common.Assert;
-import org.eclipse.virgo.util.math.Sets;
 import org.slf4j.Logger;
 
 /**
@@ -34,16 +54,35 @@ import org.slf4j.Logger;
  * <p/>
  * 
  * Modification notifications ({@link FileSystemEvent}s) are published to a set of configured {@link FileSystemListener
- * FileSystemListeners}. New listeners can be safely added at runtime.
+ * FileSystemListeners}. New listeners can be safely added at runtime. {@link BatchFileSystemListener
+ * BatchFileSystemListeners} receive all the notifications of a check at once, at the end of that check.
  * <p/>
  * 
  * By default, all files in the directory are monitored. Files can be excluded from monitoring using a regex pattern.
+ * Subdirectories are reported as entries but not descended into, unless the checker is created with
+ * {@link FileSystemCheckerOptions#setRecursive(boolean) recursive} options.
+ * <p/>
+ * 
+ * By default, every {@link #check()} lists the whole directory. A checker created with
+ * {@link FileSystemCheckerOptions#setEventDriven(boolean) event driven} options instead registers the directory with a
+ * {@link WatchService} and only re-examines the entries reported as changed. Both modes publish the same sequence of
+ * events. An event driven checker should be {@link #close() closed} when it is no longer needed.
+ * <p/>
+ * 
+ * Optionally, {@link FileSystemCheckerOptions#setContentChecksums(boolean) content checksums} can be used to suppress
+ * modification events for files whose content has not changed.
+ * <p/>
+ * 
+ * A checker with a {@link FileSystemCheckerOptions#setSnapshotFile(File) snapshot file} persists the state of the files
+ * it knows about when it is {@link #close() closed}. A checker created later with the same snapshot file starts from
+ * that state, so only the files which changed in the meantime are notified, rather than every file being notified as
+ * {@link FileSystemEvent#INITIAL INITIAL}.
  * <p/>
  * <strong>Concurrent Semantics</strong><br/>
  * Thread-safe.
  * 
  */
-public final class FileSystemChecker {
+public final class FileSystemChecker implements Closeable {
 
     private final File checkDir;
 
@@ -59,23 +98,86 @@ public final class FileSystemChecker {
 
     private static final String BULK_MODE_VALUE = "bulk";
 
+    private static final long UNKNOWN_LAST_MODIFIED = -1;
+
+    /**
+     * Recorded in a snapshot in place of the last modified time of a file whose {@link FileSystemEvent#INITIAL INITIAL}
+     * event has not yet been published.
+     */
+    private static final long INITIAL_LAST_MODIFIED = -2;
+
     private final AtomicBoolean isInitialEventsHandlingInitiatedOnce = new AtomicBoolean(false);
 
     /**
-     * The files we know about -- with their last modified date (as a Long) are in <code>fileState</code>.<br/>
+     * The files we know about -- with their last modified date and size -- are in <code>fileState</code>.<br/>
      * Files that are changing or are new are monitored in <code>monitorRecords</code>.
      * <p/>
      * <strong>Invariant:</strong> all monitored files are in <code>fileState</code>.<br/>
      * As soon as a file is notified (to listeners) it is no longer monitored. Thus files in <code>fileState</code> and
      * not monitored can be assumed to have been notified about already.
      */
-    private final Map<String, Long> fileState = new HashMap<String, Long>(32);
+    private final FileStateIndex fileState = new FileStateIndex(32);
 
     private final Map<String, MonitorRecord> monitorRecords = new HashMap<String, MonitorRecord>(16);
 
     private final List<FileSystemListener> listeners = new CopyOnWriteArrayList<FileSystemListener>();
 
-    private final FilenameFilter includeFilter;
+    /**
+     * The notifications made during the current check, kept for {@link BatchFileSystemListener
+     * BatchFileSystemListeners}.
+     */
+    private final List<FileSystemChange> changes = new ArrayList<FileSystemChange>();
+
+    /**
+     * Selects the directory entries which are listed: those to check and, when checking recursively, directories to
+     * descend into.
+     */
+    private final EntryFilter entryFilter;
+
+    /**
+     * Routes the keys of the {@link WatchService} notifying changes to <code>checkDir</code>, or <code>null</code> if
+     * the directory is listed on every check.
+     */
+    private final WatchKeyRouter watchKeyRouter;
+
+    /**
+     * <code>true</code> if <code>watchKeyRouter</code> is this checker's own rather than shared with a
+     * {@link FileSystemCheckerGroup}.
+     */
+    private final boolean ownWatchKeyRouter;
+
+    /**
+     * The watched directories -- <code>checkDir</code> and, since a change in a subdirectory modifies the subdirectory
+     * entry, its subdirectories, or every directory beneath it when checking recursively.
+     */
+    private final Map<File, WatchKey> watchKeys = new HashMap<File, WatchKey>();
+
+    private final boolean recursive;
+
+    private final boolean contentChecksums;
+
+    /**
+     * Where the file state is persisted, or <code>null</code>.
+     */
+    private final File snapshotFile;
+
+    /**
+     * Receives measurements, or <code>null</code>.
+     */
+    private final FileSystemCheckerMetrics metrics;
+
+    /**
+     * The number of files examined by the current check.
+     */
+    private int checkFileCount;
+
+    /**
+     * Set when notifications cannot be relied on (initially, after an overflow, or once the watch key has been
+     * invalidated) so that the next check lists the whole directory.
+     */
+    private boolean rescanRequired = true;
+
+    private boolean closed = false;
 
     private static boolean WINDOWS = System.getProperty("os.name").startsWith("Windows");
 
@@ -85,7 +187,7 @@ public final class FileSystemChecker {
      * @param checkDir the directory to check.
      */
     public FileSystemChecker(File checkDir) {
-        this(checkDir, null, null);
+        this(checkDir, (String) null, null);
     }
 
     /**
@@ -119,19 +221,60 @@ public final class FileSystemChecker {
      * @param logger where to log diagnostics -- can be null
      */
     public FileSystemChecker(File checkDir, String excludePattern, Logger logger) {
-        Assert.isTrue(checkDir.isDirectory(), "Check directory '%s' must exist and must be a directory.", checkDir.getAbsolutePath());
-        this.checkDir = checkDir;
-        this.logger = logger;
+        this(checkDir, new FileSystemCheckerOptions().setExcludePattern(excludePattern).setLogger(logger));
+    }
+
+    /**
+     * Creates a new <code>FileSystemChecker</code> configured by the supplied {@link FileSystemCheckerOptions}.
+     * 
+     * @param checkDir the directory to check -- {@link File} must exist and be a directory
+     * @param options the options to apply
+     * @throws FatalIOException if the options are event driven and the directory cannot be watched
+     */
+    public FileSystemChecker(File checkDir, FileSystemCheckerOptions options) {
+        this(checkDir, options, null);
+    }
 
-        final Pattern compiledExcludePattern = excludePattern == null ? null : Pattern.compile(excludePattern);
+    /**
+     * Creates a new <code>FileSystemChecker</code> configured by the supplied {@link FileSystemCheckerOptions} which, if
+     * event driven, watches the directory through a shared {@link WatchKeyRouter}.
+     * 
+     * @param checkDir the directory to check -- {@link File} must exist and be a directory
+     * @param options the options to apply
+     * @param sharedWatchKeyRouter the router to watch through, or <code>null</code> to create one if needed
+     * @throws FatalIOException if the options are event driven and the directory cannot be watched
+     */
+    FileSystemChecker(File checkDir, FileSystemCheckerOptions options, WatchKeyRouter sharedWatchKeyRouter) {
+        Assert.isTrue(checkDir.isDirectory(), "Check directory '%s' must exist and must be a directory.", checkDir.getAbsolutePath());
+        Assert.notNull(options, "options must not be null");
+        // absolute, so that the record keys of the files listed from it need not be recomputed
+        this.checkDir = checkDir.getAbsoluteFile();
+        this.logger = options.getLogger();
+        this.recursive = options.isRecursive();
+        this.contentChecksums = options.isContentChecksums();
+        this.snapshotFile = options.getSnapshotFile();
+        this.metrics = options.getMetrics();
 
-        this.includeFilter = new FilenameFilter() {
+        this.entryFilter = new EntryFilter(options, this.checkDir.toPath().getFileSystem());
 
-            @Override
-            public boolean accept(File dir, String name) {
-                return compiledExcludePattern == null || !compiledExcludePattern.matcher(name).matches();
+        if (options.isEventDriven()) {
+            if (sharedWatchKeyRouter != null) {
+                this.watchKeyRouter = sharedWatchKeyRouter;
+                this.ownWatchKeyRouter = false;
+            } else {
+                try {
+                    this.watchKeyRouter = new WatchKeyRouter(this.checkDir.toPath().getFileSystem());
+                } catch (IOException e) {
+                    throw new FatalIOException("Unable to create a watch service for '" + this.checkDir + "'", e);
+                }
+                this.ownWatchKeyRouter = true;
             }
-        };
+            // register before the initial listing so that no change can slip between the two
+            watchDirectory(this.checkDir);
+        } else {
+            this.watchKeyRouter = null;
+            this.ownWatchKeyRouter = false;
+        }
 
         populateInitialState(); // no notifications made yet
     }
@@ -174,10 +317,15 @@ public final class FileSystemChecker {
     	for (File file : initialFiles) {
     		initialLastModified.put(file, Long.valueOf(file.lastModified()));
     	}
+        this.checkFileCount += initialFiles.size();
         notifyListenersOnInitialEvent(initialFiles);
         for (File file : initialFiles) {
-            this.monitorRecords.remove(this.key(file));
-            setKnownFileState(file, initialLastModified.get(file));
+            String keyFile = this.key(file);
+            this.monitorRecords.remove(keyFile);
+            setKnownFileState(keyFile, initialLastModified.get(file));
+            if (this.contentChecksums) {
+                updateChecksum(this.fileState.find(keyFile), file);
+            }
         }
     }
 
@@ -203,12 +351,15 @@ public final class FileSystemChecker {
     private void notifyListenersOnInitialEvent(List<File> initialFiles) {	
         List<String> initialFilesPaths = getPaths(initialFiles);
         for (FileSystemListener listener : this.listeners) {
+            long start = System.nanoTime();
             try {
                 listener.onInitialEvent(initialFilesPaths);
             } catch (Throwable e) {
                 if (this.logger != null) {
                     this.logger.warn("Listener threw exception for event " + FileSystemEvent.INITIAL, e);
                 }
+            } finally {
+                listenerNotified(listener, start);
             }
         }
     }
@@ -226,9 +377,9 @@ public final class FileSystemChecker {
         return reducedFiles.toArray(new File[reducedFiles.size()]);
     }
 
-    private void addToCurrentFileKeys(Set<String> currentFileKeys, List<File> files) {
+    private void markSeen(List<File> files) {
         for (File file : files) {
-            currentFileKeys.add(this.key(file));
+            this.fileState.markSeen(this.fileState.find(this.key(file)));
         }
     }
 
@@ -238,90 +389,465 @@ public final class FileSystemChecker {
      */
     public void check() {
         synchronized (this.checkLock) {
+            long start = System.nanoTime();
+            boolean failed = false;
+            this.checkFileCount = 0;
             try {
-                File[] currentFiles;
+                if (isEventDriven() && !this.rescanRequired) {
+                    checkChangedFiles();
+                } else {
+                    checkAllFiles();
+                }
+            } catch (Exception ignored) {
+                // FatalIOException can arise from listCurrentDirFiles() which means that we cannot determine the list.
+                // In this case we have already retried the list, and we can ignore this check().
+                // The check() then becomes a no-op which is better than assuming the directory is empty.
+                failed = true;
+            } finally {
+
+                notifyBatchListeners();
+
+                debugState("after check:", null);
+
+                if (this.metrics != null) {
+                    this.metrics.checkCompleted(System.nanoTime() - start, this.checkFileCount, failed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queries whether any files are being monitored because they have been created or modified but not yet notified.
+     * Such files are notified by a later {@link #check()} once they have stopped changing, so checking again soon
+     * reduces the delay before they are notified.
+     * 
+     * @return <code>true</code> if files are being monitored, otherwise <code>false</code>
+     */
+    public boolean isMonitoring() {
+        synchronized (this.checkLock) {
+            return !this.monitorRecords.isEmpty();
+        }
+    }
+
+    /**
+     * Writes the state of the files that have been notified to the snapshot file, replacing any previous snapshot. Files
+     * which are still being monitored are recorded so that they are notified again after a restart: as
+     * {@link FileSystemEvent#INITIAL INITIAL} if their initial event has not been published, otherwise as modified.
+     * Created files which have not been notified are left out, so that they are notified as created.
+     * 
+     * @throws FatalIOException if the snapshot cannot be written
+     * @throws IllegalStateException if this checker has no snapshot file
+     */
+    public void saveSnapshot() {
+        if (this.snapshotFile == null) {
+            throw new IllegalStateException("No snapshot file configured for '" + this.checkDir + "'");
+        }
+        synchronized (this.checkLock) {
+            FileStateIndex snapshot = new FileStateIndex(this.fileState.count());
+            for (int id = this.fileState.nextId(0); id != FileStateIndex.NO_ID; id = this.fileState.nextId(id + 1)) {
+                String keyFile = this.fileState.path(id);
+                long lastModified = this.fileState.lastModified(id);
+                MonitorRecord monitorRecord = this.monitorRecords.get(keyFile);
+                if (monitorRecord != null) {
+                    if (FileSystemEvent.INITIAL.equals(monitorRecord.getEvent())) {
+                        // present from the start but not yet announced, so it is announced after a restart
+                        lastModified = INITIAL_LAST_MODIFIED;
+                    } else if (FileSystemEvent.MODIFIED.equals(monitorRecord.getEvent())) {
+                        // notified before, but its modification has not been, so make sure it will not match
+                        lastModified = UNKNOWN_LAST_MODIFIED;
+                    } else {
+                        // never notified, so it will be new after a restart
+                        continue;
+                    }
+                }
+                int snapshotId = snapshot.put(keyFile, lastModified, this.fileState.size(id));
+                snapshot.setChecksum(snapshotId, this.fileState.checksum(id));
+            }
+            try {
+                FileStateSnapshot.write(this.snapshotFile, this.checkDir, snapshot);
+            } catch (IOException e) {
+                throw new FatalIOException("Unable to write snapshot '" + this.snapshotFile + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the check directory for an event driven checker, and {@link #saveSnapshot() saves a snapshot} if
+     * this checker has a snapshot file. Subsequent calls to {@link #check()} list the whole directory.
+     */
+    @Override
+    public void close() {
+        synchronized (this.checkLock) {
+            if (this.snapshotFile != null) {
                 try {
-                    currentFiles = listCurrentDirFiles();
-                } catch (Exception e) {
+                    saveSnapshot();
+                } catch (FatalIOException e) {
                     if (this.logger != null) {
-                        this.logger.warn("FileSystemChecker caught exception from listFiles()", e);
+                        this.logger.warn("FileSystemChecker could not save its snapshot", e);
+                    }
+                }
+            }
+            if (this.watchKeyRouter != null && !this.closed) {
+                this.closed = true;
+                if (this.ownWatchKeyRouter) {
+                    try {
+                        this.watchKeyRouter.close();
+                        this.watchKeys.clear();
+                    } catch (IOException e) {
+                        if (this.logger != null) {
+                            this.logger.warn("FileSystemChecker could not close the watch service for " + this.checkDir, e);
+                        }
                     }
-                    throw e;
+                } else {
+                    this.watchKeyRouter.unregister(this);
+                    this.watchKeys.clear();
                 }
+            }
+        }
+    }
 
-                debugState("before check:", currentFiles);
+    /**
+     * Lists the whole check directory and compares it with the known files.
+     */
+    private void checkAllFiles() throws Exception {
+        if (isEventDriven()) {
+            // the listing below supersedes any notifications received so far
+            drainWatchEvents();
+            this.rescanRequired = false;
+            watchDirectory(this.checkDir);
+        }
 
-                Set<String> currentFileKeys = new HashSet<String>(currentFiles.length);
+        File[] currentFiles;
+        try {
+            currentFiles = listCurrentDirFiles();
+        } catch (Exception e) {
+            this.rescanRequired = true;
+            if (this.logger != null) {
+                this.logger.warn("FileSystemChecker caught exception from listFiles()", e);
+            }
+            throw e;
+        }
+
+        debugState("before check:", currentFiles);
+
+        // remember seen files to allow comparison for delete
+        this.fileState.beginScan();
+
+        if (isInitialEventsBulkHandlingEnabled()) {
+            // optimize handling of initial events - do it only once
+            if (this.isInitialEventsHandlingInitiatedOnce.compareAndSet(false, true)) {
+                List<File> initialFiles = getInitialFiles(currentFiles);
+                if (!initialFiles.isEmpty()) {
+                    handleInitialFiles(initialFiles);
+                    markSeen(initialFiles);
+                    // skip further processing of initialFiles in the current check
+                    currentFiles = removeFilesFromArray(currentFiles, initialFiles);
+                }
+            }
+        }
+
+        for (File file : currentFiles) {
+            this.fileState.markSeen(checkFile(file, this.key(file)));
+        }
 
-                if (isInitialEventsBulkHandlingEnabled()) {
-                    // optimize handling of initial events - do it only once
-                    if (this.isInitialEventsHandlingInitiatedOnce.compareAndSet(false, true)) {
-                        List<File> initialFiles = getInitialFiles(currentFiles);
-                        if (!initialFiles.isEmpty()) {
-                            handleInitialFiles(initialFiles);
-                            addToCurrentFileKeys(currentFileKeys, initialFiles);
-                            // skip further processing of initialFiles in the current check
-                            currentFiles = removeFilesFromArray(currentFiles, initialFiles);
+        for (int id = this.fileState.nextUnseen(0); id != FileStateIndex.NO_ID; id = this.fileState.nextUnseen(id + 1)) {
+            checkDeletedFile(this.fileState.path(id));
+        }
+    }
+
+    /**
+     * Re-examines only the entries reported by the {@link WatchService} since the last check, plus the files which are
+     * still monitored. Falls back to {@link #checkAllFiles()} if notifications have been lost.
+     */
+    private void checkChangedFiles() throws Exception {
+        Set<File> changedFiles = pollWatchEvents();
+        if (changedFiles == null) {
+            if (this.logger != null) {
+                this.logger.debug("FileSystemChecker lost notifications for {}, listing the whole directory", this.checkDir);
+            }
+            this.rescanRequired = true;
+            checkAllFiles();
+            return;
+        }
+
+        Map<String, File> candidates = new LinkedHashMap<String, File>();
+        for (File file : changedFiles) {
+            if (this.entryFilter.accept(file.toPath())) {
+                candidates.put(file.getAbsolutePath(), file);
+            }
+        }
+        for (String monitoredKey : this.monitorRecords.keySet()) {
+            File file = new File(monitoredKey);
+            candidates.put(file.getAbsolutePath(), file);
+        }
+
+        debugState("before check:", candidates.values().toArray(new File[candidates.size()]));
+
+        // each entry is examined at most once per check, however it was found
+        Set<String> visited = new HashSet<String>(candidates.keySet());
+        Deque<File> pending = new ArrayDeque<File>(candidates.values());
+        File file;
+        while ((file = pending.poll()) != null) {
+            if (file.exists()) {
+                if (!this.recursive && isDescendable(file)) {
+                    // watched before its state is read, so that no later change to its entries is missed
+                    watchDirectory(file);
+                }
+                if (this.entryFilter.isIncluded(file.toPath())) {
+                    checkFile(file, this.key(file));
+                }
+                if (this.recursive && isDescendable(file) && watchDirectory(file)) {
+                    // a newly watched directory may hold entries created before it was registered
+                    File[] children;
+                    try {
+                        children = FileSystemUtils.listFiles(file, this.entryFilter, this.logger, this.metrics);
+                    } catch (FatalIOException e) {
+                        // the directory is now watched, so only a full listing will find those entries
+                        this.rescanRequired = true;
+                        throw e;
+                    }
+                    for (File child : children) {
+                        if (visited.add(child.getAbsolutePath())) {
+                            pending.add(child);
                         }
                     }
                 }
-
-                for (File file : currentFiles) {
-                    // remember seen files to allow comparison for delete
-                    String keyFile = this.key(file);
-                    currentFileKeys.add(keyFile);
-                    if (!isKnown(file)) {
-                        // not seen it before -- start monitoring it -- a potential newly created file
-                        this.monitorRecords.put(keyFile, new MonitorRecord(file.length(), FileSystemEvent.CREATED));
-                        setKnownFileState(file);
-                    } else if (this.monitorRecords.containsKey(keyFile)) {
-                        // we are monitoring this file
-                        MonitorRecord monitorRecord = this.monitorRecords.get(keyFile);
-                        long size = file.length();
-                        // save file timestamp before notifying listeners, because otherwise it is possible during 
-                        // the notification the file to be updated and the newer timestamp to be saved - bug 396422
-                        long lastModified = file.lastModified();
-                        if (size > monitorRecord.getSize()) {
-                            // still being written? continue to track it
-                            monitorRecord.setSize(size);
-                        } else if (isUnlocked(file)) {
-                            // not changing anymore so if we can rename it we can announce it:
-                            notifyListeners(this.key(file), monitorRecord.getEvent());
-                            // do not monitor it anymore
-                            this.monitorRecords.remove(keyFile);
+            } else {
+                // the entry may have been known either as a file or as a directory
+                String fileKey = file.getAbsolutePath();
+                String directoryKey = fileKey + File.separator;
+                if (this.fileState.contains(fileKey)) {
+                    checkDeletedFile(fileKey);
+                }
+                boolean knownDirectory = this.fileState.contains(directoryKey);
+                // a directory which is not itself included is not known, but its descendants may be
+                if (this.recursive && (knownDirectory || this.entryFilter.hasIncludes())) {
+                    for (int id = this.fileState.nextId(0); id != FileStateIndex.NO_ID; id = this.fileState.nextId(id + 1)) {
+                        String knownKey = this.fileState.path(id);
+                        if (knownKey.startsWith(directoryKey) && visited.add(new File(knownKey).getAbsolutePath())) {
+                            pending.add(new File(knownKey));
                         }
-                        setKnownFileState(file, lastModified);
-                    } else if (file.lastModified() > knownLastModified(file)) {
-                        // we know about this file, we are not monitoring it, but it has changed
-                        // start monitoring it until it stabilises
-                        this.monitorRecords.put(keyFile, new MonitorRecord(file.length(), FileSystemEvent.MODIFIED));
-                        setKnownFileState(file);
                     }
                 }
+                if (knownDirectory) {
+                    checkDeletedFile(directoryKey);
+                }
+            }
+        }
+    }
 
-                Set<String> deletedFiles = Sets.difference(this.fileState.keySet(), currentFileKeys);
-                for (String deletedFile : deletedFiles) {
-                    if (this.monitorRecords.containsKey(deletedFile)) {
-                        // we were monitoring it when it disappeared
-                        MonitorRecord monitorRecord = this.monitorRecords.get(deletedFile);
-                        if (monitorRecord.getEvent().equals(FileSystemEvent.MODIFIED)) {
-                            notifyListeners(deletedFile, FileSystemEvent.DELETED);
+    /**
+     * Compares a file which is currently present with its known state, starting, continuing or ending its monitoring.
+     * 
+     * @param file the <code>File</code> to check
+     * @param keyFile the record key of <code>file</code>
+     * @return the id of <code>file</code> in <code>fileState</code>
+     */
+    private int checkFile(File file, String keyFile) {
+        this.checkFileCount++;
+        int id = this.fileState.find(keyFile);
+        if (id == FileStateIndex.NO_ID) {
+            // not seen it before -- start monitoring it -- a potential newly created file
+            long size = file.length();
+            this.monitorRecords.put(keyFile, new MonitorRecord(size, FileSystemEvent.CREATED));
+            id = this.fileState.put(keyFile, file.lastModified(), size);
+        } else {
+            MonitorRecord monitorRecord = this.monitorRecords.get(keyFile);
+            if (monitorRecord != null) {
+                // we are monitoring this file
+                long size = file.length();
+                // save file timestamp before notifying listeners, because otherwise it is possible during 
+                // the notification the file to be updated and the newer timestamp to be saved - bug 396422
+                long lastModified = file.lastModified();
+                if (size > monitorRecord.getSize()) {
+                    // still being written? continue to track it
+                    monitorRecord.setSize(size);
+                } else if (isUnlocked(file)) {
+                    // not changing anymore so if we can rename it we can announce it, unless its content is the same
+                    boolean contentUnchanged = this.contentChecksums && updateChecksum(id, file)
+                        && FileSystemEvent.MODIFIED.equals(monitorRecord.getEvent());
+                    if (contentUnchanged) {
+                        if (this.logger != null) {
+                            this.logger.debug("FileSystemChecker ignored modification of {} with unchanged content", keyFile);
                         }
                     } else {
-                        notifyListeners(deletedFile, FileSystemEvent.DELETED);
+                        notifyListeners(keyFile, monitorRecord.getEvent());
                     }
-                    this.fileState.remove(deletedFile);
-                    this.monitorRecords.remove(deletedFile);
+                    // do not monitor it anymore
+                    this.monitorRecords.remove(keyFile);
                 }
-            } catch (Exception ignored) {
-                // FatalIOException can arise from listCurrentDirFiles() which means that we cannot determine the list.
-                // In this case we have already retried the list, and we can ignore this check().
-                // The check() then becomes a no-op which is better than assuming the directory is empty.
-            } finally {
+                this.fileState.setLastModified(id, lastModified);
+                this.fileState.setSize(id, size);
+            } else {
+                long lastModified = file.lastModified();
+                boolean changed;
+                long size;
+                if (this.contentChecksums) {
+                    // with checksums to filter false positives any difference in metadata is worth examining
+                    size = file.length();
+                    long knownSize = this.fileState.size(id);
+                    changed = lastModified != this.fileState.lastModified(id)
+                        || (knownSize != FileStateIndex.UNKNOWN_SIZE && size != knownSize);
+                } else {
+                    size = FileStateIndex.UNKNOWN_SIZE;
+                    changed = lastModified > this.fileState.lastModified(id);
+                }
+                if (changed) {
+                    // we know about this file, we are not monitoring it, but it has changed
+                    // start monitoring it until it stabilises
+                    if (size == FileStateIndex.UNKNOWN_SIZE) {
+                        size = file.length();
+                    }
+                    this.monitorRecords.put(keyFile, new MonitorRecord(size, FileSystemEvent.MODIFIED));
+                    this.fileState.setLastModified(id, lastModified);
+                    this.fileState.setSize(id, size);
+                }
+            }
+        }
+        return id;
+    }
 
-                debugState("after check:", null);
+    /**
+     * Handles a known file which is no longer present, notifying its deletion if it has already been announced.
+     * 
+     * @param deletedFile the record key of the deleted file
+     */
+    private void checkDeletedFile(String deletedFile) {
+        if (this.monitorRecords.containsKey(deletedFile)) {
+            // we were monitoring it when it disappeared
+            MonitorRecord monitorRecord = this.monitorRecords.get(deletedFile);
+            if (monitorRecord.getEvent().equals(FileSystemEvent.MODIFIED)) {
+                notifyListeners(deletedFile, FileSystemEvent.DELETED);
+            }
+        } else {
+            notifyListeners(deletedFile, FileSystemEvent.DELETED);
+        }
+        this.fileState.remove(this.fileState.find(deletedFile));
+        this.monitorRecords.remove(deletedFile);
+    }
+
+    /**
+     * Checksums the content of a file and records the checksum in <code>fileState</code>.
+     * 
+     * @param id the id of the file in <code>fileState</code>
+     * @param file the <code>File</code> to checksum
+     * @return <code>true</code> if the content is known to be unchanged since the previous checksum, otherwise
+     *         <code>false</code>
+     */
+    private boolean updateChecksum(int id, File file) {
+        long previousChecksum = this.fileState.checksum(id);
+        long checksum = FileStateIndex.UNKNOWN_CHECKSUM;
+        if (file.isFile()) {
+            try {
+                checksum = checksum(file);
+            } catch (IOException e) {
+                if (this.logger != null) {
+                    this.logger.warn("FileSystemChecker could not checksum " + file, e);
+                }
+            }
+        }
+        this.fileState.setChecksum(id, checksum);
+        return checksum != FileStateIndex.UNKNOWN_CHECKSUM && checksum == previousChecksum;
+    }
+
+    /**
+     * Computes the CRC-32 checksum of the content of a file. The file is read through a {@link FileChannel} rather than
+     * memory-mapped, because a mapping keeps a file locked on Windows until it is garbage collected, which would stop
+     * artifacts from being deleted from the check directory.
+     * 
+     * @param file the file to checksum
+     * @return the checksum
+     * @throws IOException if the file cannot be read
+     */
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = BufferPool.takeDirect();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.giveDirect(buffer);
+        }
+        return crc.getValue();
+    }
+
+    private boolean isEventDriven() {
+        return this.watchKeyRouter != null && !this.closed;
+    }
+
+    /**
+     * Registers the supplied directory with the {@link WatchService} unless it is already validly registered. A failure
+     * to register means notifications cannot be relied on, so the next check lists the whole directory.
+     * 
+     * @param directory the directory to watch
+     * @return <code>true</code> if the directory was newly registered, otherwise <code>false</code>.
+     */
+    private boolean watchDirectory(File directory) {
+        if (!isEventDriven()) {
+            return false;
+        }
+        WatchKey watchKey = this.watchKeys.get(directory);
+        if (watchKey != null && watchKey.isValid()) {
+            return false;
+        }
+        try {
+            watchKey = this.watchKeyRouter.register(this, directory.toPath());
+            this.watchKeys.put(directory, watchKey);
+            return true;
+        } catch (IOException e) {
+            this.rescanRequired = true;
+            if (this.logger != null) {
+                this.logger.warn("FileSystemChecker could not watch " + directory + ", listing the whole directory instead", e);
+            }
+            return false;
+        }
+    }
 
+    /**
+     * Collects the entries reported as changed since the last poll.
+     * 
+     * @return the changed entries, or <code>null</code> if notifications were lost and a full listing is needed
+     */
+    private Set<File> pollWatchEvents() {
+        Set<File> changedFiles = new LinkedHashSet<File>();
+        boolean lost = false;
+        try {
+            for (WatchKeyRouter.Signal signal : this.watchKeyRouter.poll(this)) {
+                Path directory = signal.getDirectory();
+                // without recursion, a change in a subdirectory is a modification of the subdirectory entry
+                File changedDirectory = this.recursive || directory.toFile().equals(this.checkDir) ? null : directory.toFile();
+                for (WatchEvent<?> event : signal.getEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        lost = true;
+                    } else if (changedDirectory != null) {
+                        changedFiles.add(changedDirectory);
+                    } else {
+                        changedFiles.add(directory.resolve((Path) event.context()).toFile());
+                    }
+                }
+                if (!signal.isValid()) {
+                    // the directory is no longer accessible, a removed subdirectory is reported by its parent
+                    File directoryFile = directory.toFile();
+                    this.watchKeys.remove(directoryFile);
+                    if (directoryFile.equals(this.checkDir)) {
+                        lost = true;
+                    }
+                }
             }
+        } catch (ClosedWatchServiceException e) {
+            lost = true;
+        }
+        return lost ? null : changedFiles;
+    }
+
+    private void drainWatchEvents() {
+        try {
+            this.watchKeyRouter.poll(this);
+        } catch (ClosedWatchServiceException e) {
+            // nothing more to drain
         }
     }
 
@@ -349,11 +875,11 @@ public final class FileSystemChecker {
             if (this.fileState != null) {
                 sb.append("\n\tKnown files: [");
                 boolean first = true;
-                for (String s : this.fileState.keySet()) {
+                for (int id = this.fileState.nextId(0); id != FileStateIndex.NO_ID; id = this.fileState.nextId(id + 1)) {
                     if (!first) {
                         sb.append(", ");
                     }
-                    sb.append(s);
+                    sb.append(this.fileState.path(id));
                     first = false;
                 }
                 sb.append("]");
@@ -375,15 +901,77 @@ public final class FileSystemChecker {
     }
 
     private void notifyListeners(String file, FileSystemEvent event) {
+        boolean batchListenerSeen = false;
         for (FileSystemListener listener : this.listeners) {
+            if (listener instanceof BatchFileSystemListener) {
+                batchListenerSeen = true;
+                continue;
+            }
+            long start = System.nanoTime();
             try {
                 listener.onChange(file, event);
             } catch (Throwable e) {
                 if (this.logger != null) {
                     this.logger.warn("Listener threw exception for event " + event, e);
                 }
+            } finally {
+                listenerNotified(listener, start);
             }
         }
+        if (batchListenerSeen) {
+            this.changes.add(new FileSystemChange(file, event));
+        }
+    }
+
+    private void listenerNotified(FileSystemListener listener, long start) {
+        if (this.metrics != null) {
+            this.metrics.listenerNotified(listener, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Notify all registered {@link BatchFileSystemListener BatchFileSystemListeners} of the changes found during the
+     * current check.
+     */
+    private void notifyBatchListeners() {
+        if (this.changes.isEmpty()) {
+            return;
+        }
+        List<FileSystemChange> checkChanges = Collections.unmodifiableList(new ArrayList<FileSystemChange>(this.changes));
+        this.changes.clear();
+        for (FileSystemListener listener : this.listeners) {
+            if (listener instanceof BatchFileSystemListener) {
+                long start = System.nanoTime();
+                try {
+                    ((BatchFileSystemListener) listener).onChanges(checkChanges);
+                } catch (Throwable e) {
+                    if (this.logger != null) {
+                        this.logger.warn("Listener threw exception for " + checkChanges.size() + " changes", e);
+                    }
+                } finally {
+                    listenerNotified(listener, start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the snapshot file, if any.
+     * 
+     * @return the snapshot, or <code>null</code> if there is no usable snapshot
+     */
+    private FileStateIndex readSnapshot() {
+        if (this.snapshotFile == null) {
+            return null;
+        }
+        try {
+            return FileStateSnapshot.read(this.snapshotFile, this.checkDir);
+        } catch (IOException e) {
+            if (this.logger != null) {
+                this.logger.warn("FileSystemChecker ignored unusable snapshot '" + this.snapshotFile + "'", e);
+            }
+            return null;
+        }
     }
 
     /**
@@ -401,10 +989,41 @@ public final class FileSystemChecker {
             }
             throw e;
         }
+        FileStateIndex snapshot = readSnapshot();
         for (File file : initialList) {
             String keyFile = key(file);
-            this.monitorRecords.put(keyFile, new MonitorRecord(file.length(), FileSystemEvent.INITIAL));
-            setKnownFileState(file);
+            long size = file.length();
+            long lastModified = file.lastModified();
+            if (snapshot == null) {
+                this.monitorRecords.put(keyFile, new MonitorRecord(size, FileSystemEvent.INITIAL));
+                this.fileState.put(keyFile, lastModified, size);
+            } else {
+                int snapshotId = snapshot.find(keyFile);
+                int id = this.fileState.put(keyFile, lastModified, size);
+                if (snapshotId == FileStateIndex.NO_ID) {
+                    // created since the snapshot was taken
+                    this.monitorRecords.put(keyFile, new MonitorRecord(size, FileSystemEvent.CREATED));
+                } else {
+                    this.fileState.setChecksum(id, snapshot.checksum(snapshotId));
+                    if (snapshot.lastModified(snapshotId) == INITIAL_LAST_MODIFIED) {
+                        this.monitorRecords.put(keyFile, new MonitorRecord(size, FileSystemEvent.INITIAL));
+                    } else if (lastModified != snapshot.lastModified(snapshotId) || size != snapshot.size(snapshotId)) {
+                        this.monitorRecords.put(keyFile, new MonitorRecord(size, FileSystemEvent.MODIFIED));
+                    }
+                    snapshot.remove(snapshotId);
+                }
+            }
+        }
+        if (snapshot != null) {
+            // the rest have been deleted since the snapshot was taken and will be notified by the first check, unless
+            // they were never announced
+            for (int snapshotId = snapshot.nextId(0); snapshotId != FileStateIndex.NO_ID; snapshotId = snapshot.nextId(snapshotId + 1)) {
+                if (snapshot.lastModified(snapshotId) == INITIAL_LAST_MODIFIED) {
+                    continue;
+                }
+                int id = this.fileState.put(snapshot.path(snapshotId), snapshot.lastModified(snapshotId), snapshot.size(snapshotId));
+                this.fileState.setChecksum(id, snapshot.checksum(snapshotId));
+            }
         }
         debugState("initial state:", initialList);
     }
@@ -415,49 +1034,61 @@ public final class FileSystemChecker {
      * @return the <code>Files</code> that are in the check directory.
      */
     private File[] listCurrentDirFiles() {
-        return FileSystemUtils.listFiles(this.checkDir, this.includeFilter, this.logger);
+        if (!this.recursive) {
+            File[] files = FileSystemUtils.listFiles(this.checkDir, this.entryFilter, this.logger, this.metrics);
+            for (File file : files) {
+                if (isDescendable(file)) {
+                    watchDirectory(file);
+                }
+            }
+            return files;
+        }
+        List<File> files = new ArrayList<File>();
+        collectFiles(this.checkDir, files);
+        return files.toArray(new File[files.size()]);
     }
 
     /**
-     * Sets the state of the supplied {@link File} into our known files map (<code>fileState</code>).
+     * Adds the {@link File Files} in <code>directory</code> and, recursively, in its subdirectories to
+     * <code>files</code>. Subdirectories are watched before they are listed when the checker is event driven.
      * 
-     * @param the <code>File</code> to record state for.
+     * @param directory the directory to list
+     * @param files the list to add to
      */
-    private void setKnownFileState(File file) {
-        String key = key(file);
-        long lastModified = file.lastModified();
-        this.fileState.put(key, lastModified);
-    }
-    
-    /**
-     * Sets the state of the supplied {@link File} into our known files map (<code>fileState</code>) to the supplied state.
-     * 
-     * @param the <code>File</code> to record state for.
-     * @param the new state
-     */
-    private void setKnownFileState(File file, long lastModified) {
-    	String key = key(file);
-        this.fileState.put(key, lastModified);
+    private void collectFiles(File directory, List<File> files) {
+        for (File file : FileSystemUtils.listFiles(directory, this.entryFilter, this.logger, this.metrics)) {
+            if (this.entryFilter.isIncluded(file.toPath())) {
+                files.add(file);
+            }
+            if (isDescendable(file)) {
+                watchDirectory(file);
+                collectFiles(file, files);
+            }
+        }
     }
 
     /**
-     * Gets the recorded last modified timestamp for the supplied {@link File}.
-     * 
-     * @param file the <code>File</code> to check for.
-     * @return the last modified timestamp, or <code>null</code> if no timestamp is recorded.
+     * Queries whether a recursive check should descend into <code>file</code>. Symbolic links are not followed, so that
+     * links cannot introduce cycles.
      */
-    private Long knownLastModified(File file) {
-        return this.fileState.get(key(file));
+    private static boolean isDescendable(File file) {
+        return file.isDirectory() && !Files.isSymbolicLink(file.toPath());
     }
 
     /**
-     * Is file known to us? (In <code>fileState</code>.)
+     * Sets the last modified time of the file with the supplied key in our known files (<code>fileState</code>),
+     * keeping any recorded size.
      * 
-     * @param file the <code>File</code> to check for.
-     * @return <code>true</code> if in the map (domain), <code>false</code> otherwise.
+     * @param keyFile the record key of the file to record state for.
+     * @param lastModified the new state
      */
-    private boolean isKnown(File file) {
-        return this.fileState.containsKey(key(file));
+    private void setKnownFileState(String keyFile, long lastModified) {
+        int id = this.fileState.find(keyFile);
+        if (id == FileStateIndex.NO_ID) {
+            this.fileState.put(keyFile, lastModified, FileStateIndex.UNKNOWN_SIZE);
+        } else {
+            this.fileState.setLastModified(id, lastModified);
+        }
     }
 
     /**
@@ -474,6 +1105,88 @@ public final class FileSystemChecker {
         return key;
     }
 
+    /**
+     * Filters directory entries by name, so that entries which are not wanted are never turned into {@link File Files}
+     * or examined.
+     * <p/>
+     * An entry is <i>included</i> if its name matches none of the exclude pattern and globs and, if there are include
+     * globs, matches at least one of them. The filter accepts included entries and, for a recursive checker with include
+     * globs, directories which are not excluded, so that they can be descended into.
+     */
+    private static final class EntryFilter implements DirectoryStream.Filter<Path> {
+
+        private static final String GLOB_SYNTAX = "glob:";
+
+        private final Pattern excludePattern;
+
+        private final List<PathMatcher> includeMatchers;
+
+        private final List<PathMatcher> excludeMatchers;
+
+        private final boolean descendUnincluded;
+
+        EntryFilter(FileSystemCheckerOptions options, FileSystem fileSystem) {
+            String pattern = options.getExcludePattern();
+            this.excludePattern = pattern == null ? null : Pattern.compile(pattern);
+            this.includeMatchers = pathMatchers(options.getIncludeGlobs(), fileSystem);
+            this.excludeMatchers = pathMatchers(options.getExcludeGlobs(), fileSystem);
+            this.descendUnincluded = options.isRecursive() && !this.includeMatchers.isEmpty();
+        }
+
+        private static List<PathMatcher> pathMatchers(List<String> globs, FileSystem fileSystem) {
+            List<PathMatcher> matchers = new ArrayList<PathMatcher>(globs.size());
+            for (String glob : globs) {
+                matchers.add(fileSystem.getPathMatcher(GLOB_SYNTAX + glob));
+            }
+            return matchers;
+        }
+
+        @Override
+        public boolean accept(Path entry) {
+            Path name = entry.getFileName();
+            if (isExcluded(name)) {
+                return false;
+            }
+            return matchesInclude(name) || (this.descendUnincluded && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS));
+        }
+
+        boolean hasIncludes() {
+            return !this.includeMatchers.isEmpty();
+        }
+
+        /**
+         * Queries whether an entry is to be checked.
+         */
+        boolean isIncluded(Path entry) {
+            Path name = entry.getFileName();
+            return !isExcluded(name) && matchesInclude(name);
+        }
+
+        private boolean isExcluded(Path name) {
+            if (this.excludePattern != null && this.excludePattern.matcher(name.toString()).matches()) {
+                return true;
+            }
+            for (PathMatcher matcher : this.excludeMatchers) {
+                if (matcher.matches(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesInclude(Path name) {
+            if (this.includeMatchers.isEmpty()) {
+                return true;
+            }
+            for (PathMatcher matcher : this.includeMatchers) {
+                if (matcher.matches(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     private static class MonitorRecord {
 
         private final FileSystemEvent event;
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.virgo.util.common.Assert;
+import org.slf4j.Logger;
+
+/**
+ * Checks a set of directories for modifications from a single scheduler thread.
+ * <p/>
+ *
+ * Each directory (a <i>root</i>) is checked by its own {@link FileSystemChecker}, so events are routed to the
+ * {@link FileSystemListener FileSystemListeners} registered for that root only. Roots are checked one after another
+ * on every tick of the group, which replaces one polling loop per directory with a single thread for all of them.
+ * Roots can be added and removed at runtime, and may be checked recursively and/or event driven according to their
+ * {@link FileSystemCheckerOptions}. Event driven roots share a single {@link java.nio.file.WatchService}.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ * Thread-safe.
+ *
+ */
+public final class FileSystemCheckerGroup implements Closeable {
+
+    private static final String THREAD_NAME = "file-system-checker-group";
+
+    private final long interval;
+
+    private final TimeUnit unit;
+
+    private final Logger logger;
+
+    private final Object monitor = new Object();
+
+    private final Map<File, FileSystemChecker> checkers = new LinkedHashMap<File, FileSystemChecker>();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Routes the keys of the watch service shared by the event driven roots, or <code>null</code> if there have been
+     * none since the group was created or closed. Guarded by <code>monitor</code>.
+     */
+    private WatchKeyRouter watchKeyRouter;
+
+    /**
+     * Creates a new <code>FileSystemCheckerGroup</code> which, once {@link #start() started}, checks all of its roots
+     * every <code>interval</code>.
+     *
+     * @param interval the time between the end of one round of checks and the start of the next
+     * @param unit the unit of <code>interval</code>
+     * @param logger where to log diagnostics -- can be null
+     */
+    public FileSystemCheckerGroup(long interval, TimeUnit unit, Logger logger) {
+        Assert.isTrue(interval > 0, "interval must be positive");
+        Assert.notNull(unit, "unit must not be null");
+        this.interval = interval;
+        this.unit = unit;
+        this.logger = logger;
+    }
+
+    /**
+     * Adds a root directory to this group. Listeners for the root are added to the returned {@link FileSystemChecker}.
+     *
+     * @param directory the directory to check -- must exist and be a directory
+     * @param options the options for checking the directory
+     * @return the <code>FileSystemChecker</code> for the directory
+     * @throws IllegalArgumentException if the directory is already a root of this group
+     */
+    public FileSystemChecker addRoot(File directory, FileSystemCheckerOptions options) {
+        synchronized (this.monitor) {
+            Assert.isFalse(this.checkers.containsKey(directory), "Directory '%s' is already checked by this group", directory);
+            FileSystemChecker checker = new FileSystemChecker(directory, options, options.isEventDriven() ? getWatchKeyRouter() : null);
+            this.checkers.put(directory, checker);
+            return checker;
+        }
+    }
+
+    /**
+     * Gets the shared {@link WatchKeyRouter}, creating it if necessary. Called holding <code>monitor</code>.
+     */
+    private WatchKeyRouter getWatchKeyRouter() {
+        if (this.watchKeyRouter == null) {
+            try {
+                // java.io.File paths are always on the default file system
+                this.watchKeyRouter = new WatchKeyRouter(FileSystems.getDefault());
+            } catch (IOException e) {
+                throw new FatalIOException("Unable to create a watch service for FileSystemCheckerGroup", e);
+            }
+        }
+        return this.watchKeyRouter;
+    }
+
+    /**
+     * Removes a root directory from this group and {@link FileSystemChecker#close() closes} its checker.
+     *
+     * @param directory the root directory to remove
+     * @return <code>true</code> if the directory was a root of this group, otherwise <code>false</code>
+     */
+    public boolean removeRoot(File directory) {
+        FileSystemChecker checker;
+        synchronized (this.monitor) {
+            checker = this.checkers.remove(directory);
+        }
+        if (checker != null) {
+            checker.close();
+        }
+        return checker != null;
+    }
+
+    /**
+     * Gets the {@link FileSystemChecker} for a root directory of this group.
+     *
+     * @param directory the root directory
+     * @return the checker, or <code>null</code> if the directory is not a root of this group
+     */
+    public FileSystemChecker getChecker(File directory) {
+        synchronized (this.monitor) {
+            return this.checkers.get(directory);
+        }
+    }
+
+    /**
+     * Checks every root of this group once, on the calling thread.
+     */
+    public void checkAll() {
+        for (FileSystemChecker checker : getCheckers()) {
+            try {
+                checker.check();
+            } catch (RuntimeException e) {
+                if (this.logger != null) {
+                    this.logger.warn("FileSystemCheckerGroup caught exception from check()", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts checking the roots of this group periodically on the group's scheduler thread. Has no effect if the group
+     * is already started.
+     */
+    public void start() {
+        synchronized (this.monitor) {
+            if (this.scheduler == null) {
+                this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, THREAD_NAME);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                this.scheduler.scheduleWithFixedDelay(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        checkAll();
+                    }
+                }, 0, this.interval, this.unit);
+            }
+        }
+    }
+
+    /**
+     * Stops checking the roots of this group periodically. A round of checks which is in progress is allowed to
+     * complete. Has no effect if the group is not started.
+     */
+    public void stop() {
+        ScheduledExecutorService stoppedScheduler;
+        synchronized (this.monitor) {
+            stoppedScheduler = this.scheduler;
+            this.scheduler = null;
+        }
+        if (stoppedScheduler != null) {
+            stoppedScheduler.shutdown();
+        }
+    }
+
+    /**
+     * {@link #stop() Stops} this group, closes the checkers of all of its roots, and closes the watch service they
+     * shared.
+     */
+    @Override
+    public void close() {
+        stop();
+        List<FileSystemChecker> closedCheckers;
+        WatchKeyRouter closedWatchKeyRouter;
+        synchronized (this.monitor) {
+            closedCheckers = new ArrayList<FileSystemChecker>(this.checkers.values());
+            this.checkers.clear();
+            closedWatchKeyRouter = this.watchKeyRouter;
+            this.watchKeyRouter = null;
+        }
+        for (FileSystemChecker checker : closedCheckers) {
+            checker.close();
+        }
+        if (closedWatchKeyRouter != null) {
+            try {
+                closedWatchKeyRouter.close();
+            } catch (IOException e) {
+                if (this.logger != null) {
+                    this.logger.warn("FileSystemCheckerGroup could not close its watch service", e);
+                }
+            }
+        }
+    }
+
+    private List<FileSystemChecker> getCheckers() {
+        synchronized (this.monitor) {
+            return new ArrayList<FileSystemChecker>(this.checkers.values());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.File;
+
+/**
+ * Receives measurements from a {@link FileSystemChecker}. Set on the checker with
+ * {@link FileSystemCheckerOptions#setMetrics(FileSystemCheckerMetrics)}.
+ * <p/>
+ *
+ * Methods are called on the thread running {@link FileSystemChecker#check()}, while the check is in progress, so
+ * implementations should return quickly.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Implementations <code>must</code> be threadsafe.
+ *
+ * @see StandardFileSystemCheckerMetrics
+ */
+public interface FileSystemCheckerMetrics {
+
+    /**
+     * Signals the end of a check.
+     *
+     * @param durationNanos how long the check took, in nanoseconds, including notifying listeners
+     * @param fileCount the number of files examined by the check
+     * @param failed <code>true</code> if the check could not determine the files in the directory and was abandoned
+     */
+    void checkCompleted(long durationNanos, int fileCount, boolean failed);
+
+    /**
+     * Signals that listing a directory failed and is being retried.
+     *
+     * @param directory the directory being listed
+     */
+    void listingRetried(File directory);
+
+    /**
+     * Signals that a listener has returned from a notification.
+     *
+     * @param listener the listener that was notified
+     * @param durationNanos how long the listener took, in nanoseconds
+     */
+    void listenerNotified(FileSystemListener listener, long durationNanos);
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+/**
+ * Management interface of {@link StandardFileSystemCheckerMetrics}. Durations are in microseconds; percentiles are
+ * approximate, being the upper bound of a power of two bucket.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Implementations <code>must</code> be threadsafe.
+ *
+ */
+public interface FileSystemCheckerMetricsMXBean {
+
+    /**
+     * @return the number of checks completed
+     */
+    long getCheckCount();
+
+    /**
+     * @return the number of checks abandoned because the directory could not be listed
+     */
+    long getFailedCheckCount();
+
+    /**
+     * @return the number of files examined by the latest check
+     */
+    int getLastCheckFileCount();
+
+    /**
+     * @return the number of directory listings which had to be retried
+     */
+    long getListingRetryCount();
+
+    /**
+     * @return the mean duration of a check in microseconds
+     */
+    long getCheckMeanMicros();
+
+    /**
+     * @return the approximate 99th percentile duration of a check in microseconds
+     */
+    long getCheck99thPercentileMicros();
+
+    /**
+     * @return the longest duration of a check in microseconds
+     */
+    long getCheckMaxMicros();
+
+    /**
+     * @return the number of listener notifications
+     */
+    long getListenerNotificationCount();
+
+    /**
+     * @return the mean duration of a listener notification in microseconds
+     */
+    long getListenerMeanMicros();
+
+    /**
+     * @return the approximate 99th percentile duration of a listener notification in microseconds
+     */
+    long getListener99thPercentileMicros();
+
+    /**
+     * @return the longest duration of a listener notification in microseconds
+     */
+    long getListenerMaxMicros();
+
+    /**
+     * @return a description of the listener which took longest to return from a notification, or <code>null</code>
+     */
+    String getSlowestListener();
+
+    /**
+     * Resets all counters and histograms.
+     */
+    void reset();
+}
@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+
+/**
+ * Optional settings for a {@link FileSystemChecker}. The settings are read once when the checker is created, so a
+ * single <code>FileSystemCheckerOptions</code> may be reused to create several checkers.
+ * <p/>
+ * Setters return <code>this</code> to allow chaining.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Not thread-safe.
+ *
+ */
+public final class FileSystemCheckerOptions {
+
+    private String excludePattern;
+
+    private List<String> includeGlobs = Collections.emptyList();
+
+    private List<String> excludeGlobs = Collections.emptyList();
+
+    private Logger logger;
+
+    private boolean eventDriven;
+
+    private boolean recursive;
+
+    private boolean contentChecksums;
+
+    private File snapshotFile;
+
+    private FileSystemCheckerMetrics metrics;
+
+    /**
+     * Gets the regular expression for file names to exclude from monitoring.
+     *
+     * @return the exclude pattern, or <code>null</code> if no files are excluded
+     */
+    public String getExcludePattern() {
+        return this.excludePattern;
+    }
+
+    /**
+     * Sets the regular expression for file names to exclude from monitoring.
+     *
+     * @param excludePattern regular expression for files to exclude -- can be null
+     * @return these options
+     */
+    public FileSystemCheckerOptions setExcludePattern(String excludePattern) {
+        this.excludePattern = excludePattern;
+        return this;
+    }
+
+    /**
+     * Gets the glob patterns for the names of files to monitor.
+     *
+     * @return the include globs, empty if all files not excluded are monitored
+     * @see #setIncludeGlobs(String...)
+     */
+    public List<String> getIncludeGlobs() {
+        return this.includeGlobs;
+    }
+
+    /**
+     * Sets the glob patterns for the names of files to monitor, in the syntax of
+     * {@link java.nio.file.FileSystem#getPathMatcher(String) FileSystem.getPathMatcher} with the <code>glob</code>
+     * syntax, for example <code>"*.{jar,war}"</code>. When any are set, only files whose names match one of them are
+     * monitored. Globs are matched against the file name only and are applied while the directory is read, so entries
+     * which do not match are never examined. A recursive checker still descends into subdirectories whose names do not
+     * match, unless they are excluded.
+     *
+     * @param includeGlobs the include globs -- none to monitor all files
+     * @return these options
+     */
+    public FileSystemCheckerOptions setIncludeGlobs(String... includeGlobs) {
+        this.includeGlobs = Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(includeGlobs)));
+        return this;
+    }
+
+    /**
+     * Gets the glob patterns for the names of files and directories to exclude from monitoring.
+     *
+     * @return the exclude globs, possibly empty
+     * @see #setExcludeGlobs(String...)
+     */
+    public List<String> getExcludeGlobs() {
+        return this.excludeGlobs;
+    }
+
+    /**
+     * Sets the glob patterns for the names of files and directories to exclude from monitoring, for example
+     * <code>"*.tmp"</code> or <code>".*"</code>. Exclusions take precedence over {@link #setIncludeGlobs(String...)
+     * inclusions} and over recursion: an excluded directory is not descended into. Like the include globs, they are
+     * matched against the file name while the directory is read.
+     *
+     * @param excludeGlobs the exclude globs -- none to exclude nothing by glob
+     * @return these options
+     */
+    public FileSystemCheckerOptions setExcludeGlobs(String... excludeGlobs) {
+        this.excludeGlobs = Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(excludeGlobs)));
+        return this;
+    }
+
+    /**
+     * Gets the logger for diagnostics.
+     *
+     * @return the logger, or <code>null</code> for no diagnostics
+     */
+    public Logger getLogger() {
+        return this.logger;
+    }
+
+    /**
+     * Sets the logger for diagnostics.
+     *
+     * @param logger where to log diagnostics -- can be null
+     * @return these options
+     */
+    public FileSystemCheckerOptions setLogger(Logger logger) {
+        this.logger = logger;
+        return this;
+    }
+
+    /**
+     * Queries whether the checker is driven by file system notifications rather than by listing the directory on
+     * every check.
+     *
+     * @return <code>true</code> if event driven, otherwise <code>false</code>
+     * @see #setEventDriven(boolean)
+     */
+    public boolean isEventDriven() {
+        return this.eventDriven;
+    }
+
+    /**
+     * Selects event driven checking. When <code>true</code> the check directory is registered with a
+     * {@link java.nio.file.WatchService WatchService} and each {@link FileSystemChecker#check() check} re-examines only
+     * the entries reported as changed since the previous check, together with any files that are still being
+     * monitored. The whole directory is re-listed on the first check and whenever notifications have been lost.
+     * Subdirectories are registered too, even when not checking recursively, so that a change in a subdirectory is
+     * reported as a modification of the subdirectory entry, as it is when the directory is listed.
+     *
+     * @param eventDriven <code>true</code> to use file system notifications
+     * @return these options
+     */
+    public FileSystemCheckerOptions setEventDriven(boolean eventDriven) {
+        this.eventDriven = eventDriven;
+        return this;
+    }
+
+    /**
+     * Queries whether subdirectories of the check directory are checked too.
+     *
+     * @return <code>true</code> if checking is recursive, otherwise <code>false</code>
+     * @see #setRecursive(boolean)
+     */
+    public boolean isRecursive() {
+        return this.recursive;
+    }
+
+    /**
+     * Selects recursive checking. When <code>true</code> the checker descends into every subdirectory which is not
+     * excluded, and reports changes to the files and directories it finds there. Symbolic links to directories are
+     * reported but not descended into.
+     *
+     * @param recursive <code>true</code> to check subdirectories
+     * @return these options
+     */
+    public FileSystemCheckerOptions setRecursive(boolean recursive) {
+        this.recursive = recursive;
+        return this;
+    }
+
+    /**
+     * Queries whether file content is checksummed to tell real modifications from changes of metadata only.
+     *
+     * @return <code>true</code> if content is checksummed, otherwise <code>false</code>
+     * @see #setContentChecksums(boolean)
+     */
+    public boolean isContentChecksums() {
+        return this.contentChecksums;
+    }
+
+    /**
+     * Selects content checksums. When <code>true</code> a file is considered to have changed when either its last
+     * modified time or its size differs from the recorded one, not only when its last modified time increases. Once
+     * such a file has stabilised its content is checksummed, and the {@link FileSystemEvent#MODIFIED MODIFIED} event is
+     * suppressed if the checksum matches the one recorded when the file was last notified. A file re-copied with
+     * identical content is therefore not notified again.
+     * <p/>
+     * Every file is checksummed once when it is first notified, and again whenever it may have been modified.
+     *
+     * @param contentChecksums <code>true</code> to checksum file content
+     * @return these options
+     */
+    public FileSystemCheckerOptions setContentChecksums(boolean contentChecksums) {
+        this.contentChecksums = contentChecksums;
+        return this;
+    }
+
+    /**
+     * Gets the file in which the checker persists the state of the files it knows about.
+     *
+     * @return the snapshot file, or <code>null</code> if state is not persisted
+     * @see #setSnapshotFile(File)
+     */
+    public File getSnapshotFile() {
+        return this.snapshotFile;
+    }
+
+    /**
+     * Sets the file in which the checker persists the state of the files it knows about. The state is saved when the
+     * checker is {@link FileSystemChecker#close() closed} or {@link FileSystemChecker#saveSnapshot() asked to save it},
+     * and loaded when a checker is created. A checker which loads a snapshot does not notify
+     * {@link FileSystemEvent#INITIAL INITIAL} events. Instead its first checks notify the files which were created,
+     * modified or deleted since the snapshot was saved. A missing or unreadable snapshot file is ignored, and every file
+     * is notified as <code>INITIAL</code> as usual.
+     * <p/>
+     * The snapshot file should be outside the check directory.
+     *
+     * @param snapshotFile the snapshot file -- can be null
+     * @return these options
+     */
+    public FileSystemCheckerOptions setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        return this;
+    }
+
+    /**
+     * Gets the receiver of the checker's measurements.
+     *
+     * @return the metrics, or <code>null</code> if nothing is measured
+     */
+    public FileSystemCheckerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sets the receiver of the checker's measurements: the duration and size of each check, retried directory listings
+     * and the time taken by each listener notification. Use a separate {@link StandardFileSystemCheckerMetrics} for each
+     * checker to keep their measurements apart.
+     *
+     * @param metrics the metrics -- can be null
+     * @return these options
+     */
+    public FileSystemCheckerOptions setMetrics(FileSystemCheckerMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.virgo.util.common.Assert;
+import org.slf4j.Logger;
+
+/**
+ * Calls {@link FileSystemChecker#check()} repeatedly with an interval which adapts to the activity in the checked
+ * directory.
+ * <p/>
+ *
+ * A file which has been created or modified is only notified by the check after the one which noticed it, once its
+ * size has stopped changing. While the checker is {@link FileSystemChecker#isMonitoring() monitoring} such files the
+ * poller checks every <code>minInterval</code>, so they are notified soon after they stabilise. When the directory is
+ * quiet the interval is doubled after each check, up to <code>maxInterval</code>, so that an idle directory costs little.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ * Thread-safe.
+ *
+ */
+public final class FileSystemCheckerPoller implements Closeable {
+
+    private static final String THREAD_NAME = "file-system-checker-poller";
+
+    private final FileSystemChecker checker;
+
+    private final long minInterval;
+
+    private final long maxInterval;
+
+    private final TimeUnit unit;
+
+    private final Logger logger;
+
+    private final Object monitor = new Object();
+
+    private ScheduledExecutorService scheduler;
+
+    private long currentInterval;
+
+    /**
+     * Creates a new <code>FileSystemCheckerPoller</code> which, once {@link #start() started}, checks using the
+     * supplied {@link FileSystemChecker}.
+     *
+     * @param checker the checker to poll
+     * @param minInterval the time between checks while files are being monitored
+     * @param maxInterval the longest time between checks when the directory is quiet
+     * @param unit the unit of <code>minInterval</code> and <code>maxInterval</code>
+     * @param logger where to log diagnostics -- can be null
+     */
+    public FileSystemCheckerPoller(FileSystemChecker checker, long minInterval, long maxInterval, TimeUnit unit, Logger logger) {
+        Assert.notNull(checker, "checker must not be null");
+        Assert.isTrue(minInterval > 0, "minInterval must be positive");
+        Assert.isTrue(maxInterval >= minInterval, "maxInterval must not be less than minInterval");
+        Assert.notNull(unit, "unit must not be null");
+        this.checker = checker;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.unit = unit;
+        this.logger = logger;
+        this.currentInterval = minInterval;
+    }
+
+    /**
+     * Gets the time between checks while files are being monitored.
+     *
+     * @return the minimum interval, in the unit returned by {@link #getUnit()}
+     */
+    public long getMinInterval() {
+        return this.minInterval;
+    }
+
+    /**
+     * Gets the longest time between checks when the directory is quiet.
+     *
+     * @return the maximum interval, in the unit returned by {@link #getUnit()}
+     */
+    public long getMaxInterval() {
+        return this.maxInterval;
+    }
+
+    /**
+     * Gets the time this poller will wait after the latest check before checking again.
+     *
+     * @return the current interval, in the unit returned by {@link #getUnit()}
+     */
+    public long getCurrentInterval() {
+        synchronized (this.monitor) {
+            return this.currentInterval;
+        }
+    }
+
+    /**
+     * Gets the unit of the intervals of this poller.
+     *
+     * @return the unit
+     */
+    public TimeUnit getUnit() {
+        return this.unit;
+    }
+
+    /**
+     * Starts polling on this poller's thread. The first check is made immediately. Has no effect if the poller is
+     * already started.
+     */
+    public void start() {
+        synchronized (this.monitor) {
+            if (this.scheduler == null) {
+                this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, THREAD_NAME);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                this.currentInterval = this.minInterval;
+                schedule(this.scheduler, 0);
+            }
+        }
+    }
+
+    /**
+     * Stops polling. A check which is in progress is allowed to complete. Has no effect if the poller is not started.
+     */
+    public void stop() {
+        ScheduledExecutorService stoppedScheduler;
+        synchronized (this.monitor) {
+            stoppedScheduler = this.scheduler;
+            this.scheduler = null;
+        }
+        if (stoppedScheduler != null) {
+            stoppedScheduler.shutdown();
+        }
+    }
+
+    /**
+     * {@link #stop() Stops} this poller. The checker is not closed.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+    private void schedule(final ScheduledExecutorService owningScheduler, long delay) {
+        owningScheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                poll(owningScheduler);
+            }
+        }, delay, this.unit);
+    }
+
+    private void poll(ScheduledExecutorService owningScheduler) {
+        try {
+            this.checker.check();
+        } catch (RuntimeException e) {
+            if (this.logger != null) {
+                this.logger.warn("FileSystemCheckerPoller caught exception from check()", e);
+            }
+        }
+        boolean monitoring = this.checker.isMonitoring();
+        synchronized (this.monitor) {
+            if (this.scheduler != owningScheduler) {
+                // stopped, and possibly restarted, while checking
+                return;
+            }
+            if (monitoring) {
+                this.currentInterval = this.minInterval;
+            } else {
+                this.currentInterval = this.currentInterval > this.maxInterval / 2 ? this.maxInterval : this.currentInterval * 2;
+            }
+            schedule(owningScheduler, this.currentInterval);
+        }
+    }
+}
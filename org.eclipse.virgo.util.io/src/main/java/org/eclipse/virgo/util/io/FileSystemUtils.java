@@ -16,6 +16,14 @@ import java.io.FileFilter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.eclipse.virgo.util.common.Assert;
 import org.slf4j.Logger;
@@ -135,6 +143,49 @@ public final class FileSystemUtils {
         return deleteRecursively(new File(path));
     }
 
+    /**
+     * Delete the supplied {@link File} and, for directories, any nested directories or files, in the background,
+     * deleting the contents of different directories concurrently on the supplied {@link ForkJoinPool}.<p/>
+     * 
+     * Before this method returns, <code>root</code> is renamed to a hidden tombstone in the same directory, so that its
+     * path can be reused at once. If it cannot be renamed it is deleted where it is. Symbolic links are deleted, not
+     * followed.<p/>
+     * 
+     * Unlike {@link #deleteRecursively(File)}, a failure to delete one file or directory does not stop the others being
+     * deleted, and the failures are reported: the returned <code>Future</code>'s <code>get</code> method then throws an
+     * {@link java.util.concurrent.ExecutionException ExecutionException} whose cause is a {@link FatalIOException}
+     * with the first failure as its cause and the others {@link Throwable#getSuppressed() suppressed}.<p/>
+     * 
+     * If the delete fails, or the process exits before it finishes, the tombstone is left behind. The tombstones left in
+     * a directory can be deleted with {@link #deleteTombstones(File, ForkJoinPool)}.
+     * 
+     * @param root the root <code>File</code> to delete.
+     * @param pool the pool to delete on.
+     * @return a <code>Future</code> which completes when the delete has finished.
+     */
+    public static Future<Void> deleteRecursivelyAsync(File root, ForkJoinPool pool) {
+        Assert.notNull(root, "'root' must not be null.");
+        Assert.notNull(pool, "'pool' must not be null.");
+        return ParallelTreeDeleter.delete(root, pool);
+    }
+
+    /**
+     * Delete, in the background on the supplied {@link ForkJoinPool}, the tombstones left in the supplied directory by
+     * {@link #deleteRecursivelyAsync(File, ForkJoinPool)} deletes which failed or did not finish. It must not be called
+     * while deletes in the directory may still be running, so is typically called on startup.<p/>
+     * 
+     * Failures are reported as for {@link #deleteRecursivelyAsync(File, ForkJoinPool)}.
+     * 
+     * @param directory the directory containing the tombstones.
+     * @param pool the pool to delete on.
+     * @return a <code>Future</code> which completes when the tombstones have been deleted.
+     */
+    public static Future<Void> deleteTombstones(File directory, ForkJoinPool pool) {
+        Assert.notNull(directory, "'directory' must not be null.");
+        Assert.notNull(pool, "'pool' must not be null.");
+        return ParallelTreeDeleter.sweep(directory, pool);
+    }
+
     /**
      * Generate array of {@link String}s of the names of the files in the directory <code>dir</code> 
      * (just like {@link File#list()}).
@@ -336,6 +387,48 @@ public final class FileSystemUtils {
         return files;
     }
 
+    /**
+     * Generate array of {@link File}s, one for each entry in the directory <code>dir</code> accepted by <code>filter</code>.
+     * The directory is read with a {@link DirectoryStream}, so no <code>File</code> is created for a rejected entry.
+     * This function never returns <strong><code>null</code></strong>; like the other <code>listFiles</code> functions it
+     * retries once and then throws an exception if it cannot determine the files.
+     *
+     * @param dir directory file for which the files should be generated.
+     * @param filter filter on the directory entries
+     * @param logger where to log warnings or errors, if not null
+     * @param metrics where to signal a retry, if not null
+     * @return array of {@link File}s; may be the empty array.
+     * @throws FatalIOException when the directory cannot be read even after a retry.
+     */
+    static File[] listFiles(File dir, DirectoryStream.Filter<? super Path> filter, Logger logger, FileSystemCheckerMetrics metrics) throws FatalIOException {
+        File[] files = listEntries(dir, filter);
+        if (files==null) {
+            if (logger!=null) logger.warn("'" + dir + "' could not be read with a DirectoryStream first time.");
+            if (metrics!=null) metrics.listingRetried(dir);
+            preRetryFileOp(dir, logger);
+            files = listEntries(dir, filter);
+        }
+        if (files==null) {
+            if (logger!=null) logger.error("'" + dir + "' could not be read with a DirectoryStream on retry.");
+            throw new FatalIOException("listFiles(DirectoryStream.Filter) failed for file " + dir);
+        }
+        return files;
+    }
+
+    private static File[] listEntries(File dir, DirectoryStream.Filter<? super Path> filter) {
+        List<File> files = new ArrayList<File>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath(), filter)) {
+            for (Path entry : entries) {
+                files.add(entry.toFile());
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (DirectoryIteratorException e) {
+            return null;
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
     /**
      * This method is designed to allow the underlying file system time to 're-group' before trying the operation again.
      * <br/>It invokes an operation that will potentially involve some I/O so that transient problems with file access
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Brings a directory into line with the contents of a Zip file, writing only the entries which differ from what is
+ * already on disk.
+ * <p/>
+ *
+ * An existing file is left alone if its size and CRC-32 match those recorded for its entry in the Zip file's central
+ * directory; the CRC-32 is only computed when the sizes match. Any other file entry is extracted. Files and directories
+ * in the destination which do not correspond to an entry, or to the parent directory of an entry, are deleted.
+ * <p/>
+ *
+ * An entry is extracted to a temporary file beside its target, which is then moved over the target. An existing file
+ * is therefore replaced rather than written in place, so a file hard linked into the destination, for example by
+ * {@link PathReference#cloneTo(PathReference, boolean, PathFilter) cloneTo}, is not changed through its other names, and
+ * an extraction which fails leaves no partly written file.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe.
+ *
+ */
+final class IncrementalZipExtractor {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private IncrementalZipExtractor() {
+    }
+
+    /**
+     * Makes the contents of a directory the same as those of a Zip file.
+     *
+     * @param zipFile the Zip file
+     * @param destination the directory, which must exist
+     * @return the number of file entries which were extracted because they were missing or differed
+     * @throws IOException if an entry cannot be extracted or the Zip file cannot be read
+     */
+    static int extract(File zipFile, PathReference destination) throws IOException {
+        File root = destination.toFile();
+        Set<File> retained = new HashSet<File>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int extracted = 0;
+        ZipFile zip = new ZipFile(zipFile);
+        FileChannel zipChannel = null;
+        try {
+            zipChannel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ);
+            ZipCentralDirectory centralDirectory = ZipUtils.readCentralDirectory(zipChannel);
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                File target = destination.newChild(entry.getName()).toFile();
+                retainWithParents(target, root, retained);
+                if (entry.isDirectory()) {
+                    createDirectory(target);
+                } else if (!isUnchanged(entry, target, buffer)) {
+                    writeEntry(zip, centralDirectory, entry, target, buffer);
+                    extracted++;
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(zipChannel);
+            zip.close();
+        }
+        deleteUnretained(root, retained);
+        return extracted;
+    }
+
+    private static void retainWithParents(File target, File root, Set<File> retained) {
+        File file = target;
+        while (file != null && !file.equals(root) && retained.add(file)) {
+            file = file.getParentFile();
+        }
+    }
+
+    private static boolean isUnchanged(ZipEntry entry, File target, byte[] buffer) throws IOException {
+        if (!target.isFile() || entry.getSize() != target.length() || entry.getCrc() == -1) {
+            return false;
+        }
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+            int count;
+            while ((count = channel.read(byteBuffer)) != -1) {
+                crc.update(buffer, 0, count);
+                byteBuffer.clear();
+            }
+        }
+        return crc.getValue() == entry.getCrc();
+    }
+
+    private static void createDirectory(File directory) {
+        if (directory.isFile() && !directory.delete()) {
+            throw new FatalIOException("Unable to delete file " + directory + " to replace it with a directory");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new FatalIOException("Unable to create directory " + directory);
+        }
+    }
+
+    private static void writeEntry(ZipFile zip, ZipCentralDirectory centralDirectory, ZipEntry entry, File target, byte[] buffer)
+        throws IOException {
+        if (target.isDirectory() && !FileSystemUtils.deleteRecursively(target)) {
+            throw new FatalIOException("Unable to delete directory " + target + " to replace it with a file");
+        }
+        File directory = target.getParentFile();
+        createDirectory(directory);
+        File temporary = File.createTempFile("." + target.getName() + "-", TEMPORARY_SUFFIX, directory);
+        try {
+            if (!ZipUtils.transferStoredEntry(centralDirectory, entry, temporary)) {
+                try (InputStream in = zip.getInputStream(entry); FileOutputStream out = new FileOutputStream(temporary)) {
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                }
+            }
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    private static void deleteUnretained(File directory, Set<File> retained) {
+        for (File file : FileSystemUtils.listFiles(directory)) {
+            if (!retained.contains(file)) {
+                if (!FileSystemUtils.deleteRecursively(file)) {
+                    throw new FatalIOException("Unable to delete " + file);
+                }
+            } else if (file.isDirectory()) {
+                deleteUnretained(file, retained);
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.virgo.util.common.Assert;
+
+/**
+ * An on-disk cache of transformed JAR files, used by {@link JarTransformingURLConnection} so that opening the same URL
+ * repeatedly reads the result of one transformation from disk rather than transforming the JAR every time.
+ * <p/>
+ *
+ * A transformed JAR is keyed by the source URL, the version of its content, an identity supplied for the transformer,
+ * and whether a manifest is ensured. The version is the last modified time and length reported by the URL's connection
+ * or, if the connection does not report a last modified time, a SHA-256 digest of the content, computed as the content
+ * is copied to a temporary file from which it is transformed on a miss. Changing what a transformer does therefore
+ * needs a new transformer identity.
+ * <p/>
+ *
+ * The total size of the cached JARs is bounded, the least recently used being deleted when the bound is exceeded. A
+ * transformed JAR larger than the bound is not cached, but read from a temporary file which is deleted when the
+ * returned stream is closed. The cache directory is scanned when the cache is created, so
+ * the cache survives restarts, with the last modified times of the cached files recording their use.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe. Concurrent misses for the same key may each transform the JAR, the last to finish replacing the others.
+ * A cache directory must not be shared by more than one cache.
+ *
+ */
+public final class JarTransformationCache {
+
+    private static final String CACHED_SUFFIX = ".jar";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final int KEY_LENGTH = 64;
+
+    private final File directory;
+
+    private final long maxSize;
+
+    private final Object monitor = new Object();
+
+    /**
+     * Sizes of the cached files by key, in access order. Guarded by <code>monitor</code>.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private long size;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Creates a new <code>JarTransformationCache</code> in the supplied directory, which is created if necessary. Cached
+     * JARs left in the directory by an earlier cache are reused.
+     *
+     * @param directory the cache directory
+     * @param maxSize the maximum total size, in bytes, of the cached JARs
+     */
+    public JarTransformationCache(PathReference directory, long maxSize) {
+        Assert.isTrue(maxSize > 0, "maxSize must be positive");
+        this.directory = directory.toFile();
+        this.maxSize = maxSize;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs() && !this.directory.isDirectory()) {
+            throw new FatalIOException("Unable to create cache directory '" + this.directory + "'");
+        }
+        load();
+    }
+
+    private void load() {
+        File[] temporaryFiles = this.directory.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(TEMPORARY_SUFFIX);
+            }
+        });
+        if (temporaryFiles != null) {
+            for (File temporaryFile : temporaryFiles) {
+                temporaryFile.delete();
+            }
+        }
+
+        File[] cachedFiles = this.directory.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.length() == KEY_LENGTH + CACHED_SUFFIX.length() && name.endsWith(CACHED_SUFFIX);
+            }
+        });
+        if (cachedFiles == null) {
+            throw new FatalIOException("Unable to list cache directory '" + this.directory + "'");
+        }
+        Arrays.sort(cachedFiles, new Comparator<File>() {
+
+            @Override
+            public int compare(File a, File b) {
+                long aModified = a.lastModified();
+                long bModified = b.lastModified();
+                return aModified < bModified ? -1 : (aModified == bModified ? 0 : 1);
+            }
+        });
+        synchronized (this.monitor) {
+            for (File cachedFile : cachedFiles) {
+                String name = cachedFile.getName();
+                long length = cachedFile.length();
+                this.entries.put(name.substring(0, KEY_LENGTH), length);
+                this.size += length;
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Gets the content of the JAR at the supplied {@link URL} transformed by the supplied {@link JarTransformer}, from
+     * the cache if possible, otherwise by transforming the JAR and caching the result.
+     *
+     * @param url the <code>URL</code> of the JAR
+     * @param transformer the <code>JarTransformer</code>
+     * @param transformerId the identity of the transformation <code>transformer</code> performs
+     * @param ensureManifestIsPresent <code>true</code> if the presence of a manifest should be ensured
+     * @return a stream of the transformed JAR, which the caller must close
+     * @throws IOException if the JAR cannot be read or transformed
+     */
+    public InputStream getInputStream(URL url, JarTransformer transformer, String transformerId, boolean ensureManifestIsPresent)
+        throws IOException {
+        URLConnection connection = url.openConnection();
+        File contentFile = null;
+        try {
+            String version;
+            long lastModified = connection.getLastModified();
+            if (lastModified != 0) {
+                version = lastModified + ":" + connection.getContentLengthLong();
+            } else {
+                contentFile = File.createTempFile("content", TEMPORARY_SUFFIX, this.directory);
+                version = "sha256:" + toHex(copyAndDigest(connection, contentFile));
+            }
+            String key = toHex(digest((url.toExternalForm() + '\0' + version + '\0' + transformerId + '\0' + ensureManifestIsPresent).getBytes(
+                StandardCharsets.UTF_8)));
+
+            File cachedFile = new File(this.directory, key + CACHED_SUFFIX);
+            InputStream cached = openCached(key, cachedFile);
+            if (cached != null) {
+                if (contentFile == null) {
+                    // querying the connection's headers may have opened its stream
+                    IOUtils.closeQuietly(connection.getInputStream());
+                }
+                return cached;
+            }
+
+            InputStream rawInputStream = contentFile == null ? connection.getInputStream() : new FileInputStream(contentFile);
+            return transform(key, cachedFile, rawInputStream, transformer, ensureManifestIsPresent);
+        } finally {
+            if (contentFile != null) {
+                contentFile.delete();
+            }
+        }
+    }
+
+    private InputStream transform(String key, File cachedFile, InputStream rawInputStream, JarTransformer transformer,
+        boolean ensureManifestIsPresent) throws IOException {
+        File temporaryFile;
+        try {
+            temporaryFile = File.createTempFile(key, TEMPORARY_SUFFIX, this.directory);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(rawInputStream);
+            throw e;
+        }
+        boolean uncached = false;
+        try {
+            try (OutputStream out = new FileOutputStream(temporaryFile)) {
+                transformer.transform(rawInputStream, out, ensureManifestIsPresent);
+            } finally {
+                IOUtils.closeQuietly(rawInputStream);
+            }
+            long length = temporaryFile.length();
+            if (length > this.maxSize) {
+                InputStream uncachedStream = new DeletingFileInputStream(temporaryFile);
+                uncached = true;
+                return uncachedStream;
+            }
+            move(temporaryFile, cachedFile);
+            synchronized (this.monitor) {
+                Long replaced = this.entries.put(key, length);
+                if (replaced != null) {
+                    this.size -= replaced;
+                }
+                this.size += length;
+                evict();
+            }
+            return new FileInputStream(cachedFile);
+        } finally {
+            if (!uncached) {
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    private InputStream openCached(String key, File cachedFile) {
+        synchronized (this.monitor) {
+            if (this.entries.get(key) != null) {
+                try {
+                    InputStream cached = new FileInputStream(cachedFile);
+                    cachedFile.setLastModified(System.currentTimeMillis());
+                    this.hits++;
+                    return cached;
+                } catch (IOException e) {
+                    // deleted from outside the cache, so transform again
+                    this.size -= this.entries.remove(key);
+                }
+            }
+            this.misses++;
+            return null;
+        }
+    }
+
+    /**
+     * Deletes least recently used files until the total size is within bounds. Called holding <code>monitor</code>.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = this.entries.entrySet().iterator();
+        while (this.size > this.maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(this.directory, eldest.getKey() + CACHED_SUFFIX).delete();
+            this.size -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Copies the connection's content to the supplied file, digesting it as it is copied.
+     *
+     * @return the SHA-256 digest of the content
+     */
+    private static byte[] copyAndDigest(URLConnection connection, File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = BufferPool.takeBytes();
+        try (InputStream in = connection.getInputStream(); OutputStream out = new FileOutputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.giveBytes(buffer);
+        }
+        return digest.digest();
+    }
+
+    private static byte[] digest(byte[] bytes) {
+        return newDigest().digest(bytes);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Gets the total size of the cached JARs.
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        synchronized (this.monitor) {
+            return this.size;
+        }
+    }
+
+    /**
+     * Gets the number of requests satisfied from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        synchronized (this.monitor) {
+            return this.hits;
+        }
+    }
+
+    /**
+     * Gets the number of requests which needed a JAR to be transformed.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        synchronized (this.monitor) {
+            return this.misses;
+        }
+    }
+
+    /**
+     * A stream of a temporary file which deletes the file when closed.
+     */
+    private static final class DeletingFileInputStream extends FileInputStream {
+
+        private final File file;
+
+        DeletingFileInputStream(File file) throws FileNotFoundException {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                this.file.delete();
+            }
+        }
+    }
+}
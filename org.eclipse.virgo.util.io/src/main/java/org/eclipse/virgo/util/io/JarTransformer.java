@@ -13,12 +13,14 @@ package org.eclipse.virgo.util.io;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
@@ -96,13 +98,77 @@ public final class JarTransformer {
         jos.finish();
     }
 
+    /**
+     * Transforms the JAR file at {@link PathReference jarFile} and writes the results to <code>stream</code>.
+     * <p/>
+     * Unlike {@link #transform(InputStream, OutputStream)}, the compressed data of each entry that the callback does not
+     * transform is copied to <code>stream</code> as it is, without being decompressed and compressed again, so
+     * transforming a few entries of a large JAR costs little more than copying it. Entries the callback writes are
+     * buffered in memory until they are closed. The callback is invoked for entries in the order of the JAR's central
+     * directory.
+     * 
+     * @param jarFile the JAR file to transform.
+     * @param stream the {@link OutputStream} to write the transformed JAR to.
+     * @throws IOException if the JAR cannot be transformed.
+     */
+    public void transform(PathReference jarFile, OutputStream stream) throws IOException {
+        transform(jarFile, stream, false);
+    }
+
+    /**
+     * Transforms the JAR file at {@link PathReference jarFile} and writes the results to <code>stream</code>, copying
+     * untransformed entries as for {@link #transform(PathReference, OutputStream)}.
+     * <p/>
+     * A JAR file which needs ZIP64 extensions is transformed as by {@link #transform(InputStream, OutputStream, boolean)}
+     * instead.
+     * 
+     * @param jarFile the JAR file to transform.
+     * @param stream the {@link OutputStream} to write the transformed JAR to.
+     * @param ensureManifestIsPresent if <code>true</code> ensures that the transformed JAR contains a manifest.
+     * @throws IOException if the JAR cannot be transformed.
+     */
+    public void transform(PathReference jarFile, OutputStream stream, boolean ensureManifestIsPresent) throws IOException {
+        transform(jarFile, stream, ensureManifestIsPresent, null);
+    }
+
+    /**
+     * Transforms the JAR file at {@link PathReference jarFile} and writes the results to <code>stream</code>, copying
+     * untransformed entries as for {@link #transform(PathReference, OutputStream)}.
+     * <p/>
+     * If the callback is a {@link ThreadSafeJarTransformerCallback}, it is invoked for different entries concurrently
+     * on the supplied {@link ForkJoinPool}, and in no particular order, while the calling thread writes the results to
+     * <code>stream</code> in the order of the JAR's central directory. Otherwise, or if <code>pool</code> is
+     * <code>null</code>, the callback is invoked on the calling thread, one entry at a time.
+     * <p/>
+     * A JAR file which needs ZIP64 extensions is transformed as by {@link #transform(InputStream, OutputStream, boolean)}
+     * instead, on the calling thread.
+     * 
+     * @param jarFile the JAR file to transform.
+     * @param stream the {@link OutputStream} to write the transformed JAR to.
+     * @param ensureManifestIsPresent if <code>true</code> ensures that the transformed JAR contains a manifest.
+     * @param pool the <code>ForkJoinPool</code> to invoke a thread-safe callback on, or <code>null</code>.
+     * @throws IOException if the JAR cannot be transformed.
+     */
+    public void transform(PathReference jarFile, OutputStream stream, boolean ensureManifestIsPresent, ForkJoinPool pool) throws IOException {
+        ForkJoinPool callbackPool = this.callback instanceof ThreadSafeJarTransformerCallback ? pool : null;
+        if (!new PassthroughJarTransformer(this.callback).transform(jarFile, stream, ensureManifestIsPresent, getDefaultManifest(), callbackPool)) {
+            try (InputStream is = new FileInputStream(jarFile.toFile())) {
+                transform(is, stream, ensureManifestIsPresent);
+            }
+        }
+    }
+
     private InputStream getDefaultManifestStream() {
+        return new ByteArrayInputStream(getDefaultManifest());
+    }
+
+    private byte[] getDefaultManifest() {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(baos, StandardCharsets.UTF_8))) {
             writer.println(MANIFEST_VERSION_HEADER);
             writer.println();
         }
-        return new ByteArrayInputStream(baos.toByteArray());
+        return baos.toByteArray();
     }
 
     private void transformEntry(InputStream inputStream, ZipEntry entry, JarOutputStream jos) throws IOException {
@@ -114,10 +180,14 @@ public final class JarTransformer {
     }
 
     private void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
-        byte[] buffer = new byte[1024];
-        int read;
-        while ((read = inputStream.read(buffer)) > 0) {
-            outputStream.write(buffer, 0, read);
+        byte[] buffer = BufferPool.takeBytes();
+        try {
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.giveBytes(buffer);
         }
     }
 
@@ -149,4 +219,17 @@ public final class JarTransformer {
          */
         boolean transformEntry(String entryName, InputStream is, JarOutputStream os) throws IOException;
     }
+
+    /**
+     * A {@link JarTransformerCallback} which may be invoked for different entries concurrently, allowing
+     * {@link JarTransformer#transform(PathReference, OutputStream, boolean, ForkJoinPool)} to transform entries in
+     * parallel.
+     * <p/>
+     * Each invocation is given its own <code>JarOutputStream</code>, so implementations need only make any state they
+     * share between entries thread-safe.
+     * 
+     * @see JarTransformer
+     */
+    public static interface ThreadSafeJarTransformerCallback extends JarTransformerCallback {
+    }
 }
@@ -32,6 +32,10 @@ public final class JarTransformingURLConnection extends URLConnection {
     
     private final boolean ensureManifestIsPresent;
 
+    private final JarTransformationCache cache;
+
+    private final String transformerId;
+
     /**
      * Creates a new <code>JarTransformingURLConnection</code> that will provide content from the JAR identified by
      * <code>url</code> transformed by <code>transformer</code>.
@@ -53,13 +57,41 @@ public final class JarTransformingURLConnection extends URLConnection {
      * @param ensureManifestIsPresent <code>true</code> if the presence of a MANIFEST.MF should be ensured.
      */
     public JarTransformingURLConnection(URL url, JarTransformer transformer, boolean ensureManifestIsPresent) {
+        this(url, transformer, ensureManifestIsPresent, null, null);
+    }
+
+    /**
+     * Creates a new <code>JarTransformingURLConnection</code> that will provide content from the JAR identified by
+     * <code>url</code> transformed by <code>transformer</code>, reusing the results of earlier transformations held in
+     * the supplied {@link JarTransformationCache}.
+     * <p/>
+     * The <code>transformerId</code> identifies what <code>transformer</code> does: connections for the same JAR and
+     * the same <code>transformerId</code> share cached results, so a transformer which changes its behaviour must be
+     * given a new identity.
+     * 
+     * @param url the {@link URL} of the JAR file.
+     * @param transformer the <code>JarTransformer</code> to apply as content is being read.
+     * @param ensureManifestIsPresent <code>true</code> if the presence of a MANIFEST.MF should be ensured.
+     * @param cache the <code>JarTransformationCache</code> to use, or <code>null</code> to transform on every read.
+     * @param transformerId the identity of the transformation, which must not be <code>null</code> if a cache is used.
+     */
+    public JarTransformingURLConnection(URL url, JarTransformer transformer, boolean ensureManifestIsPresent, JarTransformationCache cache,
+        String transformerId) {
         super(url);
+        if (cache != null && transformerId == null) {
+            throw new IllegalArgumentException("Transformer id must not be null when a cache is used");
+        }
         this.transformer = transformer;
         this.ensureManifestIsPresent = ensureManifestIsPresent;
+        this.cache = cache;
+        this.transformerId = transformerId;
     }
 
     @Override
     public InputStream getInputStream() throws IOException {
+        if (this.cache != null) {
+            return this.cache.getInputStream(url, this.transformer, this.transformerId, this.ensureManifestIsPresent);
+        }
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         InputStream rawInputStream = url.openStream();
         try {
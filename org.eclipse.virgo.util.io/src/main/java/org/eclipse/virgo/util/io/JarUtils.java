@@ -57,4 +57,24 @@ public final class JarUtils {
     public static void unpackToDestructive(PathReference jarFile, PathReference dest) throws IOException {
         ZipUtils.unzipToDestructive(jarFile, dest);
     }
+
+    /**
+     * Unpacks the JAR file at {@link PathReference jarFile} to the directory <code>dest</code>, rewriting only what has
+     * changed.<p/>
+     * 
+     * If the supplied <code>dest</code> {@link PathReference} does not exist, it is created as a directory and the
+     * JAR file is unpacked <strong>directly</strong> into the newly created directory.<p/>
+     * 
+     * If the supplied <code>dest</code> <code>PathReference</code> already exists and is a directory then its content
+     * is brought into line with the JAR file: entries whose size or CRC-32 differ from the file on disk are unpacked,
+     * unchanged files are left alone, and files which are not in the JAR file are deleted.
+     * 
+     * @param jarFile the JAR file to unpack
+     * @param dest the destination directory
+     * @throws IOException if an error occurs during unpack.
+     * @see ZipUtils#unzipToIncremental(PathReference, PathReference)
+     */
+    public static void unpackToIncremental(PathReference jarFile, PathReference dest) throws IOException {
+        ZipUtils.unzipToIncremental(jarFile, dest);
+    }
 }
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with a bucket for each power of two microseconds. Recording a duration allocates nothing and
+ * takes no locks.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe. A snapshot taken while durations are being recorded may be slightly inconsistent.
+ *
+ */
+final class LatencyHistogram {
+
+    /**
+     * Bucket <code>i</code> counts durations of less than <code>2^i</code> microseconds which do not fit an earlier
+     * bucket; the last bucket also counts anything longer.
+     */
+    private static final int BUCKET_COUNT = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long durationNanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, durationNanos));
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        this.buckets.incrementAndGet(bucket);
+        this.count.incrementAndGet();
+        this.totalMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = this.maxMicros.get())) {
+            if (this.maxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+
+    long count() {
+        return this.count.get();
+    }
+
+    long meanMicros() {
+        long n = this.count.get();
+        return n == 0 ? 0 : this.totalMicros.get() / n;
+    }
+
+    long maxMicros() {
+        return this.maxMicros.get();
+    }
+
+    /**
+     * Gets the upper bound of the bucket holding the supplied percentile, capped at the maximum recorded duration.
+     *
+     * @param percentile between 0 and 100
+     * @return the approximate percentile in microseconds, or 0 if nothing has been recorded
+     */
+    long percentileMicros(double percentile) {
+        long n = this.count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += this.buckets.get(bucket);
+            if (seen >= threshold) {
+                return Math.min((1L << bucket) - 1, this.maxMicros.get());
+            }
+        }
+        return this.maxMicros.get();
+    }
+
+    void reset() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            this.buckets.set(bucket, 0);
+        }
+        this.count.set(0);
+        this.totalMicros.set(0);
+        this.maxMicros.set(0);
+    }
+}
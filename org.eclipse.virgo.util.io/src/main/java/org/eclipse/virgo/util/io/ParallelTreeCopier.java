@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.eclipse.virgo.util.io.PathReference.PathFilter;
+
+/**
+ * Copies the contents of a directory concurrently on a {@link ForkJoinPool}.
+ * <p/>
+ *
+ * The source tree is walked once, with {@link Files#walkFileTree}, on the calling thread, which creates the target
+ * directories as it goes and collects the files to copy. The files are then divided among fork-join tasks by count and
+ * by size, so a tree of many small files and a tree of a few huge ones both spread across the pool. A
+ * {@link PathFilter} is applied as by {@link PathReference#copy(PathReference, boolean, PathFilter)}: a file or
+ * directory it does not match is skipped, with everything beneath it.
+ * <p/>
+ *
+ * A file which cannot be copied does not stop the others being copied. The failures are reported together once the
+ * copy is complete.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe.
+ *
+ */
+final class ParallelTreeCopier {
+
+    private static final int MAX_FILES_PER_TASK = 16;
+
+    private static final long MAX_BYTES_PER_TASK = 4 * 1024 * 1024;
+
+    private final List<File> sources = new ArrayList<File>();
+
+    private final List<File> targets = new ArrayList<File>();
+
+    /**
+     * <code>cumulativeSizes[i]</code> is the total size of the first <code>i</code> files, as reported by the walk.
+     * Set once the tree has been walked.
+     */
+    private long[] cumulativeSizes;
+
+    /**
+     * The total size of the files walked so far.
+     */
+    private long walkedSize;
+
+    /**
+     * The total size of the files before each file walked, growing to hold as many files as the walk finds.
+     */
+    private long[] walkedSizes = new long[16];
+
+    private final Queue<IOException> failures = new ConcurrentLinkedQueue<IOException>();
+
+    private ParallelTreeCopier() {
+    }
+
+    /**
+     * Copies the contents of a directory into another directory.
+     *
+     * @param source the directory to copy the contents of
+     * @param target the directory to copy into, which must exist
+     * @param filter the filter for files and directories to copy, or <code>null</code> to copy everything
+     * @param pool the pool to copy on
+     * @throws FatalIOException if any file or directory cannot be copied. The exception for the first failure is its
+     *         cause, and the exceptions for the others are {@link Throwable#getSuppressed() suppressed}
+     */
+    static void copy(File source, File target, PathFilter filter, ForkJoinPool pool) {
+        ParallelTreeCopier copier = new ParallelTreeCopier();
+        copier.walk(source.toPath(), target.toPath(), filter);
+        copier.copyFiles(pool);
+        int failureCount = copier.failures.size();
+        IOException failure = copier.failures.poll();
+        if (failure != null) {
+            FatalIOException fatal = new FatalIOException("Cannot copy " + failureCount + " path" + (failureCount == 1 ? "" : "s") + " from '"
+                + source + "' to '" + target + "'.", failure);
+            IOException suppressed;
+            while ((suppressed = copier.failures.poll()) != null) {
+                fatal.addSuppressed(suppressed);
+            }
+            throw fatal;
+        }
+    }
+
+    private void walk(final Path source, final Path target, final PathFilter filter) {
+        try {
+            Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                    if (directory.equals(source)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (filter != null && !filter.matches(new PathReference(directory.toFile()))) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    Path targetDirectory = target.resolve(source.relativize(directory));
+                    try {
+                        Files.createDirectories(targetDirectory);
+                        return FileVisitResult.CONTINUE;
+                    } catch (IOException e) {
+                        failed(directory, targetDirectory, e);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (filter == null || filter.matches(new PathReference(file.toFile()))) {
+                        ParallelTreeCopier.this.sources.add(file.toFile());
+                        ParallelTreeCopier.this.targets.add(target.resolve(source.relativize(file)).toFile());
+                        walked(attributes.size());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    failed(file, target.resolve(source.relativize(file)), e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            failed(source, target, e);
+        }
+
+        this.cumulativeSizes = Arrays.copyOf(this.walkedSizes, this.sources.size() + 1);
+        this.cumulativeSizes[this.sources.size()] = this.walkedSize;
+        this.walkedSizes = null;
+    }
+
+    /**
+     * Records the size of the file just added to <code>sources</code>.
+     */
+    private void walked(long size) {
+        int index = this.sources.size() - 1;
+        if (index == this.walkedSizes.length) {
+            this.walkedSizes = Arrays.copyOf(this.walkedSizes, 2 * index);
+        }
+        this.walkedSizes[index] = this.walkedSize;
+        this.walkedSize += size;
+    }
+
+    private void failed(Path source, Path target, IOException e) {
+        this.failures.add(new IOException("Cannot copy '" + source + "' to '" + target + "'.", e));
+    }
+
+    private void copyFiles(ForkJoinPool pool) {
+        if (!this.sources.isEmpty()) {
+            pool.invoke(new CopyTask(0, this.sources.size()));
+        }
+    }
+
+    private void copyFiles(int from, int to) {
+        for (int index = from; index < to; index++) {
+            File source = this.sources.get(index);
+            File target = this.targets.get(index);
+            try {
+                FileCopyUtils.copyLarge(source, target);
+            } catch (IOException e) {
+                failed(source.toPath(), target.toPath(), e);
+            } catch (RuntimeException e) {
+                failed(source.toPath(), target.toPath(), new IOException(e));
+            }
+        }
+    }
+
+    private final class CopyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+
+        private final int to;
+
+        CopyTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int count = this.to - this.from;
+            long bytes = ParallelTreeCopier.this.cumulativeSizes[this.to] - ParallelTreeCopier.this.cumulativeSizes[this.from];
+            if (count > 1 && (count > MAX_FILES_PER_TASK || bytes > MAX_BYTES_PER_TASK)) {
+                int middle = this.from + count / 2;
+                invokeAll(new CopyTask(this.from, middle), new CopyTask(middle, this.to));
+            } else {
+                copyFiles(this.from, this.to);
+            }
+        }
+    }
+}
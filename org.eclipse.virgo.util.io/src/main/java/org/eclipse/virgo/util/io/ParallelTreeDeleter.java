@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Deletes a file or directory tree in the background, concurrently on a {@link ForkJoinPool}.
+ * <p/>
+ *
+ * The tree is first renamed, on the calling thread, to a hidden tombstone beside it, so that its path is free as soon
+ * as the delete has been started. If it cannot be renamed, for example because a file in it is open on a platform which
+ * prevents that, it is deleted where it is. The tombstone is then deleted with a fork-join task for each directory.
+ * Symbolic links are deleted, not followed.
+ * <p/>
+ *
+ * A file or directory which cannot be deleted does not stop the others being deleted. The failures are reported
+ * together, by the returned task completing with a {@link FatalIOException} whose cause is the first failure and
+ * which has the others {@link Throwable#getSuppressed() suppressed}.
+ * <p/>
+ *
+ * A tombstone is left behind if its delete fails or the process exits first. Tombstones are named
+ * <code>.&lt;name&gt;.deleted-&lt;uuid&gt;</code> and the ones left in a directory are deleted with
+ * {@link #sweep(File, ForkJoinPool) sweep}.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe.
+ *
+ */
+final class ParallelTreeDeleter {
+
+    private static final String TOMBSTONE_PREFIX = ".";
+
+    private static final String TOMBSTONE_INFIX = ".deleted-";
+
+    private static final int UUID_LENGTH = 36;
+
+    private static final EntryDeleter FILES_DELETER = new EntryDeleter() {
+
+        @Override
+        public void delete(Path entry) throws IOException {
+            Files.deleteIfExists(entry);
+        }
+    };
+
+    private final EntryDeleter entryDeleter;
+
+    private final Queue<IOException> failures = new ConcurrentLinkedQueue<IOException>();
+
+    private ParallelTreeDeleter(EntryDeleter entryDeleter) {
+        this.entryDeleter = entryDeleter;
+    }
+
+    /**
+     * Starts deleting a file or directory tree.
+     *
+     * @param root the file or directory to delete
+     * @param pool the pool to delete on
+     * @return the task deleting the tree, which completes with a {@link FatalIOException} if anything could not be
+     *         deleted
+     */
+    static ForkJoinTask<Void> delete(File root, ForkJoinPool pool) {
+        return delete(root, pool, FILES_DELETER);
+    }
+
+    /**
+     * Starts deleting a file or directory tree, deleting each of its files and directories with the supplied
+     * <code>EntryDeleter</code>. For testing.
+     */
+    static ForkJoinTask<Void> delete(final File root, ForkJoinPool pool, EntryDeleter entryDeleter) {
+        final ParallelTreeDeleter deleter = new ParallelTreeDeleter(entryDeleter);
+        final Path target = deleter.entomb(root.toPath());
+        return pool.submit(new RecursiveTask<Void>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Void compute() {
+                deleter.new DeleteTask(target).invoke();
+                deleter.reportFailures(target.equals(root.toPath()) ? "'" + root + "'" : "'" + root + "' (renamed to '" + target + "')");
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Starts deleting the tombstones left in a directory by earlier deletes which failed or did not finish. Tombstones
+     * of deletes which are still running must not be swept, so this is typically called when nothing else deletes in
+     * the directory, for example on startup.
+     *
+     * @param directory the directory to sweep
+     * @param pool the pool to delete on
+     * @return the task deleting the tombstones, which completes with a {@link FatalIOException} if anything could not
+     *         be deleted
+     */
+    static ForkJoinTask<Void> sweep(final File directory, ForkJoinPool pool) {
+        final ParallelTreeDeleter deleter = new ParallelTreeDeleter(FILES_DELETER);
+        return pool.submit(new RecursiveTask<Void>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Void compute() {
+                List<DeleteTask> tombstones = new ArrayList<DeleteTask>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath())) {
+                    for (Path entry : entries) {
+                        if (isTombstone(entry.getFileName().toString())) {
+                            tombstones.add(deleter.new DeleteTask(entry));
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    return null;
+                } catch (IOException e) {
+                    throw new FatalIOException("Cannot list '" + directory + "'.", e);
+                } catch (DirectoryIteratorException e) {
+                    throw new FatalIOException("Cannot list '" + directory + "'.", e.getCause());
+                }
+                invokeAll(tombstones);
+                deleter.reportFailures("the tombstones in '" + directory + "'");
+                return null;
+            }
+        });
+    }
+
+    static boolean isTombstone(String name) {
+        int infix = name.lastIndexOf(TOMBSTONE_INFIX);
+        if (!name.startsWith(TOMBSTONE_PREFIX) || infix <= TOMBSTONE_PREFIX.length()
+            || name.length() - infix - TOMBSTONE_INFIX.length() != UUID_LENGTH) {
+            return false;
+        }
+        try {
+            UUID.fromString(name.substring(infix + TOMBSTONE_INFIX.length()));
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Renames the tree to a tombstone in the same directory.
+     *
+     * @return the tombstone, or the tree's own path if it does not exist or cannot be renamed
+     */
+    private Path entomb(Path path) {
+        Path parent = path.toAbsolutePath().getParent();
+        Path fileName = path.getFileName();
+        if (parent == null || fileName == null || !Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return path;
+        }
+        Path tombstone = parent.resolve(TOMBSTONE_PREFIX + fileName + TOMBSTONE_INFIX + UUID.randomUUID());
+        try {
+            return Files.move(path, tombstone, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            return path;
+        } catch (IOException e) {
+            return path;
+        }
+    }
+
+    private void reportFailures(String location) {
+        int failureCount = this.failures.size();
+        IOException failure = this.failures.poll();
+        if (failure != null) {
+            FatalIOException fatal = new FatalIOException("Cannot delete " + failureCount + " path" + (failureCount == 1 ? "" : "s") + " of "
+                + location + ".", failure);
+            IOException suppressed;
+            while ((suppressed = this.failures.poll()) != null) {
+                fatal.addSuppressed(suppressed);
+            }
+            throw fatal;
+        }
+    }
+
+    /**
+     * Deletes a path, deleting it too, if it is a directory, the entries in it.
+     *
+     * @return <code>true</code> if the path has been deleted
+     */
+    private final class DeleteTask extends RecursiveTask<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path path;
+
+        DeleteTask(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected Boolean compute() {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(this.path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                return true;
+            } catch (IOException e) {
+                return failed(this.path, e);
+            }
+            if (attributes.isDirectory() && !deleteEntries()) {
+                return false;
+            }
+            return delete(this.path);
+        }
+
+        private boolean deleteEntries() {
+            boolean deleted = true;
+            List<DeleteTask> subdirectories = new ArrayList<DeleteTask>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.path)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        subdirectories.add(new DeleteTask(entry));
+                    } else {
+                        deleted &= delete(entry);
+                    }
+                }
+            } catch (IOException e) {
+                deleted = failed(this.path, e);
+            } catch (DirectoryIteratorException e) {
+                deleted = failed(this.path, e.getCause());
+            }
+            for (DeleteTask subdirectory : invokeAll(subdirectories)) {
+                deleted &= subdirectory.join();
+            }
+            return deleted;
+        }
+
+        private boolean delete(Path entry) {
+            try {
+                ParallelTreeDeleter.this.entryDeleter.delete(entry);
+                return true;
+            } catch (IOException e) {
+                return failed(entry, e);
+            }
+        }
+
+        private boolean failed(Path entry, IOException e) {
+            ParallelTreeDeleter.this.failures.add(new IOException("Cannot delete '" + entry + "'.", e));
+            return false;
+        }
+    }
+
+    /**
+     * Deletes one file or empty directory.
+     */
+    interface EntryDeleter {
+
+        /**
+         * Deletes the supplied file or empty directory, if it exists.
+         *
+         * @param entry the file or directory
+         * @throws IOException if it cannot be deleted
+         */
+        void delete(Path entry) throws IOException;
+    }
+}
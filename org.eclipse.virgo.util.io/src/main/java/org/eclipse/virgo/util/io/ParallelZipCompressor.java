@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Creates a Zip archive of a file or directory, deflating entries concurrently on a {@link ForkJoinPool}.
+ * <p/>
+ *
+ * Each file is deflated, or stored if the {@link ZipOptions} call for it, by a task of its own into a buffer, and the
+ * calling thread writes the buffers to the archive with a {@link ZipArchiveWriter} in a fixed order: a directory is
+ * followed by its children sorted by name. Entries are given the last modified times of their files, so zipping an
+ * unchanged tree produces an identical archive. To bound memory, compression runs ahead of writing by at most
+ * {@link #MAX_BYTES_IN_FLIGHT} bytes of input, and a tree with a file larger than {@link #MAX_ENTRY_LENGTH} is not
+ * compressed this way at all, but is left to be zipped sequentially.
+ * <p/>
+ *
+ * Each task creates its own <code>Deflater</code> and ends it when done, and takes its buffers from the
+ * {@link BufferPool}, so nothing is left behind on the pool's threads.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe.
+ *
+ */
+final class ParallelZipCompressor {
+
+    static final long MAX_BYTES_IN_FLIGHT = 64 * 1024 * 1024;
+
+    /**
+     * The length of the largest file which is buffered in memory as an entry.
+     */
+    static final long MAX_ENTRY_LENGTH = MAX_BYTES_IN_FLIGHT;
+
+    private static final int BUFFER_SIZE = BufferPool.BYTE_BUFFER_SIZE;
+
+    /**
+     * Allowance per entry, on top of its data, for headers and for deflated data being larger than the input, when
+     * deciding whether an archive might need ZIP64 extensions.
+     */
+    private static final long ENTRY_OVERHEAD = 1024;
+
+    private ParallelZipCompressor() {
+    }
+
+    /**
+     * Lists the entries for a file or directory, in archive order, as <code>ZipUtils</code> names them.
+     *
+     * @param toZip the file or directory to zip
+     * @param entryPrefix the prefix for all entry names, or <code>null</code>
+     * @return the entries
+     */
+    static List<Source> listSources(File toZip, String entryPrefix) {
+        List<Source> sources = new ArrayList<Source>();
+        addSources(toZip, toZip, entryPrefix, sources);
+        return sources;
+    }
+
+    private static void addSources(File file, File root, String entryPrefix, List<Source> sources) {
+        if (file.isDirectory()) {
+            if (!file.equals(root)) {
+                sources.add(new Source(file, ZipUtils.determineNameOfEntry(file, root, entryPrefix), true));
+            }
+            File[] children = FileSystemUtils.listFiles(file);
+            Arrays.sort(children);
+            for (File child : children) {
+                addSources(child, root, entryPrefix, sources);
+            }
+        } else {
+            sources.add(new Source(file, ZipUtils.determineNameOfEntry(file, root, entryPrefix), false));
+        }
+    }
+
+    /**
+     * Queries whether an archive of the supplied entries can be written by {@link #compress(List, OutputStream,
+     * ForkJoinPool, ZipOptions) compress}: without ZIP64 extensions, and with no file longer than
+     * {@link #MAX_ENTRY_LENGTH}.
+     *
+     * @param sources the entries
+     * @return <code>true</code> if the archive can be compressed in parallel
+     */
+    static boolean canCompress(List<Source> sources) {
+        return canCompress(sources, MAX_ENTRY_LENGTH);
+    }
+
+    static boolean canCompress(List<Source> sources, long maxEntryLength) {
+        for (Source source : sources) {
+            if (source.length > maxEntryLength) {
+                return false;
+            }
+        }
+        return fitsWithoutZip64(sources);
+    }
+
+    /**
+     * Queries whether an archive of the supplied entries could be written without ZIP64 extensions.
+     *
+     * @param sources the entries
+     * @return <code>true</code> if {@link ZipArchiveWriter} can certainly write the archive
+     */
+    static boolean fitsWithoutZip64(List<Source> sources) {
+        if (sources.size() >= ZipArchiveWriter.MAX_ENTRIES) {
+            return false;
+        }
+        long total = 0;
+        for (Source source : sources) {
+            total += source.length + ENTRY_OVERHEAD + source.name.length() * 2;
+        }
+        return total < ZipArchiveWriter.MAX_SIZE;
+    }
+
+    /**
+     * Writes an archive of the supplied entries.
+     *
+     * @param sources the entries, in archive order
+     * @param out the stream to write to, which is not closed
+     * @param pool the pool to deflate entries on
+     * @param options how entries are compressed
+     * @throws IOException if an entry cannot be read or the archive cannot be written
+     */
+    static void compress(List<Source> sources, OutputStream out, ForkJoinPool pool, final ZipOptions options) throws IOException {
+        ZipArchiveWriter writer = new ZipArchiveWriter(out);
+        Deque<ForkJoinTask<CompressedEntry>> inFlight = new ArrayDeque<ForkJoinTask<CompressedEntry>>();
+        long bytesInFlight = 0;
+        int next = 0;
+        try {
+            for (int index = 0; index < sources.size(); index++) {
+                while (next < sources.size() && (inFlight.isEmpty() || bytesInFlight + sources.get(next).length <= MAX_BYTES_IN_FLIGHT)) {
+                    final Source source = sources.get(next++);
+                    inFlight.add(pool.submit(new Callable<CompressedEntry>() {
+
+                        @Override
+                        public CompressedEntry call() throws IOException {
+                            return compress(source, options);
+                        }
+                    }));
+                    bytesInFlight += source.length;
+                }
+                CompressedEntry entry = join(inFlight.removeFirst());
+                bytesInFlight -= entry.source.length;
+                writer.putEntry(entry.source.name, entry.source.time, entry.method, entry.crc, entry.data.size(), entry.size);
+                writer.writeData(entry.data.buffer(), 0, entry.data.size());
+            }
+            writer.finish();
+        } finally {
+            for (ForkJoinTask<CompressedEntry> task : inFlight) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    private static CompressedEntry join(ForkJoinTask<CompressedEntry> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static CompressedEntry compress(Source source, ZipOptions options) throws IOException {
+        if (source.directory) {
+            return new CompressedEntry(source, ZipEntry.STORED, 0, 0, new EntryBuffer(0));
+        }
+        if (ZipMethodSelector.select(source.file, options) == ZipEntry.STORED) {
+            return store(source);
+        }
+        EntryBuffer data = new EntryBuffer((int) Math.min(source.length / 2 + 64, BUFFER_SIZE));
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(options.getLevel(), true);
+        byte[] input = BufferPool.takeBytes();
+        byte[] output = BufferPool.takeBytes();
+        long size = 0;
+        try (InputStream in = new FileInputStream(source.file)) {
+            int count;
+            while ((count = in.read(input)) != -1) {
+                crc.update(input, 0, count);
+                size += count;
+                deflater.setInput(input, 0, count);
+                while (!deflater.needsInput()) {
+                    data.write(output, 0, deflater.deflate(output));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                data.write(output, 0, deflater.deflate(output));
+            }
+        } finally {
+            deflater.end();
+            BufferPool.giveBytes(output);
+            BufferPool.giveBytes(input);
+        }
+        return new CompressedEntry(source, ZipEntry.DEFLATED, crc.getValue(), size, data);
+    }
+
+    private static CompressedEntry store(Source source) throws IOException {
+        EntryBuffer data = new EntryBuffer((int) source.length);
+        CRC32 crc = new CRC32();
+        byte[] input = BufferPool.takeBytes();
+        long size = 0;
+        try (InputStream in = new FileInputStream(source.file)) {
+            int count;
+            while ((count = in.read(input)) != -1) {
+                crc.update(input, 0, count);
+                data.write(input, 0, count);
+                size += count;
+            }
+        } finally {
+            BufferPool.giveBytes(input);
+        }
+        return new CompressedEntry(source, ZipEntry.STORED, crc.getValue(), size, data);
+    }
+
+    /**
+     * A file or directory to be added to an archive.
+     */
+    static final class Source {
+
+        private final File file;
+
+        private final String name;
+
+        private final boolean directory;
+
+        private final long length;
+
+        private final long time;
+
+        Source(File file, String name, boolean directory) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.length = directory ? 0 : file.length();
+            this.time = file.lastModified();
+        }
+    }
+
+    private static final class CompressedEntry {
+
+        private final Source source;
+
+        private final int method;
+
+        private final long crc;
+
+        private final long size;
+
+        private final EntryBuffer data;
+
+        CompressedEntry(Source source, int method, long crc, long size, EntryBuffer data) {
+            this.source = source;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    /**
+     * <code>ByteArrayOutputStream</code> whose buffer can be written out without being copied.
+     */
+    private static final class EntryBuffer extends ByteArrayOutputStream {
+
+        EntryBuffer(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return this.buf;
+        }
+    }
+}
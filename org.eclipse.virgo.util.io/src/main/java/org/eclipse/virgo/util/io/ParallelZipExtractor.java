@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts the entries of a Zip file concurrently on a {@link ForkJoinPool}.
+ * <p/>
+ *
+ * The directories needed by all entries are created up front, once each, and the file entries are then divided among
+ * fork-join tasks, which decompress them through the shared {@link ZipFile} and write them with a {@link FileChannel}.
+ * Stored entries are instead transferred directly from the Zip file, using its {@link ZipCentralDirectory}.
+ * Entries are divided by count and by compressed size, so an archive of many small entries and an archive of a few huge
+ * ones both spread across the pool.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe.
+ *
+ */
+final class ParallelZipExtractor {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_ENTRIES_PER_TASK = 16;
+
+    private static final long MAX_BYTES_PER_TASK = 4 * 1024 * 1024;
+
+    private final ZipFile zip;
+
+    private final ZipCentralDirectory centralDirectory;
+
+    private final List<ZipEntry> fileEntries;
+
+    private final List<File> targets;
+
+    /**
+     * <code>cumulativeSizes[i]</code> is the total compressed size of the first <code>i</code> file entries.
+     */
+    private final long[] cumulativeSizes;
+
+    private final Queue<IOException> failures = new ConcurrentLinkedQueue<IOException>();
+
+    private ParallelZipExtractor(ZipFile zip, ZipCentralDirectory centralDirectory, List<ZipEntry> fileEntries, List<File> targets) {
+        this.zip = zip;
+        this.centralDirectory = centralDirectory;
+        this.fileEntries = fileEntries;
+        this.targets = targets;
+        this.cumulativeSizes = new long[fileEntries.size() + 1];
+        for (int index = 0; index < fileEntries.size(); index++) {
+            this.cumulativeSizes[index + 1] = this.cumulativeSizes[index] + Math.max(0, fileEntries.get(index).getCompressedSize());
+        }
+    }
+
+    /**
+     * Extracts every entry of a Zip file into a directory.
+     *
+     * @param zipFile the Zip file
+     * @param destination the directory to extract into, which must exist
+     * @param pool the pool to extract on
+     * @throws IOException if any entry cannot be extracted. The exception for the first failed entry has the
+     *         exceptions for the others {@link Throwable#getSuppressed() suppressed}
+     */
+    static void extract(File zipFile, PathReference destination, ForkJoinPool pool) throws IOException {
+        ZipFile zip = new ZipFile(zipFile);
+        FileChannel zipChannel = null;
+        try {
+            zipChannel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ);
+            List<ZipEntry> fileEntries = new ArrayList<ZipEntry>();
+            List<File> targets = new ArrayList<File>();
+            SortedSet<File> directories = new TreeSet<File>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                File target = destination.newChild(entry.getName()).toFile();
+                if (entry.isDirectory()) {
+                    directories.add(target);
+                } else {
+                    directories.add(target.getParentFile());
+                    fileEntries.add(entry);
+                    targets.add(target);
+                }
+            }
+            createDirectories(directories);
+            new ParallelZipExtractor(zip, ZipUtils.readCentralDirectory(zipChannel), fileEntries, targets).extract(pool);
+        } finally {
+            IOUtils.closeQuietly(zipChannel);
+            zip.close();
+        }
+    }
+
+    private static void createDirectories(SortedSet<File> directories) {
+        // sorted, so each parent is created before its children and mkdirs() rarely has to create more than one level
+        for (File directory : directories) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new FatalIOException("Unable to create directory " + directory);
+            }
+        }
+    }
+
+    private void extract(ForkJoinPool pool) throws IOException {
+        pool.invoke(new ExtractTask(0, this.fileEntries.size()));
+        IOException failure = this.failures.poll();
+        if (failure != null) {
+            IOException suppressed;
+            while ((suppressed = this.failures.poll()) != null) {
+                failure.addSuppressed(suppressed);
+            }
+            throw failure;
+        }
+    }
+
+    private void extractEntries(int from, int to) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        for (int index = from; index < to; index++) {
+            ZipEntry entry = this.fileEntries.get(index);
+            try {
+                writeEntry(entry, this.targets.get(index), buffer);
+            } catch (IOException e) {
+                this.failures.add(new IOException("Unable to extract entry '" + entry.getName() + "' of '" + this.zip.getName() + "'", e));
+            } catch (RuntimeException e) {
+                this.failures.add(new IOException("Unable to extract entry '" + entry.getName() + "' of '" + this.zip.getName() + "'", e));
+            }
+        }
+    }
+
+    private void writeEntry(ZipEntry entry, File target, ByteBuffer buffer) throws IOException {
+        if (ZipUtils.transferStoredEntry(this.centralDirectory, entry, target)) {
+            return;
+        }
+        byte[] bytes = buffer.array();
+        try (InputStream in = this.zip.getInputStream(entry);
+                FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            int count;
+            while ((count = in.read(bytes)) != -1) {
+                buffer.clear();
+                buffer.limit(count);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        }
+    }
+
+    private final class ExtractTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+
+        private final int to;
+
+        ExtractTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int count = this.to - this.from;
+            long bytes = ParallelZipExtractor.this.cumulativeSizes[this.to] - ParallelZipExtractor.this.cumulativeSizes[this.from];
+            if (count > 1 && (count > MAX_ENTRIES_PER_TASK || bytes > MAX_BYTES_PER_TASK)) {
+                int middle = this.from + count / 2;
+                invokeAll(new ExtractTask(this.from, middle), new ExtractTask(middle, this.to));
+            } else {
+                extractEntries(this.from, this.to);
+            }
+        }
+    }
+}
@@ -0,0 +1,486 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import org.eclipse.virgo.util.io.JarTransformer.JarTransformerCallback;
+
+/**
+ * Transforms a JAR file as {@link JarTransformer} does, but copies the compressed data of each entry that the callback
+ * does not transform straight from the input to the output, so that only transformed entries are decompressed and
+ * compressed again.
+ * <p/>
+ *
+ * The input is read through its {@link ZipCentralDirectory} and the output is written with a {@link ZipArchiveWriter}.
+ * The callback is given a {@link JarOutputStream} which captures the entries it writes, compressing each one when it is
+ * closed. The capturing streams are reused by the invocations of one transformation, and their buffers and
+ * <code>Deflater</code>s released when it ends. The input must be a file and the output must not need ZIP64 extensions.
+ * <p/>
+ *
+ * Given a {@link ForkJoinPool}, the callback is invoked for different entries concurrently on the pool, each invocation
+ * capturing its output separately, and the calling thread writes the results in the order of the input's entries. The
+ * invocations may run ahead of the writing by at most {@link #MAX_BYTES_IN_FLIGHT} bytes of compressed input, or by one
+ * entry if that is larger.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Not thread-safe.
+ *
+ */
+final class PassthroughJarTransformer {
+
+    static final long MAX_BYTES_IN_FLIGHT = 64 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final List<CapturedEntry> UNTRANSFORMED = Collections.emptyList();
+
+    private final JarTransformerCallback callback;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    PassthroughJarTransformer(JarTransformerCallback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Transforms a JAR file.
+     *
+     * @param jarFile the JAR file to transform
+     * @param stream the stream to write the transformed JAR to, which is not closed
+     * @param ensureManifestIsPresent if <code>true</code> ensures that the transformed JAR contains a manifest
+     * @param defaultManifest the content of the manifest to add if one is needed
+     * @param pool the pool to invoke the callback on, or <code>null</code> to invoke it on the calling thread
+     * @return <code>false</code>, having written nothing, if the JAR file needs ZIP64 extensions and so cannot be
+     *         transformed in this way, otherwise <code>true</code>
+     * @throws IOException if the JAR cannot be transformed
+     */
+    boolean transform(PathReference jarFile, OutputStream stream, boolean ensureManifestIsPresent, byte[] defaultManifest, ForkJoinPool pool)
+        throws IOException {
+        ZipFile zipFile = new ZipFile(jarFile.toFile());
+        FileChannel channel = null;
+        Captures captures = new Captures();
+        try {
+            channel = FileChannel.open(jarFile.toFile().toPath(), StandardOpenOption.READ);
+            ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(channel);
+            if (!centralDirectory.isComplete()) {
+                return false;
+            }
+            ZipArchiveWriter writer = new ZipArchiveWriter(new BufferedOutputStream(stream, BUFFER_SIZE));
+            boolean manifestPresent;
+            if (pool == null) {
+                manifestPresent = transformSerially(zipFile, centralDirectory, writer, captures);
+            } else {
+                manifestPresent = transformConcurrently(zipFile, centralDirectory, writer, pool, captures);
+            }
+            if (ensureManifestIsPresent && !manifestPresent) {
+                writeCaptured(transformDefaultManifest(defaultManifest, captures), writer);
+            }
+            writer.finish();
+            return true;
+        } finally {
+            captures.close();
+            IOUtils.closeQuietly(channel);
+            zipFile.close();
+        }
+    }
+
+    private boolean transformSerially(ZipFile zipFile, ZipCentralDirectory centralDirectory, ZipArchiveWriter writer, Captures captures)
+        throws IOException {
+        boolean manifestPresent = false;
+        for (ZipCentralDirectory.Entry entry : centralDirectory.entries()) {
+            if (JarFile.MANIFEST_NAME.equals(entry.name)) {
+                manifestPresent = true;
+            }
+            List<CapturedEntry> captured = isDirectory(entry) ? UNTRANSFORMED : transformEntry(zipFile, entry, captures);
+            writeEntry(zipFile, centralDirectory, entry, captured, writer);
+        }
+        return manifestPresent;
+    }
+
+    private boolean transformConcurrently(final ZipFile zipFile, ZipCentralDirectory centralDirectory, ZipArchiveWriter writer,
+        ForkJoinPool pool, final Captures captures) throws IOException {
+        Deque<Pending> inFlight = new ArrayDeque<Pending>();
+        try {
+            boolean manifestPresent = false;
+            long bytesInFlight = 0;
+            for (final ZipCentralDirectory.Entry entry : centralDirectory.entries()) {
+                if (JarFile.MANIFEST_NAME.equals(entry.name)) {
+                    manifestPresent = true;
+                }
+                while (!inFlight.isEmpty() && bytesInFlight + entry.compressedSize > MAX_BYTES_IN_FLIGHT) {
+                    Pending pending = inFlight.removeFirst();
+                    bytesInFlight -= pending.entry.compressedSize;
+                    writeEntry(zipFile, centralDirectory, pending.entry, pending.join(), writer);
+                }
+                ForkJoinTask<List<CapturedEntry>> task = null;
+                if (!isDirectory(entry)) {
+                    task = pool.submit(new Callable<List<CapturedEntry>>() {
+
+                        @Override
+                        public List<CapturedEntry> call() throws IOException {
+                            return transformEntry(zipFile, entry, captures);
+                        }
+                    });
+                }
+                inFlight.addLast(new Pending(entry, task));
+                bytesInFlight += entry.compressedSize;
+            }
+            while (!inFlight.isEmpty()) {
+                Pending pending = inFlight.removeFirst();
+                writeEntry(zipFile, centralDirectory, pending.entry, pending.join(), writer);
+            }
+            return manifestPresent;
+        } finally {
+            for (Pending pending : inFlight) {
+                if (pending.task != null) {
+                    pending.task.cancel(false);
+                }
+            }
+        }
+    }
+
+    private static boolean isDirectory(ZipCentralDirectory.Entry entry) {
+        return entry.name.endsWith("/");
+    }
+
+    /**
+     * Invokes the callback for an entry of the JAR file.
+     *
+     * @return the entries the callback wrote, or {@link #UNTRANSFORMED} if it did not transform the entry
+     */
+    private List<CapturedEntry> transformEntry(ZipFile zipFile, ZipCentralDirectory.Entry entry, Captures captures) throws IOException {
+        ZipEntry zipEntry = zipFile.getEntry(entry.name);
+        if (zipEntry == null) {
+            throw new ZipException("Entry '" + entry.name + "' of '" + zipFile.getName() + "' cannot be read");
+        }
+        try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+            return invokeCallback(entry.name, inputStream, captures);
+        }
+    }
+
+    private List<CapturedEntry> transformDefaultManifest(byte[] defaultManifest, Captures captures) throws IOException {
+        List<CapturedEntry> captured;
+        try (InputStream inputStream = new ByteArrayInputStream(defaultManifest)) {
+            captured = invokeCallback(JarFile.MANIFEST_NAME, inputStream, captures);
+        }
+        if (captured != UNTRANSFORMED) {
+            return captured;
+        }
+        CapturingJarOutputStream capture = captures.take();
+        try {
+            capture.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
+            capture.write(defaultManifest, 0, defaultManifest.length);
+            return capture.drain();
+        } finally {
+            capture.discard();
+            captures.give(capture);
+        }
+    }
+
+    private List<CapturedEntry> invokeCallback(String entryName, InputStream inputStream, Captures captures) throws IOException {
+        CapturingJarOutputStream capture = captures.take();
+        try {
+            return this.callback.transformEntry(entryName, inputStream, capture) ? capture.drain() : UNTRANSFORMED;
+        } finally {
+            // a stream is given back holding nothing captured, even if the callback failed
+            capture.discard();
+            captures.give(capture);
+        }
+    }
+
+    private void writeEntry(ZipFile zipFile, ZipCentralDirectory centralDirectory, ZipCentralDirectory.Entry entry,
+        List<CapturedEntry> captured, ZipArchiveWriter writer) throws IOException {
+        if (captured != UNTRANSFORMED) {
+            writeCaptured(captured, writer);
+            return;
+        }
+        if (!entry.isLocatable()) {
+            throw new ZipException("Entry '" + entry.name + "' of '" + zipFile.getName() + "' is encrypted or needs ZIP64 extensions");
+        }
+        writer.putEntryWithDosTime(entry.name, entry.dosTime, entry.method, entry.crc, entry.compressedSize, entry.size);
+        centralDirectory.copyRawData(entry, writer, this.buffer);
+    }
+
+    private static void writeCaptured(List<CapturedEntry> captured, ZipArchiveWriter writer) throws IOException {
+        for (CapturedEntry entry : captured) {
+            writer.putEntry(entry.name, entry.time, entry.method, entry.crc, entry.data.size(), entry.size);
+            writer.writeData(entry.data.buffer(), 0, entry.data.size());
+        }
+    }
+
+    /**
+     * An entry of the JAR file, in order, and the task invoking the callback for it, which is <code>null</code> for a
+     * directory.
+     */
+    private static final class Pending {
+
+        private final ZipCentralDirectory.Entry entry;
+
+        private final ForkJoinTask<List<CapturedEntry>> task;
+
+        Pending(ZipCentralDirectory.Entry entry, ForkJoinTask<List<CapturedEntry>> task) {
+            this.entry = entry;
+            this.task = task;
+        }
+
+        List<CapturedEntry> join() throws IOException {
+            if (this.task == null) {
+                return UNTRANSFORMED;
+            }
+            try {
+                return this.task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted transforming entry '" + this.entry.name + "'", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * The capturing streams of one transformation. Each is used by one invocation of the callback at a time, and all are
+     * {@link CapturingJarOutputStream#release() released} when the transformation ends, so that no buffer or
+     * <code>Deflater</code> outlives it, even if a cancelled invocation gives its stream back later.
+     */
+    private static final class Captures {
+
+        private final Object monitor = new Object();
+
+        private final List<CapturingJarOutputStream> idle = new ArrayList<CapturingJarOutputStream>();
+
+        private boolean closed;
+
+        CapturingJarOutputStream take() throws IOException {
+            synchronized (this.monitor) {
+                if (!this.idle.isEmpty()) {
+                    return this.idle.remove(this.idle.size() - 1);
+                }
+            }
+            return new CapturingJarOutputStream();
+        }
+
+        void give(CapturingJarOutputStream capture) {
+            synchronized (this.monitor) {
+                if (!this.closed) {
+                    this.idle.add(capture);
+                    return;
+                }
+            }
+            capture.release();
+        }
+
+        void close() {
+            List<CapturingJarOutputStream> released;
+            synchronized (this.monitor) {
+                this.closed = true;
+                released = new ArrayList<CapturingJarOutputStream>(this.idle);
+                this.idle.clear();
+            }
+            for (CapturingJarOutputStream capture : released) {
+                capture.release();
+            }
+        }
+    }
+
+    /**
+     * An entry written by the callback, compressed and ready to be written to the JAR.
+     */
+    private static final class CapturedEntry {
+
+        private final String name;
+
+        private final long time;
+
+        private final int method;
+
+        private final long crc;
+
+        private final long size;
+
+        private final EntryBuffer data;
+
+        CapturedEntry(String name, long time, int method, long crc, long size, EntryBuffer data) {
+            this.name = name;
+            this.time = time;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    /**
+     * <code>JarOutputStream</code> given to the callback, which buffers each entry written to it and, when the entry is
+     * closed, compresses it and adds it to the entries captured so far. Nothing reaches the stream the
+     * <code>JarOutputStream</code> itself wraps.
+     */
+    private static final class CapturingJarOutputStream extends JarOutputStream {
+
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        private final EntryBuffer data = new EntryBuffer();
+
+        private final byte[] output = new byte[BUFFER_SIZE];
+
+        private final CRC32 crc = new CRC32();
+
+        private List<CapturedEntry> captured = new ArrayList<CapturedEntry>();
+
+        private ZipEntry currentEntry;
+
+        CapturingJarOutputStream() throws IOException {
+            super(new ByteArrayOutputStream(0));
+        }
+
+        @Override
+        public void putNextEntry(ZipEntry entry) throws IOException {
+            if (this.currentEntry != null) {
+                closeEntry();
+            }
+            this.currentEntry = entry;
+            this.data.reset();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.currentEntry == null) {
+                throw new ZipException("No current entry");
+            }
+            this.data.write(b, off, len);
+        }
+
+        @Override
+        public void closeEntry() {
+            ZipEntry entry = this.currentEntry;
+            if (entry == null) {
+                return;
+            }
+            this.currentEntry = null;
+            this.crc.reset();
+            this.crc.update(this.data.buffer(), 0, this.data.size());
+            long time = entry.getTime() == -1 ? System.currentTimeMillis() : entry.getTime();
+            if (entry.getMethod() == ZipEntry.STORED || entry.isDirectory()) {
+                EntryBuffer stored = new EntryBuffer();
+                stored.write(this.data.buffer(), 0, this.data.size());
+                this.captured.add(new CapturedEntry(entry.getName(), time, ZipEntry.STORED, this.crc.getValue(), this.data.size(), stored));
+            } else {
+                this.captured.add(new CapturedEntry(entry.getName(), time, ZipEntry.DEFLATED, this.crc.getValue(), this.data.size(), deflateData()));
+            }
+        }
+
+        private EntryBuffer deflateData() {
+            EntryBuffer compressed = new EntryBuffer();
+            this.deflater.reset();
+            this.deflater.setInput(this.data.buffer(), 0, this.data.size());
+            this.deflater.finish();
+            while (!this.deflater.finished()) {
+                compressed.write(this.output, 0, this.deflater.deflate(this.output));
+            }
+            return compressed;
+        }
+
+        /**
+         * Closes the current entry and returns the entries captured since the last call, capturing afresh.
+         */
+        List<CapturedEntry> drain() {
+            closeEntry();
+            List<CapturedEntry> drained = this.captured;
+            this.captured = new ArrayList<CapturedEntry>();
+            return drained;
+        }
+
+        /**
+         * Discards the entries captured since the last {@link #drain()}.
+         */
+        void discard() {
+            this.currentEntry = null;
+            this.captured.clear();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Ends this stream's <code>Deflater</code>s. The stream must not be used afterwards.
+         */
+        void release() {
+            try {
+                super.close();
+            } catch (IOException e) {
+                // nothing is written to the wrapped stream
+            }
+            this.deflater.end();
+        }
+    }
+
+    /**
+     * <code>ByteArrayOutputStream</code> whose buffer can be read without being copied.
+     */
+    private static final class EntryBuffer extends ByteArrayOutputStream {
+
+        byte[] buffer() {
+            return this.buf;
+        }
+    }
+}
@@ -13,7 +13,6 @@ package org.eclipse.virgo.util.io;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -21,6 +20,14 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Represents a reference, by path, to a location on the file system. This location may be a file or a directory, or it
@@ -212,6 +219,18 @@ public final class PathReference {
         return deleted;
     }
 
+    /**
+     * Delete the file/directory referenced by this <code>PathReference</code>, and any nested contents, in the
+     * background. The path is free for reuse when this method returns. See
+     * {@link FileSystemUtils#deleteRecursivelyAsync(File, ForkJoinPool)} for details.
+     * 
+     * @param pool the pool to delete on
+     * @return a <code>Future</code> which completes when the delete has finished.
+     */
+    public Future<Void> deleteAsync(ForkJoinPool pool) {
+        return FileSystemUtils.deleteRecursivelyAsync(this.file, pool);
+    }
+
     /**
      * Same as calling {@link #copy(PathReference, boolean) copy(to, false)}.
      * 
@@ -262,6 +281,56 @@ public final class PathReference {
      * @return the final destination <code>PathReference</code>.
      */
     public PathReference copy(PathReference dest, boolean recursive, PathFilter filter) {
+        return copy(dest, recursive, filter, null);
+    }
+
+    /**
+     * Copies the contents of the file/directory to location referenced supplied <code>PathReference</code>, as
+     * {@link #copy(PathReference, boolean, PathFilter)} does, but copying the files of a directory concurrently on the
+     * supplied {@link ForkJoinPool}.
+     * <p/>
+     * 
+     * Unlike a serial copy, a parallel copy does not stop at the first file which cannot be copied. Once the other files
+     * have been copied, a {@link FatalIOException} is thrown whose cause is the first failure and which has the other
+     * failures {@link Throwable#getSuppressed() suppressed}.
+     * 
+     * @param dest the destination to copy to.
+     * @param recursive whether the copy should be recursive or not.
+     * @param filter a <code>PathFilter</code> controlling which files are included in the copy.
+     * @param pool the pool to copy files on, for example {@link ForkJoinPool#commonPool()}, or <code>null</code> to
+     *            copy them on the calling thread.
+     * @return the final destination <code>PathReference</code>.
+     */
+    public PathReference copy(PathReference dest, boolean recursive, PathFilter filter, ForkJoinPool pool) {
+        return copy(dest, recursive, filter, pool, false);
+    }
+
+    /**
+     * Clones the contents of the file/directory to location referenced supplied <code>PathReference</code>, with the
+     * same semantics as {@link #copy(PathReference, boolean, PathFilter)}, but hard linking read-only files rather than
+     * copying them where possible.
+     * <p/>
+     * 
+     * A file is linked only if it has no write permissions and the current process cannot write it. Cloning a tree of
+     * such files, for example of deployed artifacts, is near-instant and takes no more disk space. A file that is
+     * writable, or that cannot be linked, for example because the destination is on another file system, is copied. A
+     * process running as a privileged user can write every file, so it always copies.
+     * <p/>
+     * 
+     * A hard link shares the file's data and attributes, so the source and the destination are the same file: if either
+     * is later made writable, for example by its owner changing its permissions, and then written, the change is seen
+     * through both. Clone only trees which are not changed in place.
+     * 
+     * @param dest the destination to clone to.
+     * @param recursive whether the clone should be recursive or not.
+     * @param filter a <code>PathFilter</code> controlling which files are included in the clone.
+     * @return the final destination <code>PathReference</code>.
+     */
+    public PathReference cloneTo(PathReference dest, boolean recursive, PathFilter filter) {
+        return copy(dest, recursive, filter, null, true);
+    }
+
+    private PathReference copy(PathReference dest, boolean recursive, PathFilter filter, ForkJoinPool pool, boolean clone) {
         if (!exists()) {
             throw new FatalIOException("Cannot copy path '" + this + "' to '" + dest + "'. Source path does not exist.");
         }
@@ -273,12 +342,14 @@ public final class PathReference {
                     dest = dest.newChild(this.file.getName());
                     if (dest.exists()) {
                         throw new FatalIOException("Cannot copy path '" + this + "' to '" + dest + "'. Destination path already exists.");
-                    } else {
+                    } else if (!clone) {
                         dest.createFile();
                     }
                 }
             }
-            copyFile(this.file, dest.file);
+            if (!clone || !linkReadOnlyFile(this.file, dest.file)) {
+                copyFile(this.file, dest.file);
+            }
         } else { // this.file.isDirectory() assumed true
             int length = FileSystemUtils.list(this.file).length;
             if (length > 0 && !recursive) {
@@ -290,7 +361,11 @@ public final class PathReference {
                 // copy to this dir
                 dest.createDirectory();
             }
-            recursiveCopy(this.file, dest.file, filter);
+            if (pool == null) {
+                recursiveCopy(this.file, dest.file, filter, clone);
+            } else {
+                ParallelTreeCopier.copy(this.file, dest.file, filter, pool);
+            }
         }
         return dest;
     }
@@ -427,20 +502,68 @@ public final class PathReference {
      * @param src the source directory.
      * @param dest the destination file.
      */
-    private static void recursiveCopy(File src, File dest, PathFilter filter) {
+    private static void recursiveCopy(File src, File dest, PathFilter filter, boolean clone) {
         for (File file : FileSystemUtils.listFiles(src)) {
             PathReference newFile = PathReference.concat(dest.getAbsolutePath(), file.getName());
             if (filter != null && !filter.matches(new PathReference(file))) {
                 continue;
             }
             if (file.isFile()) {
-                newFile.createFile();
-                copyFile(file, newFile.toFile());
+                if (!clone || !linkReadOnlyFile(file, newFile.toFile())) {
+                    newFile.createFile();
+                    copyFile(file, newFile.toFile());
+                }
             } else {
                 newFile.createDirectory();
-                recursiveCopy(file, newFile.toFile(), filter);
+                recursiveCopy(file, newFile.toFile(), filter, clone);
+            }
+        }
+    }
+
+    /**
+     * Hard links <code>dest</code> to <code>src</code> if <code>src</code> is read-only and not writable by this process.
+     * 
+     * @param src the source <code>File</code>.
+     * @param dest the destination <code>File</code>, which should not exist.
+     * @return <code>true</code> if the link was created, <code>false</code> if <code>src</code> is writable or the link
+     *         could not be created, and so <code>src</code> must be copied.
+     */
+    private static boolean linkReadOnlyFile(File src, File dest) {
+        Path source = src.toPath();
+        try {
+            if (!isReadOnly(source) || Files.isWritable(source)) {
+                return false;
+            }
+            File parent = dest.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                return false;
             }
+            Files.createLink(dest.toPath(), source);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queries whether a file has no write permissions, whether or not the current process can write it.
+     */
+    private static boolean isReadOnly(Path path) throws IOException {
+        PosixFileAttributeView posix = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if (posix != null) {
+            Set<PosixFilePermission> permissions = posix.readAttributes().permissions();
+            return !permissions.contains(PosixFilePermission.OWNER_WRITE) && !permissions.contains(PosixFilePermission.GROUP_WRITE)
+                && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+        }
+        DosFileAttributeView dos = Files.getFileAttributeView(path, DosFileAttributeView.class);
+        if (dos != null) {
+            return dos.readAttributes().isReadOnly();
         }
+        return !path.toFile().canWrite();
     }
 
     /**
@@ -491,12 +614,14 @@ public final class PathReference {
             throw new FileNotFoundException("PathReference refers to a directory which has no file contents");
         }
         StringBuffer contents = new StringBuffer(100);
-        try (Reader fileReader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), UTF_8))) {
-            char[] chars = new char[100];
+        char[] chars = BufferPool.takeChars();
+        try (Reader fileReader = new InputStreamReader(new FileInputStream(this.file), UTF_8)) {
             int charsRead = 0;
             while ((charsRead = fileReader.read(chars)) != -1) {
                 contents.append(chars, 0, charsRead);
             }
+        } finally {
+            BufferPool.giveChars(chars);
         }
         return contents.toString();
     }
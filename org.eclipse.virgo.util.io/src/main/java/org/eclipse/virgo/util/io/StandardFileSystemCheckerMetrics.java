@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link FileSystemCheckerMetrics} which keeps counters and latency histograms for one {@link FileSystemChecker} and
+ * exposes them as a {@link FileSystemCheckerMetricsMXBean}. To publish the metrics, register an instance with an
+ * <code>MBeanServer</code>, for example:
+ *
+ * <pre>
+ * StandardFileSystemCheckerMetrics metrics = new StandardFileSystemCheckerMetrics();
+ * FileSystemChecker checker = new FileSystemChecker(pickupDir, new FileSystemCheckerOptions().setMetrics(metrics));
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+ *     new ObjectName(&quot;org.eclipse.virgo:type=FileSystemChecker,name=pickup&quot;));
+ * </pre>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ * Thread-safe.
+ *
+ */
+public final class StandardFileSystemCheckerMetrics implements FileSystemCheckerMetrics, FileSystemCheckerMetricsMXBean {
+
+    private static final double PERCENTILE = 99;
+
+    private final LatencyHistogram checkLatencies = new LatencyHistogram();
+
+    private final LatencyHistogram listenerLatencies = new LatencyHistogram();
+
+    private final AtomicLong failedCheckCount = new AtomicLong();
+
+    private final AtomicInteger lastCheckFileCount = new AtomicInteger();
+
+    private final AtomicLong listingRetryCount = new AtomicLong();
+
+    private final Object slowestListenerMonitor = new Object();
+
+    private long slowestListenerNanos;
+
+    private String slowestListener;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void checkCompleted(long durationNanos, int fileCount, boolean failed) {
+        this.checkLatencies.record(durationNanos);
+        this.lastCheckFileCount.set(fileCount);
+        if (failed) {
+            this.failedCheckCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void listingRetried(File directory) {
+        this.listingRetryCount.incrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void listenerNotified(FileSystemListener listener, long durationNanos) {
+        this.listenerLatencies.record(durationNanos);
+        synchronized (this.slowestListenerMonitor) {
+            if (durationNanos > this.slowestListenerNanos) {
+                this.slowestListenerNanos = durationNanos;
+                this.slowestListener = listener + " (" + TimeUnit.NANOSECONDS.toMicros(durationNanos) + "us)";
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCheckCount() {
+        return this.checkLatencies.count();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFailedCheckCount() {
+        return this.failedCheckCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLastCheckFileCount() {
+        return this.lastCheckFileCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getListingRetryCount() {
+        return this.listingRetryCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCheckMeanMicros() {
+        return this.checkLatencies.meanMicros();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCheck99thPercentileMicros() {
+        return this.checkLatencies.percentileMicros(PERCENTILE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCheckMaxMicros() {
+        return this.checkLatencies.maxMicros();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getListenerNotificationCount() {
+        return this.listenerLatencies.count();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getListenerMeanMicros() {
+        return this.listenerLatencies.meanMicros();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getListener99thPercentileMicros() {
+        return this.listenerLatencies.percentileMicros(PERCENTILE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getListenerMaxMicros() {
+        return this.listenerLatencies.maxMicros();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getSlowestListener() {
+        synchronized (this.slowestListenerMonitor) {
+            return this.slowestListener;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        this.checkLatencies.reset();
+        this.listenerLatencies.reset();
+        this.failedCheckCount.set(0);
+        this.lastCheckFileCount.set(0);
+        this.listingRetryCount.set(0);
+        synchronized (this.slowestListenerMonitor) {
+            this.slowestListenerNanos = 0;
+            this.slowestListener = null;
+        }
+    }
+}
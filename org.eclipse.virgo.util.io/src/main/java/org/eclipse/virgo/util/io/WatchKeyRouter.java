@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Routes the {@link WatchKey WatchKeys} of one {@link WatchService} to the event driven {@link FileSystemChecker
+ * FileSystemCheckers} which registered them, so that checkers can share a watch service. A
+ * {@link FileSystemCheckerGroup} shares one among all of its roots, rather than each root having its own watch service
+ * and, on Linux, its own poller thread.
+ * <p/>
+ *
+ * A checker polls for the keys signalled for it, each delivered as a {@link Signal}. Polling takes every key signalled
+ * by the watch service and queues its events for each checker which registered it, so a directory watched by more
+ * than one checker, for example under nested recursive roots, is notified to all of them.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe.
+ *
+ */
+final class WatchKeyRouter implements Closeable {
+
+    private final WatchService watchService;
+
+    private final Object monitor = new Object();
+
+    /**
+     * The checkers which registered each key. Guarded by <code>monitor</code>.
+     */
+    private final Map<WatchKey, Set<FileSystemChecker>> owners = new HashMap<WatchKey, Set<FileSystemChecker>>();
+
+    /**
+     * The signals not yet polled by each checker. Guarded by <code>monitor</code>.
+     */
+    private final Map<FileSystemChecker, List<Signal>> signals = new IdentityHashMap<FileSystemChecker, List<Signal>>();
+
+    /**
+     * Creates a new <code>WatchKeyRouter</code> with a new {@link WatchService}.
+     *
+     * @param fileSystem the file system of the directories to watch
+     * @throws IOException if the watch service cannot be created
+     */
+    WatchKeyRouter(FileSystem fileSystem) throws IOException {
+        this.watchService = fileSystem.newWatchService();
+    }
+
+    /**
+     * Registers a directory for the supplied checker.
+     *
+     * @param owner the checker watching the directory
+     * @param directory the directory to watch
+     * @return the directory's key
+     * @throws IOException if the directory cannot be registered
+     */
+    WatchKey register(FileSystemChecker owner, Path directory) throws IOException {
+        synchronized (this.monitor) {
+            WatchKey key = directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+            Set<FileSystemChecker> keyOwners = this.owners.get(key);
+            if (keyOwners == null) {
+                keyOwners = new LinkedHashSet<FileSystemChecker>();
+                this.owners.put(key, keyOwners);
+            }
+            keyOwners.add(owner);
+            if (!this.signals.containsKey(owner)) {
+                this.signals.put(owner, new ArrayList<Signal>());
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Takes the signals for the supplied checker, routing any keys signalled since the last poll.
+     *
+     * @param owner the checker
+     * @return the signals, in the order the keys were signalled
+     * @throws java.nio.file.ClosedWatchServiceException if this router has been closed
+     */
+    List<Signal> poll(FileSystemChecker owner) {
+        synchronized (this.monitor) {
+            WatchKey key;
+            while ((key = this.watchService.poll()) != null) {
+                route(key);
+            }
+            List<Signal> polled = this.signals.get(owner);
+            if (polled == null || polled.isEmpty()) {
+                return Collections.<Signal> emptyList();
+            }
+            this.signals.put(owner, new ArrayList<Signal>());
+            return polled;
+        }
+    }
+
+    /**
+     * Routes a signalled key. Called holding <code>monitor</code>.
+     */
+    private void route(WatchKey key) {
+        List<WatchEvent<?>> events = key.pollEvents();
+        boolean valid = key.reset();
+        Set<FileSystemChecker> keyOwners = valid ? this.owners.get(key) : this.owners.remove(key);
+        if (keyOwners == null) {
+            // every owner has unregistered
+            key.cancel();
+            return;
+        }
+        Signal signal = new Signal((Path) key.watchable(), events, valid);
+        for (FileSystemChecker keyOwner : keyOwners) {
+            this.signals.get(keyOwner).add(signal);
+        }
+    }
+
+    /**
+     * Stops routing keys to the supplied checker, cancelling the keys which no other checker registered.
+     *
+     * @param owner the checker
+     */
+    void unregister(FileSystemChecker owner) {
+        synchronized (this.monitor) {
+            this.signals.remove(owner);
+            Iterator<Map.Entry<WatchKey, Set<FileSystemChecker>>> iterator = this.owners.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<WatchKey, Set<FileSystemChecker>> entry = iterator.next();
+                if (entry.getValue().remove(owner) && entry.getValue().isEmpty()) {
+                    entry.getKey().cancel();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the {@link WatchService}, invalidating the keys of every checker.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this.monitor) {
+            this.owners.clear();
+            this.signals.clear();
+        }
+        this.watchService.close();
+    }
+
+    /**
+     * The events of a signalled {@link WatchKey}.
+     */
+    static final class Signal {
+
+        private final Path directory;
+
+        private final List<WatchEvent<?>> events;
+
+        private final boolean valid;
+
+        Signal(Path directory, List<WatchEvent<?>> events, boolean valid) {
+            this.directory = directory;
+            this.events = events;
+            this.valid = valid;
+        }
+
+        /**
+         * @return the watched directory
+         */
+        Path getDirectory() {
+            return this.directory;
+        }
+
+        /**
+         * @return the events, possibly including {@link StandardWatchEventKinds#OVERFLOW OVERFLOW}
+         */
+        List<WatchEvent<?>> getEvents() {
+            return this.events;
+        }
+
+        /**
+         * @return <code>false</code> if the key is no longer valid, because the directory is inaccessible
+         */
+        boolean isValid() {
+            return this.valid;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import org.eclipse.virgo.util.common.Assert;
+
+/**
+ * A read-only view of the entries of a Zip file, giving random access to them without extracting anything to disk.
+ * <p/>
+ *
+ * The central directory is read once, when the view is created, into an index of entry names. The file is memory-mapped
+ * and an entry's data is only read when it is asked for: a {@link ZipEntry#STORED stored} entry is returned as a slice
+ * of the mapping, without copying, and a {@link ZipEntry#DEFLATED deflated} one is inflated into a new buffer and its
+ * CRC-32 checked. Archives of 2GB or more, and archives which need ZIP64 extensions, are not supported.
+ * <p/>
+ *
+ * Where {@link JarUtils#unpackTo(PathReference, PathReference) unpacking} a JAR file just to read its manifest or a few
+ * resources writes every entry to disk, a view reads only the entries asked for.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe.
+ *
+ */
+public final class ZipArchiveView implements Closeable {
+
+    private final PathReference zipFile;
+
+    private final FileChannel channel;
+
+    private final ZipCentralDirectory centralDirectory;
+
+    private final MappedByteBuffer mapping;
+
+    /**
+     * Entries by name. Where names are duplicated, the first entry is used.
+     */
+    private final Map<String, ZipCentralDirectory.Entry> entries;
+
+    private final List<String> sortedNames;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a new <code>ZipArchiveView</code> of the Zip file at {@link PathReference zipFile}, reading its central
+     * directory. The view must be {@link #close() closed} when it is no longer needed.
+     *
+     * @param zipFile the Zip file
+     * @throws IOException if the Zip file cannot be read, is not a Zip file, or is not supported
+     */
+    public ZipArchiveView(PathReference zipFile) throws IOException {
+        Assert.isTrue(zipFile.isFile(), "Supplied file '%s' must exist", zipFile);
+        this.zipFile = zipFile;
+        this.channel = FileChannel.open(zipFile.toFile().toPath(), StandardOpenOption.READ);
+        try {
+            if (this.channel.size() > Integer.MAX_VALUE) {
+                throw new ZipException("'" + zipFile + "' is too large to be viewed");
+            }
+            this.centralDirectory = ZipCentralDirectory.read(this.channel);
+            if (!this.centralDirectory.isComplete()) {
+                throw new ZipException("'" + zipFile + "' needs ZIP64 extensions, which are not supported");
+            }
+            this.mapping = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.channel.size());
+        } catch (IOException e) {
+            IOUtils.closeQuietly(this.channel);
+            throw e;
+        }
+
+        List<ZipCentralDirectory.Entry> centralEntries = this.centralDirectory.entries();
+        this.entries = new HashMap<String, ZipCentralDirectory.Entry>(centralEntries.size() * 4 / 3 + 1);
+        for (ZipCentralDirectory.Entry entry : centralEntries) {
+            if (!this.entries.containsKey(entry.name)) {
+                this.entries.put(entry.name, entry);
+            }
+        }
+        String[] names = this.entries.keySet().toArray(new String[this.entries.size()]);
+        Arrays.sort(names);
+        this.sortedNames = Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * Gets the names of all the entries, sorted.
+     *
+     * @return the entry names
+     */
+    public List<String> getEntryNames() {
+        return this.sortedNames;
+    }
+
+    /**
+     * Gets the names of the entries which start with the supplied prefix, sorted. For example, the prefix
+     * <code>"META-INF/"</code> gives the entries in the <code>META-INF</code> directory and its subdirectories.
+     *
+     * @param prefix the prefix
+     * @return the names of the matching entries, possibly empty
+     */
+    public List<String> getEntryNames(String prefix) {
+        Assert.notNull(prefix, "prefix must not be null");
+        int from = Collections.binarySearch(this.sortedNames, prefix);
+        if (from < 0) {
+            from = -from - 1;
+        }
+        int to = from;
+        while (to < this.sortedNames.size() && this.sortedNames.get(to).startsWith(prefix)) {
+            to++;
+        }
+        return this.sortedNames.subList(from, to);
+    }
+
+    /**
+     * Queries whether there is an entry with the supplied name.
+     *
+     * @param name the entry name
+     * @return <code>true</code> if the entry exists
+     */
+    public boolean hasEntry(String name) {
+        return this.entries.containsKey(name);
+    }
+
+    /**
+     * Gets the uncompressed size of an entry.
+     *
+     * @param name the entry name
+     * @return the size, or <code>-1</code> if there is no such entry
+     */
+    public long getSize(String name) {
+        ZipCentralDirectory.Entry entry = this.entries.get(name);
+        return entry == null ? -1 : entry.size;
+    }
+
+    /**
+     * Gets the uncompressed content of an entry. The returned buffer is read-only and positioned at the start of the
+     * content. A stored entry's buffer shares the memory mapping of the Zip file, so it must not be used after the view
+     * has been closed.
+     *
+     * @param name the entry name
+     * @return the content, or <code>null</code> if there is no such entry
+     * @throws IOException if the entry cannot be read
+     */
+    public ByteBuffer getEntry(String name) throws IOException {
+        if (this.closed) {
+            throw new IllegalStateException("View of '" + this.zipFile + "' is closed");
+        }
+        ZipCentralDirectory.Entry entry = this.entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isLocatable()) {
+            throw new ZipException("Entry '" + name + "' of '" + this.zipFile + "' is encrypted or needs ZIP64 extensions");
+        }
+        ByteBuffer data = this.mapping.duplicate();
+        int offset = (int) this.centralDirectory.dataOffset(entry);
+        data.position(offset);
+        data.limit(offset + (int) entry.compressedSize);
+        if (entry.method == ZipEntry.STORED) {
+            return data.slice().asReadOnlyBuffer();
+        }
+        if (entry.method == ZipEntry.DEFLATED) {
+            return inflate(entry, data).asReadOnlyBuffer();
+        }
+        throw new ZipException("Entry '" + name + "' of '" + this.zipFile + "' has unsupported compression method " + entry.method);
+    }
+
+    private ByteBuffer inflate(ZipCentralDirectory.Entry entry, ByteBuffer data) throws IOException {
+        if (entry.size > Integer.MAX_VALUE - 8) {
+            throw new ZipException("Entry '" + entry.name + "' of '" + this.zipFile + "' is too large");
+        }
+        // with nowrap, the inflater may need a byte beyond the end of the deflated data
+        byte[] input = new byte[data.remaining() + 1];
+        data.get(input, 0, input.length - 1);
+        byte[] output = new byte[(int) entry.size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int length = 0;
+            while (length < output.length) {
+                int count = inflater.inflate(output, length, output.length - length);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != output.length) {
+                throw new ZipException("Entry '" + entry.name + "' of '" + this.zipFile + "' is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Entry '" + entry.name + "' of '" + this.zipFile + "' is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(output, 0, output.length);
+        if (crc.getValue() != entry.crc) {
+            throw new ZipException("Entry '" + entry.name + "' of '" + this.zipFile + "' has an invalid CRC-32");
+        }
+        return ByteBuffer.wrap(output);
+    }
+
+    /**
+     * Closes the view, releasing the Zip file. Buffers of stored entries obtained from the view must no longer be used.
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        this.channel.close();
+    }
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a Zip archive from entries whose data has already been compressed, or is stored, and whose CRC-32 and sizes
+ * are therefore known before the entry is written. Unlike {@link java.util.zip.ZipOutputStream ZipOutputStream}, this
+ * allows entries to be compressed elsewhere, for example concurrently, or copied from another archive without being
+ * decompressed.
+ * <p/>
+ *
+ * Each entry is written as a local file header followed by the entry's data, with no data descriptor; the central
+ * directory is written by {@link #finish()}. Names are encoded in UTF-8. Archives which would need ZIP64 extensions
+ * (0xFFFF or more entries, or sizes or offsets of 0xFFFFFFFF or more, those values being the ZIP64 markers) are not
+ * supported and cause a {@link ZipException}.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Not thread-safe.
+ *
+ */
+final class ZipArchiveWriter {
+
+    static final long MAX_SIZE = 0xFFFFFFFFL;
+
+    static final int MAX_ENTRIES = 0xFFFF;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION_STORED = 10;
+
+    private static final int VERSION_DEFLATED = 20;
+
+    /**
+     * General purpose flag bit 11: names are encoded in UTF-8.
+     */
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private final OutputStream out;
+
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+    private final Calendar calendar = Calendar.getInstance();
+
+    private long written;
+
+    private int entryCount;
+
+    private long remainingEntryBytes;
+
+    /**
+     * Creates a new <code>ZipArchiveWriter</code> writing to the supplied stream, which it does not close.
+     *
+     * @param out the stream to write to
+     */
+    ZipArchiveWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the header of an entry. It must be followed by exactly <code>compressedSize</code> bytes of data written
+     * with {@link #writeData(byte[], int, int)}.
+     *
+     * @param name the name of the entry
+     * @param time the modification time of the entry, in milliseconds since the epoch
+     * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param crc the CRC-32 of the uncompressed data
+     * @param compressedSize the size of the entry's data as written
+     * @param size the size of the uncompressed data
+     * @throws IOException if the header cannot be written, or the archive would need ZIP64 extensions
+     */
+    void putEntry(String name, long time, int method, long crc, long compressedSize, long size) throws IOException {
+        putEntryWithDosTime(name, toDosTime(time), method, crc, compressedSize, size);
+    }
+
+    /**
+     * Writes the header of an entry whose modification time is already in MS-DOS form, as when copying an entry from
+     * another archive. It must be followed by exactly <code>compressedSize</code> bytes of data written with
+     * {@link #writeData(byte[], int, int)}.
+     *
+     * @param name the name of the entry
+     * @param dosTime the modification time of the entry as an MS-DOS date and time
+     * @param method the compression method, usually {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param crc the CRC-32 of the uncompressed data
+     * @param compressedSize the size of the entry's data as written
+     * @param size the size of the uncompressed data
+     * @throws IOException if the header cannot be written, or the archive would need ZIP64 extensions
+     */
+    void putEntryWithDosTime(String name, long dosTime, int method, long crc, long compressedSize, long size) throws IOException {
+        if (this.remainingEntryBytes != 0) {
+            throw new ZipException("Previous entry is incomplete");
+        }
+        // the maximum values are themselves the markers of ZIP64 fields, so they cannot be written either
+        if (this.entryCount + 1 >= MAX_ENTRIES || compressedSize >= MAX_SIZE || size >= MAX_SIZE || this.written >= MAX_SIZE) {
+            throw new ZipException("Entry '" + name + "' would need ZIP64 extensions");
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int version = method == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED;
+        long offset = this.written;
+
+        byte[] header = new byte[30 + nameBytes.length];
+        int position = putInt(header, 0, LOCAL_HEADER_SIGNATURE);
+        position = putShort(header, position, version);
+        position = putShort(header, position, FLAG_UTF8);
+        position = putShort(header, position, method);
+        position = putInt(header, position, dosTime);
+        position = putInt(header, position, crc);
+        position = putInt(header, position, compressedSize);
+        position = putInt(header, position, size);
+        position = putShort(header, position, nameBytes.length);
+        position = putShort(header, position, 0);
+        System.arraycopy(nameBytes, 0, header, position, nameBytes.length);
+        write(header, 0, header.length);
+
+        byte[] central = new byte[46 + nameBytes.length];
+        position = putInt(central, 0, CENTRAL_HEADER_SIGNATURE);
+        position = putShort(central, position, version);
+        position = putShort(central, position, version);
+        position = putShort(central, position, FLAG_UTF8);
+        position = putShort(central, position, method);
+        position = putInt(central, position, dosTime);
+        position = putInt(central, position, crc);
+        position = putInt(central, position, compressedSize);
+        position = putInt(central, position, size);
+        position = putShort(central, position, nameBytes.length);
+        position = putShort(central, position, 0); // extra field length
+        position = putShort(central, position, 0); // comment length
+        position = putShort(central, position, 0); // disk number
+        position = putShort(central, position, 0); // internal attributes
+        position = putInt(central, position, 0); // external attributes
+        position = putInt(central, position, offset);
+        System.arraycopy(nameBytes, 0, central, position, nameBytes.length);
+        this.centralDirectory.write(central, 0, central.length);
+
+        this.entryCount++;
+        this.remainingEntryBytes = compressedSize;
+    }
+
+    /**
+     * Writes data of the current entry.
+     *
+     * @param data the data
+     * @param offset the offset of the data in <code>data</code>
+     * @param length the number of bytes to write
+     * @throws IOException if the data cannot be written, or is more than the entry's compressed size
+     */
+    void writeData(byte[] data, int offset, int length) throws IOException {
+        if (length > this.remainingEntryBytes) {
+            throw new ZipException("Data exceeds the compressed size of the entry");
+        }
+        write(data, offset, length);
+        this.remainingEntryBytes -= length;
+    }
+
+    /**
+     * Writes the central directory, completing the archive. The underlying stream is flushed but not closed.
+     *
+     * @throws IOException if the central directory cannot be written
+     */
+    void finish() throws IOException {
+        if (this.remainingEntryBytes != 0) {
+            throw new ZipException("Last entry is incomplete");
+        }
+        long centralDirectoryOffset = this.written;
+        int centralDirectorySize = this.centralDirectory.size();
+        if (centralDirectoryOffset + centralDirectorySize >= MAX_SIZE) {
+            throw new ZipException("Central directory would need ZIP64 extensions");
+        }
+        this.centralDirectory.writeTo(this.out);
+        this.written += centralDirectorySize;
+
+        byte[] end = new byte[22];
+        int position = putInt(end, 0, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        position = putShort(end, position, 0); // this disk
+        position = putShort(end, position, 0); // disk with the central directory
+        position = putShort(end, position, this.entryCount);
+        position = putShort(end, position, this.entryCount);
+        position = putInt(end, position, centralDirectorySize);
+        position = putInt(end, position, centralDirectoryOffset);
+        putShort(end, position, 0); // comment length
+        write(end, 0, end.length);
+        this.out.flush();
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        this.out.write(data, offset, length);
+        this.written += length;
+    }
+
+    /**
+     * Converts a Java time to an MS-DOS date and time, in the default time zone, as {@link ZipEntry#setTime(long)}
+     * does.
+     */
+    private long toDosTime(long time) {
+        this.calendar.setTimeInMillis(time);
+        int year = this.calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (this.calendar.get(Calendar.MONTH) + 1) << 21 | this.calendar.get(Calendar.DAY_OF_MONTH) << 16
+            | this.calendar.get(Calendar.HOUR_OF_DAY) << 11 | this.calendar.get(Calendar.MINUTE) << 5 | this.calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static int putShort(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) value;
+        buffer[position + 1] = (byte) (value >> 8);
+        return position + 2;
+    }
+
+    private static int putInt(byte[] buffer, int position, long value) {
+        buffer[position] = (byte) value;
+        buffer[position + 1] = (byte) (value >> 8);
+        buffer[position + 2] = (byte) (value >> 16);
+        buffer[position + 3] = (byte) (value >> 24);
+        return position + 4;
+    }
+}
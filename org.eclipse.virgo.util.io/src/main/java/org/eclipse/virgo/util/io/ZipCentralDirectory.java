@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * The entries of a Zip file, read from its central directory. The data of {@link ZipEntry#STORED stored} entries can be
+ * copied straight out of the file with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)
+ * transferTo} rather than through a {@link java.util.zip.ZipFile ZipFile} stream.
+ * <p/>
+ *
+ * Only stored entries which can be located with certainty are transferred: entries which are encrypted, have duplicate
+ * names, or whose sizes or offsets need ZIP64 extensions are not, and callers fall back to <code>ZipFile</code> for
+ * them. An archive whose end of central directory record needs ZIP64 extensions is read as having no entries and is
+ * marked {@link #isComplete() incomplete}.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe. {@link #transferStoredEntry(String, FileChannel)} uses only positional reads of the Zip file's channel,
+ * so may be called concurrently.
+ *
+ */
+final class ZipCentralDirectory {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int LOCAL_HEADER_LENGTH = 30;
+
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int FLAG_ENCRYPTED = 1;
+
+    private final FileChannel channel;
+
+    private final List<Entry> entries;
+
+    private final Map<String, Entry> storedEntries;
+
+    private final boolean complete;
+
+    private ZipCentralDirectory(FileChannel channel, List<Entry> entries, Map<String, Entry> storedEntries, boolean complete) {
+        this.channel = channel;
+        this.entries = entries;
+        this.storedEntries = storedEntries;
+        this.complete = complete;
+    }
+
+    /**
+     * Reads the central directory of a Zip file.
+     *
+     * @param channel a channel open for reading the Zip file, which remains owned by the caller
+     * @return the central directory
+     * @throws IOException if the channel cannot be read or is not a Zip file
+     */
+    static ZipCentralDirectory read(FileChannel channel) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        Map<String, Entry> storedEntries = new HashMap<String, Entry>();
+        long fileSize = channel.size();
+        int tailLength = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_LENGTH + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = readFully(channel, fileSize - tailLength, tailLength);
+        int end = findEndOfCentralDirectory(tail);
+        if (end == -1) {
+            throw new ZipException("End of central directory not found");
+        }
+        int entryCount = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & ZIP64_MAGIC;
+        long directoryOffset = tail.getInt(end + 16) & ZIP64_MAGIC;
+        if (entryCount == 0xFFFF || directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC || directorySize > Integer.MAX_VALUE) {
+            return new ZipCentralDirectory(channel, entries, storedEntries, false);
+        }
+        long endPosition = fileSize - tailLength + end;
+        // non-zero when the archive has been appended to other data, as a self-extracting archive is
+        long base = endPosition - directorySize - directoryOffset;
+        if (base < 0) {
+            throw new ZipException("Invalid central directory offset");
+        }
+
+        ByteBuffer directory = readFully(channel, base + directoryOffset, (int) directorySize);
+        Set<String> names = new HashSet<String>();
+        int position = 0;
+        for (int index = 0; index < entryCount; index++) {
+            if (position + CENTRAL_HEADER_LENGTH > directory.limit() || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory header");
+            }
+            int flags = directory.getShort(position + 8) & 0xFFFF;
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            long dosTime = directory.getInt(position + 12) & ZIP64_MAGIC;
+            long crc = directory.getInt(position + 16) & ZIP64_MAGIC;
+            long compressedSize = directory.getInt(position + 20) & ZIP64_MAGIC;
+            long size = directory.getInt(position + 24) & ZIP64_MAGIC;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(position + 42) & ZIP64_MAGIC;
+            if (position + CENTRAL_HEADER_LENGTH + nameLength > directory.limit()) {
+                throw new ZipException("Invalid central directory header");
+            }
+            String name = new String(directory.array(), position + CENTRAL_HEADER_LENGTH, nameLength, StandardCharsets.UTF_8);
+            Entry entry = new Entry(name, method, flags, dosTime, crc, compressedSize, size, localHeaderOffset == ZIP64_MAGIC
+                ? ZIP64_MAGIC : base + localHeaderOffset);
+            entries.add(entry);
+            if (!names.add(name)) {
+                storedEntries.remove(name);
+            } else if (method == ZipEntry.STORED && entry.isLocatable() && compressedSize == size && !name.endsWith("/")) {
+                storedEntries.put(name, entry);
+            }
+            position += CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+        }
+        return new ZipCentralDirectory(channel, entries, storedEntries, true);
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer tail) {
+        for (int position = tail.limit() - END_OF_CENTRAL_DIRECTORY_LENGTH; position >= 0; position--) {
+            if (tail.getInt(position) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                int commentLength = tail.getShort(position + 20) & 0xFFFF;
+                if (position + END_OF_CENTRAL_DIRECTORY_LENGTH + commentLength <= tail.limit()) {
+                    return position;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the entries, in the order of the central directory.
+     *
+     * @return the entries
+     */
+    List<Entry> entries() {
+        return this.entries;
+    }
+
+    /**
+     * Queries whether all of the entries were read, which they are not if the archive needs ZIP64 extensions.
+     *
+     * @return <code>true</code> if {@link #entries()} are all of the archive's entries
+     */
+    boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * Queries whether an entry is stored and its data can be transferred directly.
+     *
+     * @param name the name of the entry
+     * @return <code>true</code> if {@link #transferStoredEntry(String, FileChannel)} would transfer the entry
+     */
+    boolean isStored(String name) {
+        return this.storedEntries.containsKey(name);
+    }
+
+    /**
+     * Copies the data of a stored entry to a channel with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)
+     * transferTo}, which can avoid copying the data through user space.
+     *
+     * @param name the name of the entry
+     * @param target the channel to write the entry's data to
+     * @return <code>true</code> if the entry was transferred, <code>false</code> if it is not a stored entry that has
+     *         been located, in which case nothing is written
+     * @throws IOException if the data cannot be transferred
+     */
+    boolean transferStoredEntry(String name, FileChannel target) throws IOException {
+        Entry entry = this.storedEntries.get(name);
+        if (entry == null) {
+            return false;
+        }
+        long position = dataOffset(entry);
+        long remaining = entry.size;
+        while (remaining > 0) {
+            long transferred = this.channel.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                throw new EOFException("Unable to transfer data of entry '" + name + "'");
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the offset of an entry's data from the start of the file, which is found from the entry's local header since
+     * the local extra field may differ from the one in the central directory.
+     *
+     * @param entry a {@link Entry#isLocatable() locatable} entry
+     * @return the offset of the entry's data
+     * @throws IOException if the local header cannot be read or is invalid, or the data extends past the end of the file
+     */
+    long dataOffset(Entry entry) throws IOException {
+        ByteBuffer header = readFully(this.channel, entry.localHeaderOffset, LOCAL_HEADER_LENGTH);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header for entry '" + entry.name + "'");
+        }
+        long offset = entry.localHeaderOffset + LOCAL_HEADER_LENGTH + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        if (offset + entry.compressedSize > this.channel.size()) {
+            throw new EOFException("Data of entry '" + entry.name + "' extends past the end of the file");
+        }
+        return offset;
+    }
+
+    /**
+     * Reads the data of an entry as it is in the file, without decompressing it.
+     *
+     * @param entry a {@link Entry#isLocatable() locatable} entry
+     * @param out the writer to write the data to, after the entry's header
+     * @param buffer a buffer to copy the data with
+     * @throws IOException if the data cannot be read or written
+     */
+    void copyRawData(Entry entry, ZipArchiveWriter out, byte[] buffer) throws IOException {
+        long position = dataOffset(entry);
+        long remaining = entry.compressedSize;
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        while (remaining > 0) {
+            byteBuffer.clear();
+            byteBuffer.limit((int) Math.min(buffer.length, remaining));
+            int count = this.channel.read(byteBuffer, position);
+            if (count == -1) {
+                throw new EOFException("Unexpected end of Zip file in entry '" + entry.name + "'");
+            }
+            out.writeData(buffer, 0, count);
+            position += count;
+            remaining -= count;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Unexpected end of Zip file");
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * An entry as recorded in the central directory. Offsets and sizes which need ZIP64 extensions are recorded as
+     * <code>0xFFFFFFFF</code>.
+     */
+    static final class Entry {
+
+        final String name;
+
+        final int method;
+
+        final int flags;
+
+        /**
+         * The modification time as an MS-DOS date and time.
+         */
+        final long dosTime;
+
+        final long crc;
+
+        final long compressedSize;
+
+        final long size;
+
+        /**
+         * The offset of the entry's local header from the start of the file, not the start of the archive.
+         */
+        final long localHeaderOffset;
+
+        Entry(String name, int method, int flags, long dosTime, long crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        /**
+         * Queries whether the entry's data can be located and read without ZIP64 extensions or decryption.
+         *
+         * @return <code>true</code> if the entry can be read
+         */
+        boolean isLocatable() {
+            return (this.flags & FLAG_ENCRYPTED) == 0 && this.compressedSize != ZIP64_MAGIC && this.size != ZIP64_MAGIC
+                && this.localHeaderOffset != ZIP64_MAGIC;
+        }
+    }
+}
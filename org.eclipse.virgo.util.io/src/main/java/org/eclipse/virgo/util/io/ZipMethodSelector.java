@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Chooses whether a file is {@link ZipEntry#STORED stored} or {@link ZipEntry#DEFLATED deflated} in a Zip file, as
+ * configured by {@link ZipOptions}.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Thread-safe.
+ *
+ */
+final class ZipMethodSelector {
+
+    /**
+     * The number of bytes at the start of a file which are deflated to judge whether the file is compressible.
+     */
+    static final int TRIAL_SIZE = BufferPool.BYTE_BUFFER_SIZE;
+
+    private ZipMethodSelector() {
+    }
+
+    /**
+     * Chooses the method for a file.
+     *
+     * @param file the file
+     * @param options the options
+     * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @throws IOException if a trial deflate is needed and the file cannot be read
+     */
+    static int select(File file, ZipOptions options) throws IOException {
+        if (options.getLevel() == Deflater.NO_COMPRESSION || hasStoredExtension(file, options)) {
+            return ZipEntry.STORED;
+        }
+        if (options.isStoreIncompressible() && isIncompressible(file, options)) {
+            return ZipEntry.STORED;
+        }
+        return ZipEntry.DEFLATED;
+    }
+
+    private static boolean hasStoredExtension(File file, ZipOptions options) {
+        if (options.getStoredExtensions().isEmpty()) {
+            return false;
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot == -1) {
+            return false;
+        }
+        String extension = name.substring(dot + 1);
+        for (String storedExtension : options.getStoredExtensions()) {
+            if (storedExtension.equalsIgnoreCase(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isIncompressible(File file, ZipOptions options) throws IOException {
+        byte[] input = BufferPool.takeBytes();
+        try {
+            int length = 0;
+            try (InputStream in = new FileInputStream(file)) {
+                int count;
+                while (length < TRIAL_SIZE && (count = in.read(input, length, TRIAL_SIZE - length)) != -1) {
+                    length += count;
+                }
+            }
+            return length > 0 && trialDeflate(input, length, options.getLevel()) > length * options.getIncompressibleRatio();
+        } finally {
+            BufferPool.giveBytes(input);
+        }
+    }
+
+    private static long trialDeflate(byte[] input, int length, int level) {
+        Deflater deflater = new Deflater(level, true);
+        byte[] output = BufferPool.takeBytes();
+        try {
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+            long deflated = 0;
+            while (!deflater.finished()) {
+                deflated += deflater.deflate(output);
+            }
+            return deflated;
+        } finally {
+            deflater.end();
+            BufferPool.giveBytes(output);
+        }
+    }
+
+    /**
+     * Computes the CRC-32 of a file, as must be known before a stored entry is written.
+     *
+     * @param file the file
+     * @param buffer a buffer to read the file with
+     * @return the CRC-32
+     * @throws IOException if the file cannot be read
+     */
+    static long crc(File file, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        }
+        return crc.getValue();
+    }
+}
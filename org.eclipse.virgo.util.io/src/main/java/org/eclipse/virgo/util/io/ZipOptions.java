@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import org.eclipse.virgo.util.common.Assert;
+
+/**
+ * Optional settings controlling how {@link ZipUtils} compresses the entries of the Zip files it creates. By default
+ * every file is deflated at {@link Deflater#DEFAULT_COMPRESSION the default level}.
+ * <p/>
+ * Setters return <code>this</code> to allow chaining. Options must not be changed while a Zip file is being created
+ * with them.
+ * <p/>
+ *
+ * <strong>Concurrent Semantics</strong><br/>
+ *
+ * Not thread-safe.
+ *
+ */
+public final class ZipOptions {
+
+    /**
+     * The default ratio of deflated to original size above which {@link #setStoreIncompressible(boolean) incompressible}
+     * files are stored.
+     */
+    public static final double DEFAULT_INCOMPRESSIBLE_RATIO = 0.9;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    private List<String> storedExtensions = Collections.emptyList();
+
+    private boolean storeIncompressible;
+
+    private double incompressibleRatio = DEFAULT_INCOMPRESSIBLE_RATIO;
+
+    /**
+     * Gets the deflate level.
+     *
+     * @return the level
+     * @see #setLevel(int)
+     */
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Sets the level at which files are deflated, from {@link Deflater#BEST_SPEED} (1) to
+     * {@link Deflater#BEST_COMPRESSION} (9), or {@link Deflater#DEFAULT_COMPRESSION}. Level
+     * {@link Deflater#NO_COMPRESSION} (0) stores every file rather than deflating it, which is the cheapest way to
+     * create an archive that is only copied locally.
+     *
+     * @param level the deflate level
+     * @return these options
+     */
+    public ZipOptions setLevel(int level) {
+        Assert.isTrue(level == Deflater.DEFAULT_COMPRESSION || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION),
+            "level must be between 0 and 9, or -1 for the default");
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Gets the extensions of files which are stored rather than deflated.
+     *
+     * @return the extensions, in lower case and without a leading '.', possibly empty
+     * @see #setStoredExtensions(String...)
+     */
+    public List<String> getStoredExtensions() {
+        return this.storedExtensions;
+    }
+
+    /**
+     * Sets the extensions of files which are stored rather than deflated, for example <code>"jar", "png"</code> for
+     * content that is already compressed. Extensions are matched case-insensitively, and may be given with or without a
+     * leading '.'.
+     *
+     * @param storedExtensions the extensions -- none to deflate files whatever their extension
+     * @return these options
+     */
+    public ZipOptions setStoredExtensions(String... storedExtensions) {
+        List<String> extensions = new ArrayList<String>(storedExtensions.length);
+        for (String extension : storedExtensions) {
+            String normalized = extension.startsWith(".") ? extension.substring(1) : extension;
+            extensions.add(normalized.toLowerCase(Locale.ENGLISH));
+        }
+        this.storedExtensions = Collections.unmodifiableList(extensions);
+        return this;
+    }
+
+    /**
+     * Queries whether files which deflate poorly are stored.
+     *
+     * @return <code>true</code> if incompressible files are stored
+     * @see #setStoreIncompressible(boolean)
+     */
+    public boolean isStoreIncompressible() {
+        return this.storeIncompressible;
+    }
+
+    /**
+     * Sets whether files which deflate poorly are stored. When set, the start of each file not otherwise stored is
+     * trial deflated and, if the result is more than {@link #getIncompressibleRatio() the incompressible ratio} of its
+     * original size, the file is stored, saving the cost of deflating all of it for little or no gain.
+     *
+     * @param storeIncompressible <code>true</code> to store incompressible files
+     * @return these options
+     */
+    public ZipOptions setStoreIncompressible(boolean storeIncompressible) {
+        this.storeIncompressible = storeIncompressible;
+        return this;
+    }
+
+    /**
+     * Gets the ratio of deflated to original size above which incompressible files are stored.
+     *
+     * @return the ratio
+     */
+    public double getIncompressibleRatio() {
+        return this.incompressibleRatio;
+    }
+
+    /**
+     * Sets the ratio of deflated to original size above which a trial deflate deems a file incompressible. Only used
+     * when {@link #setStoreIncompressible(boolean) storing incompressible files}.
+     *
+     * @param incompressibleRatio the ratio, greater than 0 -- defaults to {@value #DEFAULT_INCOMPRESSIBLE_RATIO}
+     * @return these options
+     */
+    public ZipOptions setIncompressibleRatio(double incompressibleRatio) {
+        Assert.isTrue(incompressibleRatio > 0, "incompressibleRatio must be positive");
+        this.incompressibleRatio = incompressibleRatio;
+        return this;
+    }
+}
@@ -11,14 +11,21 @@
 
 package org.eclipse.virgo.util.io;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -26,6 +33,7 @@ import java.util.zip.ZipOutputStream;
 import org.eclipse.virgo.util.common.Assert;
 import org.eclipse.virgo.util.common.IterableEnumeration;
 import org.eclipse.virgo.util.common.StringUtils;
+import org.eclipse.virgo.util.io.PathReference.PathFilter;
 
 
 
@@ -40,7 +48,6 @@ import org.eclipse.virgo.util.common.StringUtils;
 public class ZipUtils {
     
     private static final String ZIP_FILENAME_SUFFIX = ".zip";
-    private static final int BUFFER_SIZE = 2048;
     
     /**
      * Unzips the Zip file at {@link PathReference jarFile} to the directory <code>dest</code>.<p/>
@@ -80,6 +87,72 @@ public class ZipUtils {
     public static PathReference unzipToDestructive(PathReference zipFile, PathReference dest) throws IOException {
         return unzipToFolder(zipFile, dest, true);
     }
+
+    /**
+     * Unzips the Zip file at {@link PathReference zipFile} to the directory <code>dest</code>, extracting entries
+     * concurrently on the supplied {@link ForkJoinPool}. The destination is determined as for
+     * {@link #unzipTo(PathReference, PathReference)}.<p/>
+     * 
+     * All the directories needed are created first, and the file entries are then divided among tasks in the pool,
+     * each of which decompresses its entries and writes them through a {@link java.nio.channels.FileChannel FileChannel}.
+     * Extraction continues past an entry which cannot be extracted; the failures are reported together once all entries
+     * have been attempted.
+     * 
+     * @param zipFile the Zip file to unzip
+     * @param dest the destination directory
+     * @param pool the pool to extract entries on, for example {@link ForkJoinPool#commonPool()}
+     * @return a <code>PathReference</code> to the directory containing the Zip file's contents.
+     * @throws IOException if an error occurs during unzip. If several entries cannot be extracted the exceptions for all
+     *         but the first are {@link Throwable#getSuppressed() suppressed} by the one thrown.
+     */
+    public static PathReference unzipTo(PathReference zipFile, PathReference dest, ForkJoinPool pool) throws IOException {
+        return unzipToFolder(zipFile, dest, false, pool);
+    }
+
+    /**
+     * Unzips the Zip file at {@link PathReference zipFile} to the directory <code>dest</code>, extracting entries
+     * concurrently on the supplied {@link ForkJoinPool}. The destination is determined, and any existing content deleted,
+     * as for {@link #unzipToDestructive(PathReference, PathReference)}; entries are extracted as for
+     * {@link #unzipTo(PathReference, PathReference, ForkJoinPool)}.
+     * 
+     * @param zipFile the Zip file to unzip
+     * @param dest the destination directory
+     * @param pool the pool to extract entries on, for example {@link ForkJoinPool#commonPool()}
+     * @return a <code>PathReference</code> to the directory containing the Zip file's contents.
+     * @throws IOException if an error occurs during unzip.
+     */
+    public static PathReference unzipToDestructive(PathReference zipFile, PathReference dest, ForkJoinPool pool) throws IOException {
+        return unzipToFolder(zipFile, dest, true, pool);
+    }
+
+    /**
+     * Unzips the Zip file at {@link PathReference zipFile} to the directory <code>dest</code>, updating rather than
+     * replacing whatever the directory already contains.<p/>
+     * 
+     * If the supplied <code>dest</code> {@link PathReference} does not exist, it is created as a directory and the
+     * Zip is unzipped <strong>directly</strong> into the newly created directory.<p/>
+     * 
+     * If the supplied <code>dest</code> <code>PathReference</code> already exists and is a directory then, as for
+     * {@link #unzipToDestructive(PathReference, PathReference)}, its content is made the same as the Zip file's, but
+     * only the differences are written: a file whose size and CRC-32 match its entry is left untouched, other entries are
+     * extracted, and files and directories which are not in the Zip file are deleted. Re-extracting an archive which has
+     * changed in only a few entries is therefore much cheaper than a destructive unzip.
+     * 
+     * @param zipFile the Zip file to unzip
+     * @param dest the destination directory
+     * @return a <code>PathReference</code> to the directory containing the Zip file's contents.
+     * @throws IOException if an error occurs during unzip.
+     */
+    public static PathReference unzipToIncremental(PathReference zipFile, PathReference dest) throws IOException {
+        Assert.isTrue(zipFile.exists(), "Supplied file '%s' must exist", zipFile);
+        if (!dest.exists()) {
+            dest.createDirectory();
+        } else if (!dest.isDirectory()) {
+            throw new FatalIOException("Destination path '" + dest + "' already exists and is not a directory");
+        }
+        IncrementalZipExtractor.extract(zipFile.toFile(), dest);
+        return dest;
+    }
     
     /**
      * Zips the file or directory at {@link PathReference toZip} and writes the resulting Zip file to the
@@ -98,22 +171,7 @@ public class ZipUtils {
      * @return a <code>PathReference</code> to the created Zip file.
      */
     public static PathReference zipTo(PathReference toZip, PathReference dest) throws IOException {
-        Assert.isTrue(toZip.exists(), "Supplied file or directory '%s' must exist", toZip);
-        
-        PathReference finalDest = determineFinalZipDestination(toZip, dest);    
-        
-        ZipOutputStream zos = null;
-        
-        try {
-            zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(finalDest.toFile())));       
-            doZip(zos, toZip.toFile(), toZip.toFile(), null);
-        } finally {
-            if (zos != null) {
-                zos.close();
-            }
-        }
-        
-        return finalDest;
+        return zipTo(toZip, dest, null, new ZipOptions());
     }
     
     /**
@@ -135,7 +193,24 @@ public class ZipUtils {
      * @throws IOException if an error occurs during the zip process.
      */
     public static PathReference zipTo(PathReference toZip, PathReference dest, String entryPrefix) throws IOException {
+        return zipTo(toZip, dest, entryPrefix, new ZipOptions());
+    }
+
+    /**
+     * Zips the file or directory at {@link PathReference toZip} and writes the resulting Zip file to the supplied
+     * destination, compressing entries as specified by the supplied {@link ZipOptions}. The destination and the entry
+     * names are determined as for {@link #zipTo(PathReference, PathReference, String)}.
+     * <p/>
+     * @param toZip The file or directory from which the Zip file is to be created.
+     * @param dest The path to which the created Zip file is to be written.
+     * @param entryPrefix for all entry names, null means no prefix
+     * @param options how entries are compressed
+     * @return final Zip destination {@link PathReference}
+     * @throws IOException if an error occurs during the zip process.
+     */
+    public static PathReference zipTo(PathReference toZip, PathReference dest, String entryPrefix, ZipOptions options) throws IOException {
         Assert.isTrue(toZip.exists(), "Supplied file or directory '%s' must exist", toZip);
+        Assert.notNull(options, "options must not be null");
         
         PathReference finalDest = determineFinalZipDestination(toZip, dest);    
         
@@ -143,7 +218,8 @@ public class ZipUtils {
         
         try {
             zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(finalDest.toFile())));       
-            doZip(zos, toZip.toFile(), toZip.toFile(), entryPrefix);
+            zos.setLevel(options.getLevel());
+            doZip(zos, toZip.toFile(), toZip.toFile(), entryPrefix, null, options);
         } finally {
             if (zos != null) {
                 zos.close();
@@ -153,24 +229,178 @@ public class ZipUtils {
         return finalDest;
     }
     
+    /**
+     * Zips the file or directory at {@link PathReference toZip} and writes the resulting Zip file to the supplied
+     * destination, deflating entries concurrently on the supplied {@link ForkJoinPool}. The destination and the entry
+     * names are determined as for {@link #zipTo(PathReference, PathReference, String)}.
+     * <p/>
+     * Each file is deflated into a buffer of its own by a task in the pool and the buffers are written to the Zip file in
+     * a fixed order, a directory being followed by its children sorted by name. Entries carry the last modified times of
+     * their files, so zipping the same, unchanged, files always produces an identical Zip file. Deflation runs ahead of
+     * writing by a bounded amount of input, which limits the memory used.
+     * <p/>
+     * If the Zip file would need ZIP64 extensions (65535 or more entries, or 4GB or more of content), or a file is too
+     * large to be buffered in memory (more than 64MB), it is written sequentially instead, as by
+     * {@link #zipTo(PathReference, PathReference, String)}.
+     * <p/>
+     * @param toZip The file or directory from which the Zip file is to be created.
+     * @param dest The path to which the created Zip file is to be written.
+     * @param entryPrefix for all entry names, null means no prefix
+     * @param pool the pool to deflate entries on, for example {@link ForkJoinPool#commonPool()}
+     * @return final Zip destination {@link PathReference}
+     * @throws IOException if an error occurs during the zip process.
+     */
+    public static PathReference zipTo(PathReference toZip, PathReference dest, String entryPrefix, ForkJoinPool pool) throws IOException {
+        return zipTo(toZip, dest, entryPrefix, pool, new ZipOptions());
+    }
+
+    /**
+     * Zips the file or directory at {@link PathReference toZip} and writes the resulting Zip file to the supplied
+     * destination, compressing entries as specified by the supplied {@link ZipOptions} and concurrently on the supplied
+     * {@link ForkJoinPool}, as for {@link #zipTo(PathReference, PathReference, String, ForkJoinPool)}.
+     * <p/>
+     * @param toZip The file or directory from which the Zip file is to be created.
+     * @param dest The path to which the created Zip file is to be written.
+     * @param entryPrefix for all entry names, null means no prefix
+     * @param pool the pool to compress entries on, for example {@link ForkJoinPool#commonPool()}
+     * @param options how entries are compressed
+     * @return final Zip destination {@link PathReference}
+     * @throws IOException if an error occurs during the zip process.
+     */
+    public static PathReference zipTo(PathReference toZip, PathReference dest, String entryPrefix, ForkJoinPool pool, ZipOptions options)
+        throws IOException {
+        Assert.isTrue(toZip.exists(), "Supplied file or directory '%s' must exist", toZip);
+        Assert.notNull(pool, "pool must not be null");
+        Assert.notNull(options, "options must not be null");
+
+        List<ParallelZipCompressor.Source> sources = ParallelZipCompressor.listSources(toZip.toFile(), entryPrefix);
+        if (!ParallelZipCompressor.canCompress(sources)) {
+            return zipTo(toZip, dest, entryPrefix, options);
+        }
+
+        PathReference finalDest = determineFinalZipDestination(toZip, dest);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(finalDest.toFile()))) {
+            ParallelZipCompressor.compress(sources, out, pool, options);
+        }
+        return finalDest;
+    }
+    
+    /**
+     * Zips the file or directory at {@link PathReference toZip} and writes the resulting Zip data to the supplied
+     * stream, without creating any intermediate file.
+     * <p/>
+     * Entries are named as for {@link #zipTo(PathReference, PathReference, String)}. If a <code>filter</code> is
+     * supplied, only the files and directories beneath <code>toZip</code> which it matches are zipped; a directory which
+     * it does not match is omitted together with all of its content, as for
+     * {@link PathReference#copy(PathReference, boolean, PathFilter) PathReference.copy}.
+     * <p/>
+     * The Zip data is complete, and <code>out</code> has been flushed, when this method returns. The stream is
+     * <strong>not</strong> closed. If zipping fails, no central directory is written, so the data already written to
+     * the stream is not a valid Zip file.
+     * <p/>
+     * @param toZip The file or directory from which the Zip data is to be created.
+     * @param out The stream to which the Zip data is to be written.
+     * @param entryPrefix for all entry names, null means no prefix
+     * @param filter a <code>PathFilter</code> controlling which paths are zipped, null means all paths
+     * @throws IOException if an error occurs during the zip process.
+     */
+    public static void zipTo(PathReference toZip, OutputStream out, String entryPrefix, PathFilter filter) throws IOException {
+        zipTo(toZip, out, entryPrefix, filter, new ZipOptions());
+    }
+
+    /**
+     * Zips the file or directory at {@link PathReference toZip} and writes the resulting Zip data to the supplied
+     * stream, compressing entries as specified by the supplied {@link ZipOptions}. Entries are named and filtered, and
+     * the stream is left open, as for {@link #zipTo(PathReference, OutputStream, String, PathFilter)}.
+     * <p/>
+     * @param toZip The file or directory from which the Zip data is to be created.
+     * @param out The stream to which the Zip data is to be written.
+     * @param entryPrefix for all entry names, null means no prefix
+     * @param filter a <code>PathFilter</code> controlling which paths are zipped, null means all paths
+     * @param options how entries are compressed
+     * @throws IOException if an error occurs during the zip process.
+     */
+    public static void zipTo(PathReference toZip, OutputStream out, String entryPrefix, PathFilter filter, ZipOptions options) throws IOException {
+        Assert.isTrue(toZip.exists(), "Supplied file or directory '%s' must exist", toZip);
+        Assert.notNull(out, "out must not be null");
+        Assert.notNull(options, "options must not be null");
+
+        UnclosableOutputStream target = new UnclosableOutputStream(out);
+        ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(target));
+        zos.setLevel(options.getLevel());
+        boolean zipped = false;
+        try {
+            doZip(zos, toZip.toFile(), toZip.toFile(), entryPrefix, filter, options);
+            zipped = true;
+        } finally {
+            if (!zipped) {
+                // so that closing zos cannot give the partial data a central directory
+                target.abandon();
+            }
+            zos.close();
+        }
+    }
+
+    /**
+     * Zips the file or directory at {@link PathReference toZip} and writes the resulting Zip data to the supplied
+     * channel, without creating any intermediate file. Entries are named and filtered as for
+     * {@link #zipTo(PathReference, OutputStream, String, PathFilter)}.
+     * <p/>
+     * The Zip data is complete when this method returns. The channel is <strong>not</strong> closed. If zipping fails,
+     * no central directory is written, so the data already written to the channel is not a valid Zip file.
+     * <p/>
+     * @param toZip The file or directory from which the Zip data is to be created.
+     * @param channel The channel to which the Zip data is to be written.
+     * @param entryPrefix for all entry names, null means no prefix
+     * @param filter a <code>PathFilter</code> controlling which paths are zipped, null means all paths
+     * @throws IOException if an error occurs during the zip process.
+     */
+    public static void zipTo(PathReference toZip, WritableByteChannel channel, String entryPrefix, PathFilter filter) throws IOException {
+        zipTo(toZip, channel, entryPrefix, filter, new ZipOptions());
+    }
+
+    /**
+     * Zips the file or directory at {@link PathReference toZip} and writes the resulting Zip data to the supplied
+     * channel, compressing entries as specified by the supplied {@link ZipOptions}. Entries are named and filtered, and
+     * the channel is left open, as for {@link #zipTo(PathReference, WritableByteChannel, String, PathFilter)}.
+     * <p/>
+     * @param toZip The file or directory from which the Zip data is to be created.
+     * @param channel The channel to which the Zip data is to be written.
+     * @param entryPrefix for all entry names, null means no prefix
+     * @param filter a <code>PathFilter</code> controlling which paths are zipped, null means all paths
+     * @param options how entries are compressed
+     * @throws IOException if an error occurs during the zip process.
+     */
+    public static void zipTo(PathReference toZip, WritableByteChannel channel, String entryPrefix, PathFilter filter, ZipOptions options)
+        throws IOException {
+        Assert.notNull(channel, "channel must not be null");
+        zipTo(toZip, Channels.newOutputStream(channel), entryPrefix, filter, options);
+    }
+
     @SuppressWarnings("unchecked")
     private static PathReference unzipToFolder(PathReference zipFile, PathReference dest, boolean isDestructive) throws IOException {
         Assert.isTrue(zipFile.exists(), "Supplied file '%s' must exist", zipFile);
         PathReference finalDest = determineFinalUnzipDestination(zipFile, dest, isDestructive);
         ZipFile zip = null;
+        FileChannel zipChannel = null;
         try {
             zip = new ZipFile(zipFile.toFile());
+            zipChannel = FileChannel.open(zipFile.toFile().toPath(), StandardOpenOption.READ);
+            ZipCentralDirectory centralDirectory = readCentralDirectory(zipChannel);
             for (ZipEntry entry : new IterableEnumeration<ZipEntry>((Enumeration<ZipEntry>)zip.entries())) {
                 PathReference entryPath = finalDest.newChild(entry.getName());
                 if (entry.isDirectory()) {
                     entryPath.createDirectory();
                 } else {
                     PathReference filePath = entryPath.createFile();
-                    InputStream inputStream = zip.getInputStream(entry);
-                    FileCopyUtils.copy(inputStream, new FileOutputStream(filePath.toFile()));
+                    if (!transferStoredEntry(centralDirectory, entry, filePath.toFile())) {
+                        InputStream inputStream = zip.getInputStream(entry);
+                        FileCopyUtils.copy(inputStream, new FileOutputStream(filePath.toFile()));
+                    }
                 }
             }
         } finally {
+            IOUtils.closeQuietly(zipChannel);
             if (zip != null) {
                 zip.close();
             }
@@ -178,9 +408,46 @@ public class ZipUtils {
         return finalDest;
     }
     
-    private static void doZip(ZipOutputStream zos, File file, File root, String entryPrefix) throws IOException {
-        
-        byte[] data = new byte[BUFFER_SIZE];
+    /**
+     * Reads the central directory of a Zip file for {@link #transferStoredEntry(ZipCentralDirectory, ZipEntry, File)},
+     * returning <code>null</code> if it cannot be read, so that an archive which <code>ZipFile</code> accepts but
+     * {@link ZipCentralDirectory} does not is still extracted, every entry being read through the <code>ZipFile</code>.
+     */
+    static ZipCentralDirectory readCentralDirectory(FileChannel zipChannel) {
+        try {
+            return ZipCentralDirectory.read(zipChannel);
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Copies a stored entry straight from the Zip file into <code>target</code>, returning <code>false</code> without
+     * touching <code>target</code> if the entry must instead be read through the <code>ZipFile</code>, as it must if
+     * <code>centralDirectory</code> is <code>null</code>.
+     */
+    static boolean transferStoredEntry(ZipCentralDirectory centralDirectory, ZipEntry entry, File target) throws IOException {
+        if (centralDirectory == null || entry.getMethod() != ZipEntry.STORED || !centralDirectory.isStored(entry.getName())) {
+            return false;
+        }
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            return centralDirectory.transferStoredEntry(entry.getName(), out);
+        }
+    }
+
+    private static PathReference unzipToFolder(PathReference zipFile, PathReference dest, boolean isDestructive, ForkJoinPool pool) throws IOException {
+        Assert.isTrue(zipFile.exists(), "Supplied file '%s' must exist", zipFile);
+        Assert.notNull(pool, "pool must not be null");
+        PathReference finalDest = determineFinalUnzipDestination(zipFile, dest, isDestructive);
+        ParallelZipExtractor.extract(zipFile.toFile(), finalDest, pool);
+        return finalDest;
+    }
+    
+    private static void doZip(ZipOutputStream zos, File file, File root, String entryPrefix, PathFilter filter, ZipOptions options)
+        throws IOException {
         
         String entryName = determineNameOfEntry(file, root, entryPrefix);
         
@@ -193,21 +460,30 @@ public class ZipUtils {
             }
             
             for (File dirFile : FileSystemUtils.listFiles(file)) {
-                doZip(zos, dirFile, root, entryPrefix);
+                if (filter == null || filter.matches(new PathReference(dirFile))) {
+                    doZip(zos, dirFile, root, entryPrefix, filter, options);
+                }
             }
         } else {
             InputStream is = null;
+            byte[] data = BufferPool.takeBytes();
             try {
                 ZipEntry entry = new ZipEntry(entryName);
+                if (ZipMethodSelector.select(file, options) == ZipEntry.STORED) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(file.length());
+                    entry.setCrc(ZipMethodSelector.crc(file, data));
+                }
                 zos.putNextEntry(entry);
     
-                is = new BufferedInputStream(new FileInputStream(file));
+                is = new FileInputStream(file);
                 int count;
                 while ((count = is.read(data)) > 0) {
                     zos.write(data, 0, count);
                 }
                 zos.closeEntry();
             } finally {
+                BufferPool.giveBytes(data);
                 if (is != null) {
                     is.close();
                 }
@@ -215,7 +491,7 @@ public class ZipUtils {
         }
     }
 
-    private static String determineNameOfEntry(File file, File root, String entryPrefix) {
+    static String determineNameOfEntry(File file, File root, String entryPrefix) {
         String fileName = file.getAbsolutePath().substring(root.getAbsolutePath().length());
         String entryName;
         if (entryPrefix == null) {
@@ -254,6 +530,53 @@ public class ZipUtils {
         return finalDest;
     }
     
+    /**
+     * Passes everything through to the wrapped stream except {@link #close()}, which only flushes it, so that a
+     * <code>ZipOutputStream</code> can be closed, releasing its <code>Deflater</code>, without closing a caller's stream.
+     * Once {@link #abandon() abandoned}, nothing more is passed through.
+     */
+    private static final class UnclosableOutputStream extends FilterOutputStream {
+
+        private boolean abandoned;
+
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * Discards everything written from now on.
+         */
+        void abandon() {
+            this.abandoned = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!this.abandoned) {
+                this.out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!this.abandoned) {
+                this.out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!this.abandoned) {
+                this.out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
     private static PathReference determineFinalZipDestination(PathReference toZip, PathReference dest) {
         if (dest.exists()) {
             if (!dest.isDirectory()) {
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ */
+public class AsynchronousFileSystemListenerTests {
+
+    private static final FileSystemEvent[] SEQUENCE = { FileSystemEvent.CREATED, FileSystemEvent.MODIFIED, FileSystemEvent.DELETED };
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdownExecutor() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void eventsForAPathArriveInOrder() throws Exception {
+        final int paths = 20;
+        final int rounds = 10;
+        final CountDownLatch delivered = new CountDownLatch(paths * rounds * SEQUENCE.length);
+        final Map<String, List<FileSystemEvent>> received = new HashMap<String, List<FileSystemEvent>>();
+        FileSystemListener delegate = new FileSystemListener() {
+
+            @Override
+            public void onChange(String path, FileSystemEvent event) {
+                synchronized (received) {
+                    List<FileSystemEvent> events = received.get(path);
+                    if (events == null) {
+                        events = new ArrayList<FileSystemEvent>();
+                        received.put(path, events);
+                    }
+                    events.add(event);
+                }
+                delivered.countDown();
+            }
+
+            @Override
+            public void onInitialEvent(List<String> paths) {
+            }
+        };
+        AsynchronousFileSystemListener listener = new AsynchronousFileSystemListener(delegate, this.executor, 8, null);
+        for (int round = 0; round < rounds; round++) {
+            for (FileSystemEvent event : SEQUENCE) {
+                for (int path = 0; path < paths; path++) {
+                    listener.onChange("path" + path, event);
+                }
+            }
+        }
+        assertTrue("Expected all events to be delivered", delivered.await(10, TimeUnit.SECONDS));
+        for (List<FileSystemEvent> events : received.values()) {
+            assertEquals(rounds * SEQUENCE.length, events.size());
+            for (int index = 0; index < events.size(); index++) {
+                assertEquals(SEQUENCE[index % SEQUENCE.length], events.get(index));
+            }
+        }
+        for (int attempt = 0; attempt < 100 && listener.getOutstandingCount() > 0; attempt++) {
+            Thread.sleep(10);
+        }
+        assertEquals(paths * rounds * SEQUENCE.length, listener.getDeliveredCount());
+    }
+
+    @Test
+    public void fullQueueBlocksCaller() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        FileSystemListener delegate = new FileSystemListener() {
+
+            @Override
+            public void onChange(String path, FileSystemEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onInitialEvent(List<String> paths) {
+            }
+        };
+        final AsynchronousFileSystemListener listener = new AsynchronousFileSystemListener(delegate, this.executor, 2, null);
+        listener.onChange("a", FileSystemEvent.CREATED);
+        listener.onChange("b", FileSystemEvent.CREATED);
+        assertEquals(2, listener.getOutstandingCount());
+
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                listener.onChange("c", FileSystemEvent.CREATED);
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue("Expected producer to be blocked", producer.isAlive());
+
+        release.countDown();
+        producer.join(10000);
+        assertEquals(1, listener.getBlockedCount());
+        assertTrue(listener.getBlockedTime(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    public void initialEventIsDeliveredOnCallingThread() {
+        final List<Thread> threads = new ArrayList<Thread>();
+        FileSystemListener delegate = new FileSystemListener() {
+
+            @Override
+            public void onChange(String path, FileSystemEvent event) {
+            }
+
+            @Override
+            public void onInitialEvent(List<String> paths) {
+                threads.add(Thread.currentThread());
+            }
+        };
+        new AsynchronousFileSystemListener(delegate, this.executor, 1, null).onInitialEvent(new ArrayList<String>());
+        assertEquals(Thread.currentThread(), threads.get(0));
+    }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class BufferPoolTests {
+
+    @Test
+    public void buffersAreReused() {
+        byte[] bytes = BufferPool.takeBytes();
+        BufferPool.giveBytes(bytes);
+        long hits = BufferPool.getHitCount();
+        long misses = BufferPool.getMissCount();
+
+        assertSame(bytes, BufferPool.takeBytes());
+        assertEquals(hits + 1, BufferPool.getHitCount());
+        assertEquals(misses, BufferPool.getMissCount());
+        BufferPool.giveBytes(bytes);
+
+        char[] chars = BufferPool.takeChars();
+        BufferPool.giveChars(chars);
+        assertSame(chars, BufferPool.takeChars());
+        BufferPool.giveChars(chars);
+
+        ByteBuffer direct = BufferPool.takeDirect();
+        assertTrue(direct.isDirect());
+        direct.position(10);
+        BufferPool.giveDirect(direct);
+        ByteBuffer reused = BufferPool.takeDirect();
+        assertSame(direct, reused);
+        assertEquals(0, reused.position());
+        BufferPool.giveDirect(reused);
+    }
+
+    @Test
+    public void nestedTakesGetDistinctBuffers() {
+        long outstanding = BufferPool.getOutstandingCount();
+        byte[] outer = BufferPool.takeBytes();
+        byte[] inner = BufferPool.takeBytes();
+        assertNotSame(outer, inner);
+        assertEquals(outstanding + 2, BufferPool.getOutstandingCount());
+        BufferPool.giveBytes(inner);
+        BufferPool.giveBytes(outer);
+        assertEquals(outstanding, BufferPool.getOutstandingCount());
+    }
+
+    @Test
+    public void oneBufferOfEachKindIsKeptPerThread() {
+        byte[] outer = BufferPool.takeBytes();
+        byte[] inner = BufferPool.takeBytes();
+        BufferPool.giveBytes(inner);
+        BufferPool.giveBytes(outer);
+        long misses = BufferPool.getMissCount();
+        assertSame(inner, BufferPool.takeBytes());
+        assertEquals(misses, BufferPool.getMissCount());
+        byte[] allocated = BufferPool.takeBytes();
+        assertNotSame(outer, allocated);
+        assertEquals(misses + 1, BufferPool.getMissCount());
+        BufferPool.giveBytes(allocated);
+        BufferPool.giveBytes(inner);
+    }
+
+    @Test
+    public void bufferGivenBackTwiceIsRejected() {
+        long outstanding = BufferPool.getOutstandingCount();
+        byte[] bytes = BufferPool.takeBytes();
+        BufferPool.giveBytes(bytes);
+        try {
+            BufferPool.giveBytes(bytes);
+            fail("Buffer given back twice was accepted");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(outstanding, BufferPool.getOutstandingCount());
+
+        byte[] outer = BufferPool.takeBytes();
+        byte[] inner = BufferPool.takeBytes();
+        assertNotSame(outer, inner);
+        BufferPool.giveBytes(inner);
+        BufferPool.giveBytes(outer);
+    }
+
+    @Test
+    public void bufferGivenBackByAnotherThreadIsRejected() throws Exception {
+        final ByteBuffer direct = BufferPool.takeDirect();
+        final AtomicBoolean rejected = new AtomicBoolean();
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    BufferPool.giveDirect(direct);
+                } catch (IllegalArgumentException e) {
+                    rejected.set(true);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        assertTrue(rejected.get());
+        BufferPool.giveDirect(direct);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignBufferIsRejected() {
+        BufferPool.giveBytes(new byte[10]);
+    }
+}
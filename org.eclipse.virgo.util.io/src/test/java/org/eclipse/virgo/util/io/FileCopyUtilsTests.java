@@ -19,9 +19,12 @@ import static org.junit.Assert.assertTrue;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.channels.Channels;
 import java.util.Arrays;
 
 import org.junit.After;
@@ -108,4 +111,78 @@ public class FileCopyUtilsTests {
         assertEquals(content, result);
     }
 
+    @Test
+    public void testCopyLargeFileToFile() throws IOException {
+        byte[] content = largeContent();
+        File in = new File(testDir, "largeIn");
+        File out = new File(testDir, "largeOut");
+        FileCopyUtils.copy(content, in);
+
+        assertEquals(content.length, FileCopyUtils.copyLarge(in, out));
+        assertArrayEquals(content, FileCopyUtils.copyToByteArray(out));
+        assertEquals(content.length, FileCopyUtils.copy(in, out));
+        assertArrayEquals(content, FileCopyUtils.copyToByteArray(out));
+    }
+
+    @Test
+    public void testCopyLargeFileStreams() throws IOException {
+        byte[] content = largeContent();
+        File in = new File(testDir, "largeIn");
+        File out = new File(testDir, "largeOut");
+        FileCopyUtils.copy(content, in);
+
+        FileInputStream inStream = new FileInputStream(in);
+        assertEquals(10, inStream.read(new byte[10]));
+        assertEquals(content.length - 10, FileCopyUtils.copyLarge(inStream, new FileOutputStream(out)));
+        assertArrayEquals(Arrays.copyOfRange(content, 10, content.length), FileCopyUtils.copyToByteArray(out));
+    }
+
+    @Test
+    public void testCopyLargeFileStreamSubclassesAreNotBypassed() throws IOException {
+        byte[] content = largeContent();
+        File in = new File(testDir, "largeIn");
+        File out = new File(testDir, "largeOut");
+        FileCopyUtils.copy(content, in);
+        final long[] written = new long[1];
+        FileOutputStream counting = new FileOutputStream(out) {
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                written[0] += len;
+                super.write(b, off, len);
+            }
+        };
+
+        assertEquals(content.length, FileCopyUtils.copyLarge(new FileInputStream(in), counting));
+        assertEquals(content.length, written[0]);
+        assertArrayEquals(content, FileCopyUtils.copyToByteArray(out));
+    }
+
+    @Test
+    public void testCopyLargeFileToChannel() throws IOException {
+        byte[] content = largeContent();
+        File in = new File(testDir, "largeIn");
+        FileCopyUtils.copy(content, in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(content.length, FileCopyUtils.copyLarge(in, Channels.newChannel(out)));
+        assertArrayEquals(content, out.toByteArray());
+    }
+
+    @Test
+    public void testCopyLargeChannels() throws IOException {
+        byte[] content = largeContent();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(content.length, FileCopyUtils.copyLarge(Channels.newChannel(new ByteArrayInputStream(content)), Channels.newChannel(out)));
+        assertArrayEquals(content, out.toByteArray());
+    }
+
+    private static byte[] largeContent() {
+        byte[] content = new byte[200 * 1024 + 17];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 253);
+        }
+        return content;
+    }
 }
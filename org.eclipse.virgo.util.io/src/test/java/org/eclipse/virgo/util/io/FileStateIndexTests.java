@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ */
+public class FileStateIndexTests {
+
+    @Test
+    public void putAndFind() {
+        FileStateIndex index = new FileStateIndex();
+        int id = index.put("/a", 10, 100);
+        assertEquals(id, index.find("/a"));
+        assertEquals(10, index.lastModified(id));
+        assertEquals(100, index.size(id));
+        assertEquals("/a", index.path(id));
+        assertEquals(FileStateIndex.NO_ID, index.find("/b"));
+        assertEquals(1, index.count());
+
+        assertEquals(id, index.put("/a", 20, 200));
+        assertEquals(20, index.lastModified(id));
+        assertEquals(200, index.size(id));
+        assertEquals(1, index.count());
+    }
+
+    @Test
+    public void removedIdsAreReused() {
+        FileStateIndex index = new FileStateIndex();
+        int a = index.put("/a", 1, 1);
+        index.put("/b", 2, 2);
+        index.remove(a);
+        assertFalse(index.contains("/a"));
+        assertTrue(index.contains("/b"));
+        assertEquals(a, index.put("/c", 3, 3));
+        assertEquals(2, index.count());
+    }
+
+    @Test
+    public void unseenPathsAfterScan() {
+        FileStateIndex index = new FileStateIndex();
+        int a = index.put("/a", 1, 1);
+        index.put("/b", 2, 2);
+        int c = index.put("/c", 3, 3);
+
+        index.beginScan();
+        index.markSeen(a);
+        index.markSeen(c);
+
+        List<String> unseen = new ArrayList<String>();
+        for (int id = index.nextUnseen(0); id != FileStateIndex.NO_ID; id = index.nextUnseen(id + 1)) {
+            unseen.add(index.path(id));
+            index.remove(id);
+        }
+        assertEquals(1, unseen.size());
+        assertEquals("/b", unseen.get(0));
+        assertFalse(index.contains("/b"));
+
+        index.beginScan();
+        int d = index.put("/d", 4, 4);
+        index.markSeen(d);
+        int unseenCount = 0;
+        for (int id = index.nextUnseen(0); id != FileStateIndex.NO_ID; id = index.nextUnseen(id + 1)) {
+            unseenCount++;
+        }
+        assertEquals("Only /a and /c should be unseen", 2, unseenCount);
+    }
+
+    @Test
+    public void behavesLikeAMap() {
+        FileStateIndex index = new FileStateIndex();
+        Map<String, Long> expected = new HashMap<String, Long>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String path = "/dir/file" + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                index.remove(index.find(path));
+                expected.remove(path);
+            } else {
+                long lastModified = random.nextLong();
+                index.put(path, lastModified, FileStateIndex.UNKNOWN_SIZE);
+                expected.put(path, lastModified);
+            }
+        }
+        assertEquals(expected.size(), index.count());
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            int id = index.find(entry.getKey());
+            assertTrue(id != FileStateIndex.NO_ID);
+            assertEquals(entry.getValue().longValue(), index.lastModified(id));
+        }
+        int enumerated = 0;
+        for (int id = index.nextId(0); id != FileStateIndex.NO_ID; id = index.nextId(id + 1)) {
+            assertTrue(expected.containsKey(index.path(id)));
+            enumerated++;
+        }
+        assertEquals(expected.size(), enumerated);
+    }
+}
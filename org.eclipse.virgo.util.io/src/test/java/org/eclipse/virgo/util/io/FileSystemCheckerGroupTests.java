@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ */
+public class FileSystemCheckerGroupTests {
+
+    private final File rootA = new File("build/group/a");
+
+    private final File rootB = new File("build/group/b");
+
+    @Before
+    public void createDirs() {
+        FileSystemUtils.deleteRecursively(new File("build/group"));
+        this.rootA.mkdirs();
+        this.rootB.mkdirs();
+    }
+
+    @After
+    public void deleteDirs() {
+        FileSystemUtils.deleteRecursively(new File("build/group"));
+    }
+
+    @Test
+    public void eventsAreRoutedPerRoot() throws Exception {
+        FileSystemCheckerGroup group = new FileSystemCheckerGroup(1, TimeUnit.SECONDS, null);
+        RecordingListener listenerA = new RecordingListener();
+        RecordingListener listenerB = new RecordingListener();
+        group.addRoot(this.rootA, new FileSystemCheckerOptions()).addListener(listenerA);
+        group.addRoot(this.rootB, new FileSystemCheckerOptions()).addListener(listenerB);
+
+        new File(this.rootA, "a.txt").createNewFile();
+        group.checkAll();
+        group.checkAll();
+
+        assertEquals(1, listenerA.paths.size());
+        assertTrue(listenerA.paths.get(0).endsWith("a.txt"));
+        assertTrue(listenerB.paths.isEmpty());
+        group.close();
+    }
+
+    @Test
+    public void eventDrivenRootsShareWatchService() throws Exception {
+        FileSystemCheckerGroup group = new FileSystemCheckerGroup(1, TimeUnit.SECONDS, null);
+        try {
+            RecordingListener listenerA = new RecordingListener();
+            RecordingListener listenerB = new RecordingListener();
+            RecordingListener listenerParent = new RecordingListener();
+            FileSystemCheckerOptions eventDriven = new FileSystemCheckerOptions().setEventDriven(true);
+            group.addRoot(this.rootA, eventDriven).addListener(listenerA);
+            group.addRoot(this.rootB, eventDriven).addListener(listenerB);
+            // nested, so that rootA's directory is watched by two checkers
+            group.addRoot(this.rootA.getParentFile(), new FileSystemCheckerOptions().setEventDriven(true).setRecursive(true)).addListener(
+                listenerParent);
+            group.checkAll();
+
+            File a = new File(this.rootA, "a.txt").getAbsoluteFile();
+            a.createNewFile();
+            for (int attempt = 0; attempt < 100 && (listenerA.paths.isEmpty() || !listenerParent.paths.contains(a.getPath())); attempt++) {
+                group.checkAll();
+                Thread.sleep(50);
+            }
+            assertEquals(1, listenerA.paths.size());
+            assertEquals(a.getPath(), listenerA.paths.get(0));
+            assertTrue(listenerParent.paths.contains(a.getPath()));
+            assertTrue(listenerB.paths.isEmpty());
+
+            // the shared directory is still watched for the remaining checker
+            assertTrue(group.removeRoot(this.rootA));
+            File b = new File(this.rootA, "b.txt").getAbsoluteFile();
+            b.createNewFile();
+            for (int attempt = 0; attempt < 100 && !listenerParent.paths.contains(b.getPath()); attempt++) {
+                group.checkAll();
+                Thread.sleep(50);
+            }
+            assertTrue(listenerParent.paths.contains(b.getPath()));
+        } finally {
+            group.close();
+        }
+    }
+
+    @Test
+    public void removeRoot() throws Exception {
+        FileSystemCheckerGroup group = new FileSystemCheckerGroup(1, TimeUnit.SECONDS, null);
+        FileSystemChecker checker = group.addRoot(this.rootA, new FileSystemCheckerOptions());
+        assertSame(checker, group.getChecker(this.rootA));
+        assertTrue(group.removeRoot(this.rootA));
+        assertFalse(group.removeRoot(this.rootA));
+        assertNull(group.getChecker(this.rootA));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateRoot() {
+        FileSystemCheckerGroup group = new FileSystemCheckerGroup(1, TimeUnit.SECONDS, null);
+        group.addRoot(this.rootA, new FileSystemCheckerOptions());
+        group.addRoot(this.rootA, new FileSystemCheckerOptions());
+    }
+
+    @Test
+    public void scheduledChecks() throws Exception {
+        FileSystemCheckerGroup group = new FileSystemCheckerGroup(10, TimeUnit.MILLISECONDS, null);
+        final CountDownLatch created = new CountDownLatch(2);
+        FileSystemListener listener = new FileSystemListener() {
+
+            @Override
+            public void onChange(String path, FileSystemEvent event) {
+                if (FileSystemEvent.CREATED.equals(event) && path.endsWith(".txt")) {
+                    created.countDown();
+                }
+            }
+
+            @Override
+            public void onInitialEvent(List<String> paths) {
+            }
+        };
+        group.addRoot(this.rootA, new FileSystemCheckerOptions()).addListener(listener);
+        group.addRoot(this.rootB, new FileSystemCheckerOptions().setRecursive(true)).addListener(listener);
+        group.start();
+        try {
+            new File(this.rootA, "a.txt").createNewFile();
+            File nested = new File(this.rootB, "nested");
+            nested.mkdirs();
+            new File(nested, "b.txt").createNewFile();
+            assertTrue("Expected CREATED events from both roots", created.await(10, TimeUnit.SECONDS));
+        } finally {
+            group.close();
+        }
+    }
+
+    private static final class RecordingListener implements FileSystemListener {
+
+        private final List<String> paths = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public void onChange(String path, FileSystemEvent event) {
+            this.paths.add(path);
+        }
+
+        @Override
+        public void onInitialEvent(List<String> paths) {
+        }
+    }
+}
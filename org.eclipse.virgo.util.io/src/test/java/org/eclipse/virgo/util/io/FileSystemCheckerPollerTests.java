@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ */
+public class FileSystemCheckerPollerTests {
+
+    private final File checkDir = new File("build", "poller");
+
+    @Before
+    public void createDir() {
+        FileSystemUtils.deleteRecursively(this.checkDir);
+        this.checkDir.mkdirs();
+    }
+
+    @After
+    public void deleteDir() {
+        FileSystemUtils.deleteRecursively(this.checkDir);
+    }
+
+    @Test
+    public void intervals() {
+        FileSystemCheckerPoller poller = new FileSystemCheckerPoller(new FileSystemChecker(this.checkDir), 10, 500, TimeUnit.MILLISECONDS, null);
+        assertEquals(10, poller.getMinInterval());
+        assertEquals(500, poller.getMaxInterval());
+        assertEquals(10, poller.getCurrentInterval());
+        assertEquals(TimeUnit.MILLISECONDS, poller.getUnit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxIntervalLessThanMinInterval() {
+        new FileSystemCheckerPoller(new FileSystemChecker(this.checkDir), 10, 5, TimeUnit.MILLISECONDS, null);
+    }
+
+    @Test
+    public void backsOffWhenIdle() throws Exception {
+        FileSystemCheckerPoller poller = new FileSystemCheckerPoller(new FileSystemChecker(this.checkDir), 1, 40, TimeUnit.MILLISECONDS, null);
+        poller.start();
+        try {
+            for (int attempt = 0; attempt < 100 && poller.getCurrentInterval() < 40; attempt++) {
+                Thread.sleep(50);
+            }
+            assertEquals(40, poller.getCurrentInterval());
+        } finally {
+            poller.close();
+        }
+    }
+
+    @Test
+    public void monitoringAndNotification() throws Exception {
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir);
+        final CountDownLatch created = new CountDownLatch(1);
+        checker.addListener(new FileSystemListener() {
+
+            @Override
+            public void onChange(String path, FileSystemEvent event) {
+                if (FileSystemEvent.CREATED.equals(event)) {
+                    created.countDown();
+                }
+            }
+
+            @Override
+            public void onInitialEvent(List<String> paths) {
+            }
+        });
+        checker.check();
+        assertFalse(checker.isMonitoring());
+        new File(this.checkDir, "a.txt").createNewFile();
+        checker.check();
+        assertTrue("Expected new file to be monitored", checker.isMonitoring());
+
+        FileSystemCheckerPoller poller = new FileSystemCheckerPoller(checker, 10, 100, TimeUnit.MILLISECONDS, null);
+        poller.start();
+        try {
+            assertTrue("Expected CREATED event", created.await(10, TimeUnit.SECONDS));
+        } finally {
+            poller.close();
+        }
+        assertFalse(checker.isMonitoring());
+    }
+}
@@ -15,7 +15,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -509,4 +515,467 @@ public class FileSystemCheckerTests {
         checker.check();
         assertEquals("Expected 2 calls to the listener", 2, listener.getCallCounter());
     }
+
+    @Test
+    public void eventDrivenCreateModifyDelete() throws Exception {
+        final String fileName = "watched.txt";
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setEventDriven(true));
+        try {
+            TestFileSystemListener listener = new TestFileSystemListener(fileName, 0, 0, 0, 0, 0);
+            checker.addListener(listener);
+
+            // first check lists the whole directory
+            checker.check();
+
+            File watchedFile = new File(this.checkDir, fileName);
+            watchedFile.createNewFile();
+            assertTrue("Expected CREATED event.", checkUntil(checker, listener, 1, 0, 1, 0, 0));
+
+            watchedFile.setLastModified(System.currentTimeMillis() + 1000);
+            assertTrue("Expected MODIFIED event.", checkUntil(checker, listener, 2, 0, 1, 0, 1));
+
+            watchedFile.delete();
+            assertTrue("Expected DELETED event.", checkUntil(checker, listener, 3, 0, 1, 1, 1));
+
+            checker.check();
+            assertTrue("Unexpected further events.", listener.checkEvents(3, 0, 1, 1, 1));
+        } finally {
+            checker.close();
+        }
+    }
+
+    @Test
+    public void eventDrivenInitialState() throws Exception {
+        new File(this.checkDir, "a.txt").createNewFile();
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setEventDriven(true));
+        try {
+            TestFileSystemListener listener = new TestFileSystemListener("a.txt", 0, 0, 0, 0, 0);
+            checker.addListener(listener);
+            checker.check();
+            assertTrue("Expected INITIAL event.", listener.checkEvents(1, 1, 0, 0, 0));
+            checker.check();
+            assertTrue("Too many INITIAL events.", listener.checkEvents(1, 1, 0, 0, 0));
+        } finally {
+            checker.close();
+        }
+    }
+
+    @Test
+    public void eventDrivenRecreatedCheckDirectory() throws Exception {
+        final String fileName = "recreated.txt";
+        // relative, so that the watched directory is not the same File as the checker's absolute one
+        assertFalse(this.checkDir.isAbsolute());
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setEventDriven(true));
+        try {
+            TestFileSystemListener listener = new TestFileSystemListener(fileName, 0, 0, 0, 0, 0);
+            checker.addListener(listener);
+            checker.check();
+
+            deleteRecursively(this.checkDir);
+            assertTrue(this.checkDir.mkdir());
+            new File(this.checkDir, fileName).createNewFile();
+            assertTrue("Expected CREATED event.", checkUntil(checker, listener, 1, 0, 1, 0, 0));
+        } finally {
+            checker.close();
+        }
+    }
+
+    @Test
+    public void closedEventDrivenCheckerListsDirectory() throws Exception {
+        final String fileName = "afterClose.txt";
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setEventDriven(true));
+        checker.close();
+        TestFileSystemListener listener = new TestFileSystemListener(fileName, 0, 0, 0, 0, 0);
+        checker.addListener(listener);
+        new File(this.checkDir, fileName).createNewFile();
+        checker.check();
+        checker.check();
+        assertTrue("Expected CREATED event.", listener.checkEvents(1, 0, 1, 0, 0));
+    }
+
+    @Test
+    public void recursiveNewAndDeletedFile() throws Exception {
+        File subDir = new File(new File(this.checkDir, "sub"), "subsub");
+        subDir.mkdirs();
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setRecursive(true));
+        TestFileSystemListener listener = new TestFileSystemListener("nested.txt", 0, 0, 0, 0, 0);
+        checker.addListener(listener);
+        checker.check();
+
+        File nestedFile = new File(subDir, "nested.txt");
+        nestedFile.createNewFile();
+        checker.check();
+        checker.check();
+        assertTrue("Expected CREATED event.", listener.checkEvents(1, 0, 1, 0, 0));
+
+        FileSystemUtils.deleteRecursively(new File(this.checkDir, "sub"));
+        checker.check();
+        assertTrue("Expected DELETED event.", listener.checkEvents(2, 0, 1, 1, 0));
+    }
+
+    @Test
+    public void nonRecursiveIgnoresNestedFile() throws Exception {
+        File subDir = new File(this.checkDir, "sub");
+        subDir.mkdirs();
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir);
+        TestFileSystemListener listener = new TestFileSystemListener("nested.txt", 0, 0, 0, 0, 0);
+        checker.addListener(listener);
+        checker.check();
+
+        new File(subDir, "nested.txt").createNewFile();
+        checker.check();
+        checker.check();
+        assertTrue("Unexpected event for nested file.", listener.checkEvents(0, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void nonRecursiveNestedChangeModifiesSubdirectoryInBothModes() throws Exception {
+        for (boolean eventDriven : new boolean[] { false, true }) {
+            File subDir = new File(this.checkDir, "sub" + eventDriven);
+            subDir.mkdirs();
+            // so that the nested change moves the subdirectory's timestamp on
+            assertTrue(subDir.setLastModified(System.currentTimeMillis() - 10000));
+            FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setEventDriven(eventDriven));
+            try {
+                // the subdirectory's INITIAL event is published by the first check
+                checker.check();
+                TestFileSystemListener listener = new TestFileSystemListener(subDir.getName() + File.separator, 0, 0, 0, 0, 0);
+                checker.addListener(listener);
+
+                new File(subDir, "nested.txt").createNewFile();
+                assertTrue("Expected MODIFIED event for subdirectory when event driven is " + eventDriven,
+                    checkUntil(checker, listener, 1, 0, 0, 0, 1));
+            } finally {
+                checker.close();
+            }
+        }
+    }
+
+    @Test
+    public void eventDrivenRecursiveNewDirectory() throws Exception {
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setRecursive(true).setEventDriven(true));
+        try {
+            TestFileSystemListener listener = new TestFileSystemListener("nested.txt", 0, 0, 0, 0, 0);
+            checker.addListener(listener);
+            checker.check();
+
+            File subDir = new File(new File(this.checkDir, "sub"), "subsub");
+            subDir.mkdirs();
+            File nestedFile = new File(subDir, "nested.txt");
+            nestedFile.createNewFile();
+            assertTrue("Expected CREATED event.", checkUntil(checker, listener, 1, 0, 1, 0, 0));
+
+            nestedFile.delete();
+            assertTrue("Expected DELETED event.", checkUntil(checker, listener, 2, 0, 1, 1, 0));
+        } finally {
+            checker.close();
+        }
+    }
+
+    @Test
+    public void batchListenerReceivesOneNotificationPerCheck() throws Exception {
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir);
+        final List<List<FileSystemChange>> batches = new ArrayList<List<FileSystemChange>>();
+        final AtomicInteger singleEvents = new AtomicInteger(0);
+        checker.addListener(new BatchFileSystemListener() {
+
+            @Override
+            public void onChange(String path, FileSystemEvent event) {
+                singleEvents.incrementAndGet();
+            }
+
+            @Override
+            public void onInitialEvent(List<String> paths) {
+            }
+
+            @Override
+            public void onChanges(List<FileSystemChange> changes) {
+                batches.add(changes);
+            }
+        });
+        TestFileSystemListener singleListener = new TestFileSystemListener("b.txt", 0, 0, 0, 0, 0);
+        checker.addListener(singleListener);
+
+        File a = new File(this.checkDir, "a.txt");
+        File b = new File(this.checkDir, "b.txt");
+        File c = new File(this.checkDir, "c.txt");
+        a.createNewFile();
+        b.createNewFile();
+        c.createNewFile();
+        checker.check();
+        assertTrue("Unexpected batch before files are stable.", batches.isEmpty());
+
+        checker.check();
+        assertEquals("Expected one batch.", 1, batches.size());
+        assertEquals("Expected three changes in the batch.", 3, batches.get(0).size());
+        for (FileSystemChange change : batches.get(0)) {
+            assertEquals(FileSystemEvent.CREATED, change.getEvent());
+        }
+        assertTrue("Ordinary listener should still see single events.", singleListener.checkEvents(1, 0, 1, 0, 0));
+
+        a.delete();
+        c.delete();
+        checker.check();
+        assertEquals("Expected a second batch.", 2, batches.size());
+        List<FileSystemChange> deletions = batches.get(1);
+        assertEquals(2, deletions.size());
+        assertTrue(deletions.contains(new FileSystemChange(a.getAbsolutePath(), FileSystemEvent.DELETED)));
+        assertTrue(deletions.contains(new FileSystemChange(c.getAbsolutePath(), FileSystemEvent.DELETED)));
+
+        checker.check();
+        assertEquals("Unexpected batch for a quiet check.", 2, batches.size());
+        assertEquals("Batch listener must not receive single events.", 0, singleEvents.get());
+    }
+
+    @Test
+    public void contentChecksumsSuppressUnchangedModification() throws Exception {
+        final String fileName = "same.txt";
+        File file = new File(this.checkDir, fileName);
+        writeFile(file, "content");
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setContentChecksums(true));
+        TestFileSystemListener listener = new TestFileSystemListener(fileName, 0, 0, 0, 0, 0);
+        checker.addListener(listener);
+        checker.check();
+        assertTrue("Expected INITIAL event.", listener.checkEvents(1, 1, 0, 0, 0));
+
+        writeFile(file, "content");
+        file.setLastModified(file.lastModified() + 2000);
+        checker.check();
+        checker.check();
+        assertTrue("Unexpected MODIFIED event for unchanged content.", listener.checkEvents(1, 1, 0, 0, 0));
+
+        writeFile(file, "changed");
+        file.setLastModified(file.lastModified() - 10000);
+        checker.check();
+        checker.check();
+        assertTrue("Expected MODIFIED event for changed content.", listener.checkEvents(2, 1, 0, 0, 1));
+    }
+
+    @Test
+    public void contentChecksumsDetectSizeChangeWithSameTimestamp() throws Exception {
+        final String fileName = "resized.txt";
+        File file = new File(this.checkDir, fileName);
+        writeFile(file, "short");
+        long lastModified = file.lastModified();
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setContentChecksums(true));
+        TestFileSystemListener listener = new TestFileSystemListener(fileName, 0, 0, 0, 0, 0);
+        checker.addListener(listener);
+        checker.check();
+
+        writeFile(file, "rather longer");
+        file.setLastModified(lastModified);
+        checker.check();
+        checker.check();
+        assertTrue("Expected MODIFIED event.", listener.checkEvents(2, 1, 0, 0, 1));
+    }
+
+    @Test
+    public void snapshotRestartNotifiesOnlyChanges() throws Exception {
+        File snapshotFile = new File("build", "checker.snapshot");
+        snapshotFile.delete();
+        File unchanged = new File(this.checkDir, "unchanged.txt");
+        File modified = new File(this.checkDir, "modified.txt");
+        File deleted = new File(this.checkDir, "deleted.txt");
+        writeFile(unchanged, "a");
+        writeFile(modified, "b");
+        writeFile(deleted, "c");
+
+        FileSystemCheckerOptions options = new FileSystemCheckerOptions().setSnapshotFile(snapshotFile);
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, options);
+        List<String> events = recordEvents(checker);
+        checker.check();
+        checker.check();
+        assertEquals(3, events.size());
+        checker.close();
+        assertTrue("Expected snapshot to be saved", snapshotFile.isFile());
+
+        writeFile(modified, "bb");
+        deleted.delete();
+        writeFile(new File(this.checkDir, "created.txt"), "d");
+
+        FileSystemChecker restartedChecker = new FileSystemChecker(this.checkDir, options);
+        events = recordEvents(restartedChecker);
+        restartedChecker.check();
+        restartedChecker.check();
+        restartedChecker.check();
+        assertEquals(3, events.size());
+        assertTrue(events.contains("modified.txt " + FileSystemEvent.MODIFIED));
+        assertTrue(events.contains("deleted.txt " + FileSystemEvent.DELETED));
+        assertTrue(events.contains("created.txt " + FileSystemEvent.CREATED));
+        restartedChecker.close();
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void snapshotRestoresFilesNotYetAnnounced() throws Exception {
+        File snapshotFile = new File("build", "initial.snapshot");
+        snapshotFile.delete();
+        File unannounced = new File(this.checkDir, "unannounced.txt");
+        File vanished = new File(this.checkDir, "vanished.txt");
+        writeFile(unannounced, "a");
+        writeFile(vanished, "b");
+        FileSystemCheckerOptions options = new FileSystemCheckerOptions().setSnapshotFile(snapshotFile);
+
+        // closed before any check, so neither file's INITIAL event has been published
+        new FileSystemChecker(this.checkDir, options).close();
+        assertTrue("Expected snapshot to be saved", snapshotFile.isFile());
+        vanished.delete();
+
+        FileSystemChecker restartedChecker = new FileSystemChecker(this.checkDir, options);
+        List<String> events = recordEvents(restartedChecker);
+        restartedChecker.check();
+        restartedChecker.check();
+        assertEquals(Arrays.asList("unannounced.txt " + FileSystemEvent.INITIAL), events);
+        restartedChecker.close();
+
+        // announced and never modified, so quiet after another restart
+        FileSystemChecker quietChecker = new FileSystemChecker(this.checkDir, options);
+        events = recordEvents(quietChecker);
+        quietChecker.check();
+        quietChecker.check();
+        assertTrue(events.isEmpty());
+        quietChecker.close();
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void unusableSnapshotIsIgnored() throws Exception {
+        File snapshotFile = new File("build", "corrupt.snapshot");
+        writeFile(snapshotFile, "not a snapshot");
+        writeFile(new File(this.checkDir, "a.txt"), "a");
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setSnapshotFile(snapshotFile));
+        List<String> events = recordEvents(checker);
+        checker.check();
+        assertEquals(1, events.size());
+        assertTrue(events.contains("a.txt " + FileSystemEvent.INITIAL));
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void snapshotWithCorruptCountIsIgnored() throws Exception {
+        File snapshotFile = new File("build", "corrupt-count.snapshot");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(snapshotFile));
+        try {
+            out.writeInt(0x56465353);
+            out.writeInt(1);
+            out.writeUTF(this.checkDir.getAbsolutePath());
+            out.writeInt(Integer.MAX_VALUE);
+        } finally {
+            out.close();
+        }
+        writeFile(new File(this.checkDir, "a.txt"), "a");
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setSnapshotFile(snapshotFile));
+        List<String> events = recordEvents(checker);
+        checker.check();
+        assertEquals(1, events.size());
+        assertTrue(events.contains("a.txt " + FileSystemEvent.INITIAL));
+        snapshotFile.delete();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void saveSnapshotWithoutSnapshotFile() {
+        new FileSystemChecker(this.checkDir).saveSnapshot();
+    }
+
+    @Test
+    public void includeAndExcludeGlobs() throws Exception {
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setIncludeGlobs("*.jar", "*.war").setExcludeGlobs(
+            "old-*"));
+        List<String> events = recordEvents(checker);
+        checker.check();
+        writeFile(new File(this.checkDir, "app.jar"), "a");
+        writeFile(new File(this.checkDir, "web.war"), "w");
+        writeFile(new File(this.checkDir, "app.jar.tmp"), "t");
+        writeFile(new File(this.checkDir, "old-app.jar"), "o");
+        checker.check();
+        checker.check();
+        assertEquals(2, events.size());
+        assertTrue(events.contains("app.jar " + FileSystemEvent.CREATED));
+        assertTrue(events.contains("web.war " + FileSystemEvent.CREATED));
+    }
+
+    @Test
+    public void recursiveGlobsDescendUnmatchedAndPruneExcludedDirectories() throws Exception {
+        File nested = new File(this.checkDir, "nested");
+        File excluded = new File(this.checkDir, "backup");
+        nested.mkdirs();
+        excluded.mkdirs();
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setRecursive(true).setIncludeGlobs("*.jar").setExcludeGlobs(
+            "backup"));
+        List<String> events = recordEvents(checker);
+        checker.check();
+        writeFile(new File(nested, "a.jar"), "a");
+        writeFile(new File(excluded, "b.jar"), "b");
+        checker.check();
+        checker.check();
+        assertEquals(1, events.size());
+        assertTrue(events.contains("a.jar " + FileSystemEvent.CREATED));
+
+        FileSystemUtils.deleteRecursively(nested);
+        checker.check();
+        assertEquals(2, events.size());
+        assertTrue(events.contains("a.jar " + FileSystemEvent.DELETED));
+    }
+
+    @Test
+    public void eventDrivenRecursiveGlobs() throws Exception {
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setRecursive(true).setEventDriven(true).setIncludeGlobs(
+            "*.jar"));
+        try {
+            TestFileSystemListener listener = new TestFileSystemListener("a.jar", 0, 0, 0, 0, 0);
+            checker.addListener(listener);
+            checker.check();
+            File nested = new File(this.checkDir, "nested");
+            nested.mkdirs();
+            writeFile(new File(nested, "a.jar"), "a");
+            writeFile(new File(nested, "a.txt"), "a");
+            assertTrue("Expected CREATED event.", checkUntil(checker, listener, 1, 0, 1, 0, 0));
+
+            FileSystemUtils.deleteRecursively(nested);
+            assertTrue("Expected DELETED event.", checkUntil(checker, listener, 2, 0, 1, 1, 0));
+        } finally {
+            checker.close();
+        }
+    }
+
+    private static List<String> recordEvents(FileSystemChecker checker) {
+        final List<String> events = new ArrayList<String>();
+        checker.addListener(new FileSystemListener() {
+
+            @Override
+            public void onChange(String path, FileSystemEvent event) {
+                events.add(new File(path).getName() + " " + event);
+            }
+
+            @Override
+            public void onInitialEvent(List<String> paths) {
+            }
+        });
+        return events;
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Keeps checking until the listener has seen the expected events, allowing for notifications from the file system
+     * arriving asynchronously.
+     */
+    private static boolean checkUntil(FileSystemChecker checker, TestFileSystemListener listener, int all, int ini, int cre, int del, int mod)
+        throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            checker.check();
+            if (listener.checkEvents(all, ini, cre, del, mod)) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
 }
@@ -14,11 +14,17 @@ package org.eclipse.virgo.util.io;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.eclipse.virgo.util.io.FileSystemUtils;
 import org.junit.Test;
@@ -49,6 +55,103 @@ public class FileSystemUtilsTests {
         assertFalse(f.exists());
     }
     
+    @Test
+    public void testDeleteRecursivelyAsync() throws Exception {
+        File parent = new File("build/work-async");
+        FileSystemUtils.deleteRecursively(parent);
+        File f = new File(parent, "exploded");
+        for (int i = 0; i < 40; i++) {
+            File dir = new File(f, "d" + (i % 4) + File.separator + "e" + (i % 3));
+            dir.mkdirs();
+            new File(dir, "file" + i + ".txt").createNewFile();
+        }
+        File outside = new File(parent, "outside");
+        outside.mkdirs();
+        File kept = new File(outside, "kept.txt");
+        kept.createNewFile();
+        Files.createSymbolicLink(new File(f, "link").toPath(), outside.getAbsoluteFile().toPath());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Future<Void> deletion = FileSystemUtils.deleteRecursivelyAsync(f, pool);
+            assertFalse(f.exists());
+            assertTrue(f.mkdir());
+            deletion.get();
+        } finally {
+            pool.shutdown();
+        }
+
+        assertTrue(f.isDirectory());
+        assertTrue(kept.exists());
+        assertEquals(2, parent.list().length);
+        assertTrue(FileSystemUtils.deleteRecursively(parent));
+    }
+
+    @Test
+    public void testDeleteRecursivelyAsyncOfMissingFile() throws Exception {
+        File f = new File("build/work-async-missing");
+        assertFalse(f.exists());
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            FileSystemUtils.deleteRecursivelyAsync(f, pool).get();
+        } finally {
+            pool.shutdown();
+        }
+        assertFalse(f.exists());
+    }
+
+    @Test
+    public void testDeleteRecursivelyAsyncFailuresAndTombstones() throws Exception {
+        File parent = new File("build/work-async-failing");
+        FileSystemUtils.deleteRecursively(parent);
+        File f = new File(parent, "exploded");
+        for (int i = 0; i < 6; i++) {
+            File dir = new File(f, "d" + (i % 3));
+            dir.mkdirs();
+            new File(dir, (i < 2 ? "bad" : "file") + i + ".txt").createNewFile();
+        }
+        File other = new File(parent, "other");
+        other.mkdirs();
+        ParallelTreeDeleter.EntryDeleter failing = new ParallelTreeDeleter.EntryDeleter() {
+
+            @Override
+            public void delete(Path entry) throws IOException {
+                if (entry.getFileName().toString().startsWith("bad")) {
+                    throw new IOException("Injected failure");
+                }
+                Files.deleteIfExists(entry);
+            }
+        };
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            try {
+                ParallelTreeDeleter.delete(f, pool, failing).get();
+                fail("Failed deletes were not reported");
+            } catch (ExecutionException e) {
+                FatalIOException fatal = (FatalIOException) e.getCause();
+                assertTrue(fatal.getMessage().contains("2 paths"));
+                assertEquals(1, fatal.getSuppressed().length);
+            }
+            assertFalse(f.exists());
+            String[] remaining = parent.list();
+            assertEquals(2, remaining.length);
+            String tombstone = remaining[0].equals("other") ? remaining[1] : remaining[0];
+            assertTrue(ParallelTreeDeleter.isTombstone(tombstone));
+            File tombstoneDir = new File(parent, tombstone);
+            // only the directories holding the files which could not be deleted are left
+            assertEquals(2, tombstoneDir.list().length);
+            assertFalse(new File(tombstoneDir, "d2").exists());
+
+            FileSystemUtils.deleteTombstones(parent, pool).get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, parent.list().length);
+        assertTrue(other.isDirectory());
+        assertTrue(FileSystemUtils.deleteRecursively(parent));
+    }
+
     @Test
     public void testCreateDirectoryIfNecessary() {
     	String path = FileSystemUtils.createDirectoryIfNecessary("build/work/test");
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.jar.JarOutputStream;
+
+import org.eclipse.virgo.util.io.JarTransformer.JarTransformerCallback;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JarTransformationCacheTests {
+
+    private final PathReference cacheDirectory = new PathReference("build/jar-transformation-cache");
+
+    private final PathReference jar = new PathReference("build/jar-transformation-cache-source.jar");
+
+    private final CountingCallback callback = new CountingCallback();
+
+    private final JarTransformer transformer = new JarTransformer(this.callback);
+
+    private URL url;
+
+    @Before
+    public void setUp() throws IOException {
+        this.cacheDirectory.delete(true);
+        this.jar.delete();
+        new PathReference("src/test/resources/simple-manifest-only.jar").copy(this.jar);
+        this.url = this.jar.toFile().toURI().toURL();
+    }
+
+    @Test
+    public void repeatedOpenIsServedFromCache() throws IOException {
+        JarTransformationCache cache = new JarTransformationCache(this.cacheDirectory, 1024 * 1024);
+        byte[] first = read(cache.getInputStream(this.url, this.transformer, "id", false));
+        int invocations = this.callback.invocations;
+        byte[] second = read(new JarTransformingURLConnection(this.url, this.transformer, false, cache, "id").getInputStream());
+
+        assertArrayEquals(first, second);
+        assertEquals(invocations, this.callback.invocations);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(first.length, cache.getSize());
+    }
+
+    @Test
+    public void changedSourceOrTransformerIsTransformedAgain() throws IOException {
+        JarTransformationCache cache = new JarTransformationCache(this.cacheDirectory, 1024 * 1024);
+        read(cache.getInputStream(this.url, this.transformer, "id", false));
+        read(cache.getInputStream(this.url, this.transformer, "other-id", false));
+        read(cache.getInputStream(this.url, this.transformer, "id", true));
+        assertTrue(this.jar.toFile().setLastModified(this.jar.toFile().lastModified() - 10000));
+        read(cache.getInputStream(this.url, this.transformer, "id", false));
+
+        assertEquals(0, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException {
+        JarTransformationCache sizing = new JarTransformationCache(this.cacheDirectory, 1024 * 1024);
+        long length = read(sizing.getInputStream(this.url, this.transformer, "a", false)).length;
+        this.cacheDirectory.delete(true);
+
+        JarTransformationCache cache = new JarTransformationCache(this.cacheDirectory, 2 * length);
+        read(cache.getInputStream(this.url, this.transformer, "a", false));
+        read(cache.getInputStream(this.url, this.transformer, "b", false));
+        read(cache.getInputStream(this.url, this.transformer, "a", false));
+        read(cache.getInputStream(this.url, this.transformer, "c", false));
+        assertEquals(2 * length, cache.getSize());
+        assertEquals(2, this.cacheDirectory.toFile().list().length);
+
+        read(cache.getInputStream(this.url, this.transformer, "a", false));
+        assertEquals(2, cache.getHitCount());
+        read(cache.getInputStream(this.url, this.transformer, "b", false));
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void cacheSurvivesRestart() throws IOException {
+        JarTransformationCache cache = new JarTransformationCache(this.cacheDirectory, 1024 * 1024);
+        byte[] first = read(cache.getInputStream(this.url, this.transformer, "id", false));
+
+        JarTransformationCache restarted = new JarTransformationCache(this.cacheDirectory, 1024 * 1024);
+        assertEquals(first.length, restarted.getSize());
+        assertArrayEquals(first, read(restarted.getInputStream(this.url, this.transformer, "id", false)));
+        assertEquals(1, restarted.getHitCount());
+    }
+
+    @Test
+    public void unversionedSourceIsKeyedByDigest() throws IOException {
+        URL unversioned = new URL(null, "unversioned:source.jar", new URLStreamHandler() {
+
+            @Override
+            protected URLConnection openConnection(URL u) {
+                return new URLConnection(u) {
+
+                    @Override
+                    public void connect() {
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        return new FileInputStream(JarTransformationCacheTests.this.jar.toFile());
+                    }
+                };
+            }
+        });
+        JarTransformationCache cache = new JarTransformationCache(this.cacheDirectory, 1024 * 1024);
+        byte[] first = read(cache.getInputStream(unversioned, this.transformer, "id", false));
+        assertArrayEquals(first, read(cache.getInputStream(unversioned, this.transformer, "id", false)));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        // only the cached JAR, the copies of the content having been deleted
+        assertEquals(1, this.cacheDirectory.toFile().list().length);
+    }
+
+    @Test
+    public void oversizedResultIsReadFromTemporaryFile() throws IOException {
+        JarTransformationCache cache = new JarTransformationCache(this.cacheDirectory, 1);
+        InputStream in = cache.getInputStream(this.url, this.transformer, "id", false);
+        assertEquals(1, this.cacheDirectory.toFile().list().length);
+        assertTrue(read(in).length > 1);
+
+        assertEquals(0, this.cacheDirectory.toFile().list().length);
+        assertEquals(0, cache.getSize());
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final class CountingCallback implements JarTransformerCallback {
+
+        private int invocations;
+
+        public boolean transformEntry(String entryName, InputStream is, JarOutputStream jos) {
+            this.invocations++;
+            return false;
+        }
+    }
+}
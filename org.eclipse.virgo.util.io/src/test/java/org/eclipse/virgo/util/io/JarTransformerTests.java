@@ -31,12 +31,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 
 import org.eclipse.virgo.util.io.JarTransformer.JarTransformerCallback;
+import org.eclipse.virgo.util.io.JarTransformer.ThreadSafeJarTransformerCallback;
 import org.junit.Test;
 
 public class JarTransformerTests {
@@ -161,6 +165,176 @@ public class JarTransformerTests {
         }
     }
 
+    @Test
+    public void passthroughTransformCopiesUntransformedEntries() throws Exception {
+        PathReference inPath = new PathReference("src/test/resources/jars/test.jar");
+        String outPath = "build/passthroughTransform.jar";
+
+        JarTransformer jt = new JarTransformer(new JarTransformerCallback() {
+
+            public boolean transformEntry(String entryName, InputStream is, JarOutputStream os) throws IOException {
+                if ("META-INF/MANIFEST.MF".equals(entryName)) {
+                    Manifest manifest = new Manifest(is);
+                    manifest.getMainAttributes().putValue("My-Header", "test.value");
+                    os.putNextEntry(new ZipEntry(entryName));
+                    manifest.write(os);
+                    os.closeEntry();
+                    return true;
+                }
+                // deleted
+                return "META-INF/test.txt".equals(entryName);
+            }
+        });
+        try (FileOutputStream outStream = new FileOutputStream(outPath)) {
+            jt.transform(inPath, outStream);
+        }
+
+        try (JarFile jarFile = new JarFile(inPath.toFile()); JarFile transformed = new JarFile(outPath)) {
+            assertEquals("test.value", transformed.getManifest().getMainAttributes().getValue("My-Header"));
+            assertNull(transformed.getEntry("META-INF/test.txt"));
+            assertNotNull(transformed.getEntry("META-INF/"));
+            ZipEntry original = jarFile.getEntry("test.txt");
+            ZipEntry copied = transformed.getEntry("test.txt");
+            assertEquals(original.getMethod(), copied.getMethod());
+            assertEquals(original.getCompressedSize(), copied.getCompressedSize());
+            assertEquals(original.getCrc(), copied.getCrc());
+            assertEquals(original.getTime(), copied.getTime());
+            try (InputStream in = transformed.getInputStream(copied)) {
+                assertEquals("TEST", new String(readAll(in), UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void passthroughNoOpTransformOfDeflatedJar() throws Exception {
+        PathReference toZip = new PathReference("src/test/resources/to-zip");
+        PathReference inPath = new PathReference("build/passthroughNoOp-in.jar");
+        String outPath = "build/passthroughNoOp-out.jar";
+        inPath.delete();
+        ZipUtils.zipTo(toZip, inPath, "prefix");
+
+        JarTransformer jt = new JarTransformer(new NoOpJarTransformerCallback());
+        try (FileOutputStream outStream = new FileOutputStream(outPath)) {
+            jt.transform(inPath, outStream);
+        }
+
+        try (JarFile jarFile = new JarFile(inPath.toFile()); JarFile transformed = new JarFile(outPath)) {
+            List<JarEntry> originalEntries = getEntries(jarFile);
+            List<JarEntry> transformedEntries = getEntries(transformed);
+            assertEquals(originalEntries.size(), transformedEntries.size());
+            for (int i = 0; i < originalEntries.size(); i++) {
+                JarEntry original = originalEntries.get(i);
+                JarEntry copied = transformedEntries.get(i);
+                assertEquals(original.getName(), copied.getName());
+                assertEquals(original.getCompressedSize(), copied.getCompressedSize());
+                try (InputStream ia = jarFile.getInputStream(original); InputStream ib = transformed.getInputStream(copied)) {
+                    assertTrue(Arrays.equals(readAll(ia), readAll(ib)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void passthroughEnsuresPresenceOfManifest() throws Exception {
+        PathReference inPath = new PathReference("src/test/resources/jars/no-manifest.jar");
+        String outPath = "build/passthroughEnsurePresenceOfManifest.jar";
+
+        final List<String> transformedEntries = new ArrayList<String>();
+        JarTransformer jt = new JarTransformer(new JarTransformerCallback() {
+
+            public boolean transformEntry(String entryName, InputStream is, JarOutputStream os) throws IOException {
+                transformedEntries.add(entryName);
+                return false;
+            }
+        });
+        try (FileOutputStream outStream = new FileOutputStream(outPath)) {
+            jt.transform(inPath, outStream, true);
+        }
+
+        try (JarFile transformed = new JarFile(outPath)) {
+            assertNotNull(transformed.getManifest());
+            assertEquals(2, transformedEntries.size());
+            assertTrue(transformedEntries.contains(JarFile.MANIFEST_NAME));
+        }
+    }
+
+    @Test
+    public void parallelTransformPreservesEntryOrder() throws Exception {
+        PathReference toZip = new PathReference("src/test/resources/to-zip");
+        PathReference inPath = new PathReference("build/parallelTransform-in.jar");
+        String outPath = "build/parallelTransform-out.jar";
+        inPath.delete();
+        ZipUtils.zipTo(toZip, inPath, "prefix");
+
+        JarTransformer jt = new JarTransformer(new ThreadSafeJarTransformerCallback() {
+
+            public boolean transformEntry(String entryName, InputStream is, JarOutputStream os) throws IOException {
+                if (entryName.endsWith("/foo")) {
+                    os.putNextEntry(new ZipEntry(entryName));
+                    os.write(new String(readAll(is), UTF_8).toUpperCase(Locale.ENGLISH).getBytes(UTF_8));
+                    os.closeEntry();
+                    return true;
+                }
+                return false;
+            }
+        });
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (FileOutputStream outStream = new FileOutputStream(outPath)) {
+            jt.transform(inPath, outStream, false, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        try (JarFile jarFile = new JarFile(inPath.toFile()); JarFile transformed = new JarFile(outPath)) {
+            List<JarEntry> originalEntries = getEntries(jarFile);
+            List<JarEntry> transformedEntries = getEntries(transformed);
+            assertEquals(originalEntries.size(), transformedEntries.size());
+            int uppercased = 0;
+            for (int i = 0; i < originalEntries.size(); i++) {
+                JarEntry original = originalEntries.get(i);
+                JarEntry copied = transformedEntries.get(i);
+                assertEquals(original.getName(), copied.getName());
+                try (InputStream ia = jarFile.getInputStream(original); InputStream ib = transformed.getInputStream(copied)) {
+                    String expected = new String(readAll(ia), UTF_8);
+                    if (original.getName().endsWith("/foo")) {
+                        expected = expected.toUpperCase(Locale.ENGLISH);
+                        uppercased++;
+                    }
+                    assertEquals(expected, new String(readAll(ib), UTF_8));
+                }
+            }
+            assertEquals(1, uppercased);
+        }
+    }
+
+    @Test
+    public void parallelTransformOfCallbackNotThreadSafe() throws Exception {
+        PathReference inPath = new PathReference("src/test/resources/jars/no-manifest.jar");
+        String outPath = "build/parallelTransformNotThreadSafe.jar";
+
+        final Thread caller = Thread.currentThread();
+        final List<String> transformedEntries = new ArrayList<String>();
+        JarTransformer jt = new JarTransformer(new JarTransformerCallback() {
+
+            public boolean transformEntry(String entryName, InputStream is, JarOutputStream os) throws IOException {
+                assertEquals(caller, Thread.currentThread());
+                transformedEntries.add(entryName);
+                return false;
+            }
+        });
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (FileOutputStream outStream = new FileOutputStream(outPath)) {
+            jt.transform(inPath, outStream, true, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        try (JarFile transformed = new JarFile(outPath)) {
+            assertNotNull(transformed.getManifest());
+            assertEquals(2, transformedEntries.size());
+        }
+    }
+
     private void assertJarsSame(JarFile a, JarFile b, boolean checkContent) throws IOException {
         List<JarEntry> aEntries = getEntries(a);
         List<JarEntry> bEntries = getEntries(b);
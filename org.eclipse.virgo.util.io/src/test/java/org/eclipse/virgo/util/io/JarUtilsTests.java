@@ -47,4 +47,17 @@ public class JarUtilsTests {
             }
         }
     }
+
+    @Test
+    public void testUnpackIncrementally() throws Exception {
+        PathReference target = new PathReference("build/incremental-dummy");
+        target.delete(true);
+        JarUtils.unpackToIncremental(new PathReference("src/test/resources/jars/dummy.jar"), target);
+        PathReference file = target.newChild("com/foo/bar/dummyDoc.txt");
+        assertTrue(file.exists());
+        assertTrue(file.delete());
+
+        JarUtils.unpackToIncremental(new PathReference("src/test/resources/jars/dummy.jar"), target);
+        assertEquals("Hello There!", file.fileContents().trim());
+    }
 }
@@ -11,15 +11,19 @@
 
 package org.eclipse.virgo.util.io;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
 
 import org.eclipse.virgo.util.io.FatalIOException;
 import org.eclipse.virgo.util.io.FileSystemUtils;
@@ -176,6 +180,22 @@ public class PathReferenceTests {
         assertFalse(nested.exists());
     }
 
+    @Test
+    public void deleteAsync() throws Exception {
+        PathReference dir = PathReference.concat(WORK_AREA_PATH, "dir");
+        dir.newChild("child").newChild("file.txt").createFile();
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            dir.deleteAsync(pool).get();
+        } finally {
+            pool.shutdown();
+        }
+
+        assertFalse(dir.exists());
+        assertEquals(0, new File(WORK_AREA_PATH).list().length);
+    }
+
     @Test 
     public void copyFileToFile() {
         PathReference pr = new PathReference(TEST_FILE);
@@ -406,6 +426,90 @@ public class PathReferenceTests {
         assertFalse(dest.newChild("child").newChild("grand-child").newChild("foo.txt").exists());
     }
     
+    @Test
+    public void copyDirInParallel() throws IOException {
+        PathReference src = PathReference.concat(WORK_AREA2_PATH, "tree");
+        for (int i = 0; i < 50; i++) {
+            FileCopyUtils.copy(("file " + i).getBytes(UTF_8), src.newChild("d" + (i % 5)).newChild("f" + i + ".txt").createFile().toFile());
+        }
+        PathReference dest = PathReference.concat(WORK_AREA_PATH, "dest");
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            src.copy(dest, true, new PathReference.PathFilter() {
+
+                public boolean matches(PathReference path) {
+                    return !"d3".equals(path.getName()) && !"f7.txt".equals(path.getName());
+                }
+
+            }, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertFalse(dest.newChild("d3").exists());
+        assertFalse(dest.newChild("d2").newChild("f7.txt").exists());
+        assertEquals("file 12", dest.newChild("d2").newChild("f12.txt").fileContents());
+        assertEquals(4, dest.toFile().list().length);
+        assertEquals(10, dest.newChild("d0").toFile().list().length);
+    }
+
+    @Test
+    public void copyDirInParallelReportsAllFailures() throws IOException {
+        PathReference src = PathReference.concat(WORK_AREA2_PATH, "tree");
+        for (int i = 0; i < 3; i++) {
+            src.newChild("f" + i + ".txt").createFile();
+        }
+        PathReference dest = new PathReference(WORK_AREA_PATH);
+        // directories in the way of two of the files
+        dest.newChild("tree").newChild("f0.txt").createDirectory();
+        dest.newChild("tree").newChild("f2.txt").createDirectory();
+
+        try {
+            src.copy(dest, true, null, ForkJoinPool.commonPool());
+        } catch (FatalIOException e) {
+            assertNotNull(e.getCause());
+            assertEquals(1, e.getSuppressed().length);
+            assertTrue(dest.newChild("tree").newChild("f1.txt").isFile());
+            return;
+        }
+        fail("Expected FatalIOException");
+    }
+
+    @Test
+    public void cloneDirLinksReadOnlyFiles() throws IOException {
+        PathReference src = PathReference.concat(WORK_AREA2_PATH, "tree");
+        PathReference readOnly = src.newChild("lib").newChild("artifact.jar").createFile();
+        FileCopyUtils.copy("artifact".getBytes(UTF_8), readOnly.toFile());
+        assertTrue(readOnly.toFile().setWritable(false, false));
+        PathReference writable = src.newChild("config.properties").createFile();
+        FileCopyUtils.copy("config".getBytes(UTF_8), writable.toFile());
+        PathReference dest = PathReference.concat(WORK_AREA_PATH, "dest");
+
+        src.cloneTo(dest, true, null);
+
+        PathReference clonedReadOnly = dest.newChild("lib").newChild("artifact.jar");
+        PathReference clonedWritable = dest.newChild("config.properties");
+        // a privileged user can write the read-only file, so it is copied rather than linked
+        assertEquals(!Files.isWritable(readOnly.toFile().toPath()), Files.isSameFile(readOnly.toFile().toPath(), clonedReadOnly.toFile().toPath()));
+        assertFalse(Files.isSameFile(writable.toFile().toPath(), clonedWritable.toFile().toPath()));
+        assertEquals("artifact", clonedReadOnly.fileContents());
+        assertEquals("config", clonedWritable.fileContents());
+    }
+
+    @Test
+    public void cloneFileToDirectory() throws IOException {
+        PathReference readOnly = PathReference.concat(WORK_AREA2_PATH, "artifact.jar").createFile();
+        assertTrue(readOnly.toFile().setWritable(false, false));
+        PathReference dest = new PathReference(WORK_AREA_PATH);
+
+        PathReference cloned = readOnly.cloneTo(dest, false, null);
+
+        assertEquals(dest.newChild("artifact.jar"), cloned);
+        assertEquals(!Files.isWritable(readOnly.toFile().toPath()), Files.isSameFile(readOnly.toFile().toPath(), cloned.toFile().toPath()));
+        assertTrue(cloned.exists());
+    }
+
     @Test(expected = FileNotFoundException.class)
     public void testFileContentsFileDoesNotExist() throws IOException {
     	PathReference src = new PathReference(TEST_FILE + "2");
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ */
+public class StandardFileSystemCheckerMetricsTests {
+
+    private final File checkDir = new File("build", "metrics");
+
+    @Before
+    public void createDir() {
+        FileSystemUtils.deleteRecursively(this.checkDir);
+        this.checkDir.mkdirs();
+    }
+
+    @After
+    public void deleteDir() {
+        FileSystemUtils.deleteRecursively(this.checkDir);
+    }
+
+    @Test
+    public void checksAndListenersAreMeasured() throws Exception {
+        new File(this.checkDir, "a.txt").createNewFile();
+        new File(this.checkDir, "b.txt").createNewFile();
+        StandardFileSystemCheckerMetrics metrics = new StandardFileSystemCheckerMetrics();
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setMetrics(metrics));
+        checker.addListener(new FileSystemListener() {
+
+            @Override
+            public void onChange(String path, FileSystemEvent event) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onInitialEvent(List<String> paths) {
+            }
+
+            @Override
+            public String toString() {
+                return "sleepy listener";
+            }
+        });
+        checker.check();
+        checker.check();
+
+        assertEquals(2, metrics.getCheckCount());
+        assertEquals(0, metrics.getFailedCheckCount());
+        assertEquals(2, metrics.getLastCheckFileCount());
+        assertEquals(2, metrics.getListenerNotificationCount());
+        assertTrue(metrics.getListenerMaxMicros() >= TimeUnit.MILLISECONDS.toMicros(5));
+        assertTrue(metrics.getListener99thPercentileMicros() <= metrics.getListenerMaxMicros());
+        assertTrue(metrics.getCheckMaxMicros() >= metrics.getListenerMaxMicros());
+        assertTrue(metrics.getSlowestListener().startsWith("sleepy listener"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getCheckCount());
+        assertEquals(0, metrics.getListenerMeanMicros());
+        assertNull(metrics.getSlowestListener());
+    }
+
+    @Test
+    public void listingFailureIsMeasured() throws Exception {
+        StandardFileSystemCheckerMetrics metrics = new StandardFileSystemCheckerMetrics();
+        FileSystemChecker checker = new FileSystemChecker(this.checkDir, new FileSystemCheckerOptions().setMetrics(metrics));
+        FileSystemUtils.deleteRecursively(this.checkDir);
+        checker.check();
+        assertEquals(1, metrics.getFailedCheckCount());
+        assertEquals(1, metrics.getListingRetryCount());
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(100, histogram.count());
+        assertEquals(15, histogram.percentileMicros(50));
+        assertEquals(15, histogram.percentileMicros(99));
+        assertEquals(100000, histogram.percentileMicros(100));
+        assertEquals(100000, histogram.maxMicros());
+    }
+
+    @Test
+    public void registersAsMXBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.eclipse.virgo.test:type=FileSystemChecker,name=metrics");
+        server.registerMBean(new StandardFileSystemCheckerMetrics(), name);
+        try {
+            assertEquals(Long.valueOf(0), server.getAttribute(name, "CheckCount"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
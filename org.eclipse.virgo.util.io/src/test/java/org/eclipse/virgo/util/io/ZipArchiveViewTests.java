@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+public class ZipArchiveViewTests {
+
+    private final PathReference testJar = new PathReference("src/test/resources/jars/test.jar");
+
+    @Test
+    public void listEntries() throws IOException {
+        try (ZipArchiveView view = new ZipArchiveView(this.testJar)) {
+            assertEquals(Arrays.asList("META-INF/", "META-INF/MANIFEST.MF", "META-INF/test.txt", "test.txt"), view.getEntryNames());
+            assertEquals(Arrays.asList("META-INF/", "META-INF/MANIFEST.MF", "META-INF/test.txt"), view.getEntryNames("META-INF/"));
+            assertEquals(Arrays.asList("test.txt"), view.getEntryNames("t"));
+            assertEquals(Collections.emptyList(), view.getEntryNames("missing/"));
+            assertTrue(view.hasEntry("test.txt"));
+            assertFalse(view.hasEntry("missing"));
+            assertEquals(70, view.getSize("META-INF/MANIFEST.MF"));
+            assertEquals(-1, view.getSize("missing"));
+        }
+    }
+
+    @Test
+    public void readEntries() throws IOException {
+        try (ZipArchiveView view = new ZipArchiveView(this.testJar)) {
+            assertEquals("TEST", contents(view.getEntry("test.txt")));
+            assertTrue(contents(view.getEntry("META-INF/MANIFEST.MF")).startsWith("Manifest-Version: 1.0"));
+            assertEquals(0, view.getEntry("META-INF/").remaining());
+            assertNull(view.getEntry("missing"));
+        }
+    }
+
+    @Test
+    public void readLargeDeflatedEntry() throws IOException {
+        PathReference zip = new PathReference("build/archive-view.zip");
+        byte[] content = new byte[1024 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip.toFile()))) {
+            out.putNextEntry(new ZipEntry("a/large.bin"));
+            out.write(content);
+            out.closeEntry();
+        }
+        try (ZipArchiveView view = new ZipArchiveView(zip)) {
+            ByteBuffer buffer = view.getEntry("a/large.bin");
+            byte[] read = new byte[buffer.remaining()];
+            buffer.get(read);
+            assertArrayEquals(content, read);
+            assertTrue(buffer.isReadOnly());
+        }
+        zip.delete();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedView() throws IOException {
+        ZipArchiveView view = new ZipArchiveView(this.testJar);
+        view.close();
+        view.getEntry("test.txt");
+    }
+
+    private static String contents(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
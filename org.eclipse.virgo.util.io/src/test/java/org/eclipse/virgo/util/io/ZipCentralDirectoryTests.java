@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2010 VMware Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   VMware Inc. - initial contribution
+ *******************************************************************************/
+
+package org.eclipse.virgo.util.io;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZipCentralDirectoryTests {
+
+    private final File zipFile = new File("build/central-directory.zip");
+
+    private final File target = new File("build/central-directory-entry");
+
+    @Before
+    public void before() {
+        this.zipFile.getParentFile().mkdirs();
+        this.zipFile.delete();
+        this.target.delete();
+    }
+
+    @Test
+    public void storedEntriesAreTransferred() throws IOException {
+        byte[] nested = "nested jar content".getBytes(UTF_8);
+        byte[] unicode = "unicode".getBytes(UTF_8);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(this.zipFile))) {
+            out.setComment("an archive comment");
+            putStoredEntry(out, "WEB-INF/lib/nested.jar", nested, new byte[] { (byte) 0xCA, (byte) 0xFE, 0, 0 });
+            out.putNextEntry(new ZipEntry("deflated.txt"));
+            out.write("deflated".getBytes(UTF_8));
+            out.closeEntry();
+            putStoredEntry(out, "d\u00e9j\u00e0/vu.txt", unicode, null);
+            out.putNextEntry(new ZipEntry("directory/"));
+            out.closeEntry();
+        }
+
+        try (FileChannel channel = FileChannel.open(this.zipFile.toPath(), StandardOpenOption.READ)) {
+            ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(channel);
+            assertTrue(centralDirectory.isStored("WEB-INF/lib/nested.jar"));
+            assertTrue(centralDirectory.isStored("d\u00e9j\u00e0/vu.txt"));
+            assertFalse(centralDirectory.isStored("deflated.txt"));
+            assertFalse(centralDirectory.isStored("directory/"));
+            assertFalse(centralDirectory.isStored("missing"));
+
+            assertArrayEquals(nested, transfer(centralDirectory, "WEB-INF/lib/nested.jar"));
+            assertArrayEquals(unicode, transfer(centralDirectory, "d\u00e9j\u00e0/vu.txt"));
+        }
+    }
+
+    @Test
+    public void archiveAppendedToOtherData() throws IOException {
+        byte[] content = "stored".getBytes(UTF_8);
+        File plainZip = new File("build/central-directory-plain.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(plainZip))) {
+            putStoredEntry(out, "stored.txt", content, null);
+        }
+        try (OutputStream out = new FileOutputStream(this.zipFile)) {
+            out.write(new byte[1000]);
+            out.write(Files.readAllBytes(plainZip.toPath()));
+        }
+        plainZip.delete();
+
+        try (FileChannel channel = FileChannel.open(this.zipFile.toPath(), StandardOpenOption.READ)) {
+            assertArrayEquals(content, transfer(ZipCentralDirectory.read(channel), "stored.txt"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notAZipFile() throws IOException {
+        try (OutputStream out = new FileOutputStream(this.zipFile)) {
+            out.write("not a zip file".getBytes(UTF_8));
+        }
+        try (FileChannel channel = FileChannel.open(this.zipFile.toPath(), StandardOpenOption.READ)) {
+            ZipCentralDirectory.read(channel);
+        }
+    }
+
+    private byte[] transfer(ZipCentralDirectory centralDirectory, String name) throws IOException {
+        try (FileChannel out = FileChannel.open(this.target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            assertTrue(centralDirectory.transferStoredEntry(name, out));
+        }
+        return Files.readAllBytes(this.target.toPath());
+    }
+
+    private static void putStoredEntry(ZipOutputStream out, String name, byte[] content, byte[] extra) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCompressedSize(content.length);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.setCrc(crc.getValue());
+        if (extra != null) {
+            entry.setExtra(extra);
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+}
@@ -14,10 +14,35 @@ package org.eclipse.virgo.util.io;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.eclipse.virgo.util.io.PathReference.PathFilter;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -158,6 +183,39 @@ public class ZipUtilsTests {
         assertExistsAndContains(unzipBarPlace, "Bar");
     }
 
+    @Test
+    public void unzipArchiveWithUnparsableCentralDirectory() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(baos);
+        byte[] content = "Stored".getBytes(UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        ZipEntry entry = new ZipEntry("stored.txt");
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCrc(crc.getValue());
+        zos.putNextEntry(entry);
+        zos.write(content);
+        zos.closeEntry();
+        zos.close();
+
+        // a comment holding a spurious end of central directory record, which ZipFile skips because its comment does
+        // not reach the end of the file
+        byte[] zip = baos.toByteArray();
+        ByteBuffer archive = ByteBuffer.allocate(zip.length + 27).order(ByteOrder.LITTLE_ENDIAN);
+        archive.put(zip);
+        archive.putShort(zip.length - 2, (short) 27);
+        archive.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) 1).putShort((short) 1);
+        archive.putInt(16).putInt(Integer.MAX_VALUE).putShort((short) 0);
+        PathReference archiveFile = new PathReference("build/unparsable-central-directory.zip");
+        Files.write(archiveFile.toFile().toPath(), archive.array());
+
+        PathReference unzipped = new PathReference("build/unparsable-central-directory");
+        unzipped.delete(true);
+        ZipUtils.unzipTo(archiveFile, unzipped);
+        assertExistsAndContains(unzipped.newChild("stored.txt"), "Stored");
+    }
+
     @Test
     public void unzipToDestructive() throws Exception {
         PathReference archiveToUnzip = new PathReference("src/test/resources/jars/test.jar");
@@ -210,6 +268,362 @@ public class ZipUtilsTests {
         Assert.assertFalse(archivedFileInMetaInf.exists());
     }
 
+    @Test
+    public void parallelUnzipTo() throws Exception {
+        PathReference toZip = new PathReference("src/test/resources/to-zip");
+        PathReference destination = new PathReference("build");
+
+        ZipUtils.zipTo(toZip, destination);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ZipUtils.unzipTo(expectedZip, destination, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertExistsAndContains(expectedDefaultUnzippedFoo, "Foo");
+        assertExistsAndContains(expectedDefaultUnzippedBar, "Bar");
+    }
+
+    @Test
+    public void parallelUnzipManyEntries() throws Exception {
+        PathReference zip = new PathReference("build/many-entries.zip");
+        int entryCount = 300;
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip.toFile()))) {
+            for (int i = 0; i < entryCount; i++) {
+                zos.putNextEntry(new ZipEntry("dir" + (i % 7) + "/sub" + (i % 3) + "/entry" + i));
+                zos.write(("Entry " + i).getBytes(UTF_8));
+                zos.closeEntry();
+            }
+        }
+        PathReference unzipDestination = new PathReference("build/many-entries");
+        unzipDestination.delete(true);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ZipUtils.unzipTo(zip, unzipDestination, pool);
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < entryCount; i++) {
+            assertExistsAndContains(unzipDestination.newChild("dir" + (i % 7)).newChild("sub" + (i % 3)).newChild("entry" + i), "Entry " + i);
+        }
+        unzipDestination.delete(true);
+        zip.delete();
+    }
+
+    @Test
+    public void unzipStoredEntries() throws Exception {
+        PathReference zip = new PathReference("build/stored-entries.zip");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip.toFile()))) {
+            for (int i = 0; i < 20; i++) {
+                byte[] content = ("Entry " + i).getBytes(UTF_8);
+                ZipEntry entry = new ZipEntry("lib/entry" + i + ".jar");
+                if (i % 2 == 0) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(content.length);
+                    entry.setCrc(crc.getValue());
+                }
+                zos.putNextEntry(entry);
+                zos.write(content);
+                zos.closeEntry();
+            }
+        }
+        PathReference sequential = new PathReference("build/stored-entries-sequential");
+        PathReference parallel = new PathReference("build/stored-entries-parallel");
+        sequential.delete(true);
+        parallel.delete(true);
+        ZipUtils.unzipTo(zip, sequential);
+        ZipUtils.unzipTo(zip, parallel, ForkJoinPool.commonPool());
+        for (int i = 0; i < 20; i++) {
+            assertExistsAndContains(sequential.newChild("lib").newChild("entry" + i + ".jar"), "Entry " + i);
+            assertExistsAndContains(parallel.newChild("lib").newChild("entry" + i + ".jar"), "Entry " + i);
+        }
+        zip.delete();
+    }
+
+    @Test
+    public void parallelUnzipToDestructive() throws Exception {
+        PathReference unzipDestination = new PathReference("build/parallelUnzipDestructive");
+        PathReference archivedFile = unzipDestination.newChild("test.txt");
+        PathReference updatedArchivedFileInMetaInf = unzipDestination.newChild("META-INF").newChild("test_updated.txt");
+
+        unzipDestination.delete(true);
+        ZipUtils.unzipTo(new PathReference("src/test/resources/jars/test.jar"), unzipDestination, ForkJoinPool.commonPool());
+        Assert.assertTrue(archivedFile.exists());
+
+        ZipUtils.unzipToDestructive(new PathReference("src/test/resources/jars/test_updated.jar"), unzipDestination, ForkJoinPool.commonPool());
+        Assert.assertTrue(updatedArchivedFileInMetaInf.exists());
+        Assert.assertFalse(archivedFile.exists());
+    }
+
+    @Test
+    public void unzipToIncremental() throws Exception {
+        PathReference unzipDestination = new PathReference("build/incrementalUnzip");
+        PathReference manifest = unzipDestination.newChild("META-INF").newChild("MANIFEST.MF");
+        PathReference archivedFile = unzipDestination.newChild("test.txt");
+        PathReference strayFile = unzipDestination.newChild("stray").newChild("stray.txt");
+        PathReference updatedArchivedFile = unzipDestination.newChild("test_updated.txt");
+
+        unzipDestination.delete(true);
+        ZipUtils.unzipToIncremental(new PathReference("src/test/resources/jars/test.jar"), unzipDestination);
+        assertExistsAndContains(archivedFile, "TEST");
+        long unchangedTime = 1000000000000L;
+        Assert.assertTrue(manifest.toFile().setLastModified(unchangedTime));
+
+        // same size, different content, so only the CRC-32 reveals the change
+        try (OutputStream out = new FileOutputStream(archivedFile.toFile())) {
+            out.write("XXXX".getBytes(UTF_8));
+        }
+        strayFile.createFile();
+
+        ZipUtils.unzipToIncremental(new PathReference("src/test/resources/jars/test.jar"), unzipDestination);
+        assertExistsAndContains(archivedFile, "TEST");
+        Assert.assertFalse(strayFile.exists());
+        Assert.assertFalse(strayFile.getParent().exists());
+        Assert.assertEquals(unchangedTime, manifest.toFile().lastModified());
+
+        ZipUtils.unzipToIncremental(new PathReference("src/test/resources/jars/test_updated.jar"), unzipDestination);
+        Assert.assertTrue(updatedArchivedFile.exists());
+        Assert.assertFalse(archivedFile.exists());
+        Assert.assertFalse(unzipDestination.newChild("META-INF").newChild("test.txt").exists());
+        Assert.assertEquals(unchangedTime, manifest.toFile().lastModified());
+    }
+
+    @Test
+    public void unzipToIncrementalReplacesHardLinkedFiles() throws Exception {
+        PathReference unzipDestination = new PathReference("build/incrementalUnzipLinked");
+        PathReference linkSource = new PathReference("build/incrementalUnzipLinkSource.txt");
+        unzipDestination.delete(true);
+        linkSource.delete();
+        ZipUtils.unzipToIncremental(new PathReference("src/test/resources/jars/test.jar"), unzipDestination);
+        PathReference archivedFile = unzipDestination.newChild("test.txt");
+        try (OutputStream out = new FileOutputStream(linkSource.toFile())) {
+            out.write("XXXX".getBytes(UTF_8));
+        }
+        archivedFile.delete();
+        Files.createLink(archivedFile.toFile().toPath(), linkSource.toFile().toPath());
+
+        ZipUtils.unzipToIncremental(new PathReference("src/test/resources/jars/test.jar"), unzipDestination);
+        assertExistsAndContains(archivedFile, "TEST");
+        assertExistsAndContains(linkSource, "XXXX");
+        // META-INF and test.txt, with no temporary file left beside them
+        Assert.assertEquals(2, unzipDestination.toFile().list().length);
+        linkSource.delete();
+    }
+
+    @Test
+    public void zipToStream() throws Exception {
+        final boolean[] closed = new boolean[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        ZipUtils.zipTo(new PathReference("src/test/resources/to-zip"), out, "prefix", new PathFilter() {
+
+            @Override
+            public boolean matches(PathReference path) {
+                return !path.getName().equals("b");
+            }
+        });
+        Assert.assertFalse(closed[0]);
+
+        Set<String> names = new HashSet<String>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                names.add(entry.getName());
+            }
+        }
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("prefix/a/", "prefix/a/foo")), names);
+    }
+
+    @Test
+    public void failedZipToStreamHasNoCentralDirectory() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ZipUtils.zipTo(new PathReference("src/test/resources/to-zip"), out, null, new PathFilter() {
+
+                @Override
+                public boolean matches(PathReference path) {
+                    if (path.getName().equals("b")) {
+                        throw new FatalIOException("Cannot filter " + path);
+                    }
+                    return true;
+                }
+            });
+            Assert.fail("The filter's failure should fail the zip");
+        } catch (FatalIOException e) {
+            // expected
+        }
+
+        byte[] data = out.toByteArray();
+        for (int index = 0; index + 4 <= data.length; index++) {
+            Assert.assertFalse("Unexpected end of central directory record", data[index] == 'P' && data[index + 1] == 'K' && data[index + 2] == 5
+                && data[index + 3] == 6);
+        }
+    }
+
+    @Test
+    public void zipToChannel() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        ZipUtils.zipTo(new PathReference("src/test/resources/to-zip"), channel, null, null);
+        Assert.assertTrue(channel.isOpen());
+
+        PathReference zip = new PathReference("build/channel.zip");
+        Files.write(zip.toFile().toPath(), out.toByteArray());
+        PathReference unzipDestination = new PathReference("build/channel-unzipped");
+        unzipDestination.delete(true);
+        ZipUtils.unzipTo(zip, unzipDestination);
+        assertExistsAndContains(unzipDestination.newChild("a").newChild("foo"), "Foo");
+        assertExistsAndContains(unzipDestination.newChild("a").newChild("b").newChild("bar"), "Bar");
+        zip.delete();
+    }
+
+    @Test
+    public void zipWithOptions() throws Exception {
+        PathReference toZip = new PathReference("build/zip-options-source");
+        toZip.delete(true);
+        toZip.createDirectory();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        byte[] random = new byte[100000];
+        new Random(0).nextBytes(random);
+        Files.write(toZip.newChild("text.txt").toFile().toPath(), text.toString().getBytes(UTF_8));
+        Files.write(toZip.newChild("nested.JAR").toFile().toPath(), text.toString().getBytes(UTF_8));
+        Files.write(toZip.newChild("random.bin").toFile().toPath(), random);
+
+        ZipOptions options = new ZipOptions().setStoredExtensions(".jar").setStoreIncompressible(true);
+        PathReference sequential = new PathReference("build/zip-options-sequential.zip");
+        PathReference parallel = new PathReference("build/zip-options-parallel.zip");
+        sequential.delete();
+        parallel.delete();
+        ZipUtils.zipTo(toZip, sequential, null, options);
+        ZipUtils.zipTo(toZip, parallel, null, ForkJoinPool.commonPool(), options);
+        PathReference streamed = new PathReference("build/zip-options-streamed.zip");
+        try (FileChannel channel = FileChannel.open(streamed.toFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            ZipUtils.zipTo(toZip, channel, null, null, options);
+        }
+        for (PathReference zip : Arrays.asList(sequential, parallel, streamed)) {
+            try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+                Assert.assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("/text.txt").getMethod());
+                Assert.assertEquals(ZipEntry.STORED, zipFile.getEntry("/nested.JAR").getMethod());
+                Assert.assertEquals(ZipEntry.STORED, zipFile.getEntry("/random.bin").getMethod());
+            }
+            PathReference unzipped = new PathReference("build/zip-options-unzipped");
+            unzipped.delete(true);
+            ZipUtils.unzipTo(zip, unzipped);
+            Assert.assertArrayEquals(random, Files.readAllBytes(unzipped.newChild("random.bin").toFile().toPath()));
+            Assert.assertArrayEquals(text.toString().getBytes(UTF_8), Files.readAllBytes(unzipped.newChild("nested.JAR").toFile().toPath()));
+        }
+
+        sequential.delete();
+        ZipUtils.zipTo(toZip, sequential, null, new ZipOptions().setLevel(0));
+        try (ZipFile zipFile = new ZipFile(sequential.toFile())) {
+            Assert.assertEquals(ZipEntry.STORED, zipFile.getEntry("/text.txt").getMethod());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zipOptionsRejectInvalidLevel() {
+        new ZipOptions().setLevel(10);
+    }
+
+    @Test
+    public void zip64MarkerSizeIsRejected() throws Exception {
+        ZipArchiveWriter writer = new ZipArchiveWriter(new ByteArrayOutputStream());
+        try {
+            writer.putEntry("huge", 0, ZipEntry.STORED, 0, ZipArchiveWriter.MAX_SIZE, ZipArchiveWriter.MAX_SIZE);
+            Assert.fail("An entry of 0xFFFFFFFF bytes needs ZIP64 extensions");
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void parallelZipTo() throws Exception {
+        PathReference toZip = new PathReference("src/test/resources/to-zip");
+        PathReference destination = new PathReference("build");
+
+        ZipUtils.zipTo(toZip, destination, "prefix", ForkJoinPool.commonPool());
+        Assert.assertTrue(expectedZip.exists());
+
+        ZipUtils.unzipTo(expectedZip, destination);
+        assertExistsAndContains(expectedDefaultPrefixedUnzippedFoo, "Foo");
+        assertExistsAndContains(expectedDefaultPrefixedUnzippedBar, "Bar");
+    }
+
+    @Test
+    public void parallelZipLeavesLargeEntriesToSequentialZip() throws Exception {
+        PathReference toZip = new PathReference("build/parallel-zip-large");
+        toZip.delete(true);
+        FileCopyUtils.copy(new byte[10], toZip.newChild("small.bin").createFile().toFile());
+        FileCopyUtils.copy(new byte[1000], toZip.newChild("dir").newChild("large.bin").createFile().toFile());
+        List<ParallelZipCompressor.Source> sources = ParallelZipCompressor.listSources(toZip.toFile(), null);
+
+        Assert.assertTrue(ParallelZipCompressor.canCompress(sources));
+        Assert.assertTrue(ParallelZipCompressor.canCompress(sources, 1000));
+        Assert.assertFalse(ParallelZipCompressor.canCompress(sources, 999));
+        toZip.delete(true);
+    }
+
+    @Test
+    public void parallelZipIsDeterministic() throws Exception {
+        PathReference toZip = new PathReference("build/parallel-zip-source");
+        toZip.delete(true);
+        for (int i = 0; i < 50; i++) {
+            PathReference file = toZip.newChild("dir" + (i % 5)).newChild("file" + i + ".txt").createFile();
+            try (OutputStream out = new FileOutputStream(file.toFile())) {
+                for (int line = 0; line < i * 20; line++) {
+                    out.write(("line " + line + " of file " + i + "\n").getBytes(UTF_8));
+                }
+            }
+        }
+        PathReference first = new PathReference("build/parallel-first.zip");
+        PathReference second = new PathReference("build/parallel-second.zip");
+        first.delete();
+        second.delete();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ZipUtils.zipTo(toZip, first, null, pool);
+            ZipUtils.zipTo(toZip, second, null, pool);
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertArrayEquals(Files.readAllBytes(first.toFile().toPath()), Files.readAllBytes(second.toFile().toPath()));
+
+        try (ZipFile zipFile = new ZipFile(first.toFile())) {
+            Assert.assertEquals(55, zipFile.size());
+        }
+        PathReference unzipped = new PathReference("build/parallel-unzipped");
+        unzipped.delete(true);
+        ZipUtils.unzipTo(first, unzipped);
+        for (int i = 0; i < 50; i++) {
+            String name = "dir" + (i % 5) + File.separator + "file" + i + ".txt";
+            Assert.assertArrayEquals(Files.readAllBytes(toZip.newChild(name).toFile().toPath()),
+                Files.readAllBytes(unzipped.newChild(name).toFile().toPath()));
+        }
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(first.toFile()))) {
+            int entries = 0;
+            while (in.getNextEntry() != null) {
+                entries++;
+            }
+            Assert.assertEquals(55, entries);
+        }
+        toZip.delete(true);
+        unzipped.delete(true);
+        first.delete();
+        second.delete();
+    }
+
     private static PathReference longPathReference(PathReference longRef, int depth) {
         for (int i = 0; i < depth; ++i) {
             longRef = longRef.newChild(A_LONG_FILE_PATH_DIRECTORY);